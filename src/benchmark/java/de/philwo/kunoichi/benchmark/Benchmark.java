@@ -0,0 +1,86 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package de.philwo.kunoichi.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A minimal harness for micro-benchmarks that reports the time and the number of heap bytes that
+ * are allocated per operation.
+ *
+ * <p>Each benchmark is run for a number of warmup iterations first, so that the JIT has compiled
+ * the hot paths, and then measured over several iterations. Allocations are counted per thread, so
+ * the operation must not hand off work to other threads.
+ */
+public final class Benchmark {
+
+  private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final int warmupIterations;
+  private final int iterations;
+
+  public Benchmark(int warmupIterations, int iterations) {
+    this.warmupIterations = warmupIterations;
+    this.iterations = iterations;
+  }
+
+  /** An operation that is measured. It returns a result so that it can't be optimized away. */
+  @FunctionalInterface
+  public interface Operation {
+    Object run() throws Exception;
+  }
+
+  /** The median time and allocations per operation of one benchmark. */
+  public record Result(String name, double nanosPerOp, double bytesPerOp) {
+    @Override
+    public String toString() {
+      return String.format("%-40s %12.1f ns/op %12.1f B/op", name, nanosPerOp, bytesPerOp);
+    }
+  }
+
+  /**
+   * Runs the given operation, which performs {@code opsPerIteration} operations per call, and
+   * prints and returns the median results.
+   */
+  public Result run(String name, int opsPerIteration, Operation operation) throws Exception {
+    Object sink = null;
+    for (int i = 0; i < warmupIterations; i++) {
+      sink = operation.run();
+    }
+    double[] nanos = new double[iterations];
+    double[] bytes = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long startBytes = THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+      long startNanos = System.nanoTime();
+      sink = operation.run();
+      nanos[i] = (double) (System.nanoTime() - startNanos) / opsPerIteration;
+      bytes[i] =
+          (double) (THREAD_MX_BEAN.getCurrentThreadAllocatedBytes() - startBytes) / opsPerIteration;
+    }
+    if (sink == null) {
+      throw new IllegalStateException("Benchmark " + name + " did not return a result");
+    }
+    Result result = new Result(name, median(nanos), median(bytes));
+    System.out.println(result);
+    return result;
+  }
+
+  private static double median(double[] values) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
@@ -0,0 +1,184 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+import de.philwo.kunoichi.benchmark.Benchmark;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares {@link ActionGraph} and {@link CompactActionGraph} on a generated graph: the time to
+ * build each graph from a list of actions (like the analysis phase does), the heap that each graph
+ * retains on top of the actions themselves, and the time of a full traversal of the dependencies.
+ *
+ * <p>The number of actions can be passed as the first argument and defaults to 1M. Each action
+ * depends on up to {@value #DEPENDENCIES} earlier actions, some of them twice.
+ */
+public class ActionGraphBenchmark {
+
+  private static final int DEFAULT_ACTIONS = 1_000_000;
+  private static final int DEPENDENCIES = 4;
+
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ACTIONS;
+    List<Action> actions = generateActions(size);
+    int edges = actions.stream().mapToInt(action -> (int) action.inputs().count()).sum();
+    System.out.printf("%,d actions, %,d edges (including duplicates)%n", size, edges);
+
+    Benchmark benchmark = new Benchmark(2, 5);
+    benchmark.run("build ActionGraph", edges, () -> buildHashGraph(actions));
+    benchmark.run("build CompactActionGraph", edges, () -> buildCompactGraph(actions));
+
+    ActionGraph hashGraph = buildHashGraph(actions);
+    CompactActionGraph compactGraph = buildCompactGraph(actions);
+    Action[] roots = {actions.get(actions.size() - 1)};
+    benchmark.run("traverse ActionGraph", edges, () -> traverse(hashGraph, roots));
+    benchmark.run(
+        "traverse CompactActionGraph", edges, () -> traverse(compactGraph, new int[] {size - 1}));
+
+    System.out.printf(
+        "ActionGraph retains        %8.1f B/action%n",
+        retainedBytes(() -> buildHashGraph(actions)) / (double) size);
+    System.out.printf(
+        "CompactActionGraph retains %8.1f B/action%n",
+        retainedBytes(() -> buildCompactGraph(actions)) / (double) size);
+  }
+
+  /** Generates actions whose inputs are the outputs of earlier actions, like a build graph. */
+  private static List<Action> generateActions(int size) {
+    Random random = new Random(42);
+    Environment env = new Environment();
+    Rule rule = Rule.builder().name("cc").command(FormatString.fromPlainText("cc")).build();
+    ArrayList<Path> outputs = new ArrayList<>(size);
+    ArrayList<Action> actions = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Path output = Path.of("obj/dir" + i % 1000 + "/file" + i + ".o");
+      outputs.add(output);
+      ArrayList<Path> inputs = new ArrayList<>();
+      // The most recent action is always a dependency, so that the whole graph is reachable.
+      if (i > 0) {
+        inputs.add(outputs.get(i - 1));
+      }
+      for (int j = 1; j < DEPENDENCIES && i > 0; j++) {
+        inputs.add(outputs.get(random.nextInt(i)));
+      }
+      // Some actions list the same input twice, e.g. as an explicit and an order-only input.
+      if (i > 0 && i % 4 == 0) {
+        inputs.add(inputs.get(0));
+      }
+      actions.add(
+          new Action(
+              rule,
+              env,
+              List.of(output),
+              List.of(),
+              List.copyOf(inputs),
+              List.of(),
+              List.of(),
+              List.of()));
+    }
+    return actions;
+  }
+
+  private static ActionGraph buildHashGraph(List<Action> actions) {
+    ActionGraph graph = new ActionGraph(actions.size());
+    actions.forEach(graph::addAction);
+    for (Action action : actions) {
+      for (Path input : action.explicitInputs()) {
+        graph.putEdge(action, graph.getGeneratingAction(input));
+      }
+    }
+    return graph;
+  }
+
+  private static CompactActionGraph buildCompactGraph(List<Action> actions) {
+    CompactActionGraph.Builder builder = CompactActionGraph.builder(actions.size());
+    actions.forEach(builder::addAction);
+    for (int id = 0; id < actions.size(); id++) {
+      for (Path input : actions.get(id).explicitInputs()) {
+        builder.putEdge(id, builder.getGeneratingAction(input));
+      }
+    }
+    return builder.build();
+  }
+
+  private static Object traverse(ActionGraph graph, Action[] roots) {
+    HashSet<Action> visited = new HashSet<>();
+    ArrayDeque<Action> stack = new ArrayDeque<>();
+    for (Action root : roots) {
+      if (visited.add(root)) {
+        stack.push(root);
+      }
+    }
+    while (!stack.isEmpty()) {
+      for (Action dependency : graph.getDependencies(stack.pop())) {
+        if (visited.add(dependency)) {
+          stack.push(dependency);
+        }
+      }
+    }
+    return visited.size();
+  }
+
+  private static Object traverse(CompactActionGraph graph, int[] roots) {
+    boolean[] visited = new boolean[graph.size()];
+    int[] stack = new int[graph.size()];
+    int stackSize = 0;
+    int count = 0;
+    for (int root : roots) {
+      if (!visited[root]) {
+        visited[root] = true;
+        stack[stackSize++] = root;
+        count++;
+      }
+    }
+    while (stackSize > 0) {
+      int action = stack[--stackSize];
+      for (int i = 0; i < graph.dependencyCount(action); i++) {
+        int dependency = graph.dependency(action, i);
+        if (!visited[dependency]) {
+          visited[dependency] = true;
+          stack[stackSize++] = dependency;
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /** Returns the heap that is retained by the object created by {@code supplier}. */
+  private static long retainedBytes(Supplier<Object> supplier) {
+    long before = usedHeap();
+    Object retained = supplier.get();
+    long after = usedHeap();
+    if (retained == null) {
+      throw new IllegalStateException();
+    }
+    return after - before;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package de.philwo.kunoichi.datamodel;
+
+import de.philwo.kunoichi.benchmark.Benchmark;
+import de.philwo.kunoichi.datamodel.FormatString.FormatStringBuilder;
+
+/**
+ * Measures the time and allocations of evaluating typical compile and link command templates in
+ * the scope of an action.
+ */
+public class FormatStringBenchmark {
+
+  private static final int EVALUATIONS = 10_000;
+
+  public static void main(String[] args) throws Exception {
+    Environment fileEnv = new Environment();
+    fileEnv.put("cxx", template("clang++"));
+    fileEnv.put("cflags", template("-O2 -g -Wall -Wextra -fno-exceptions"));
+    fileEnv.put("defines", template("-DNDEBUG -DKUNOICHI_VERSION=1"));
+    fileEnv.put("includes", template("-Iinclude -Ithird_party/abseil -I$builddir/gen"));
+    fileEnv.put("builddir", template("out/release"));
+    fileEnv.put("ldflags", template("-fuse-ld=lld -Wl,--gc-sections"));
+    fileEnv.put("libs", template("-lpthread -ldl -lm"));
+    // Like the scopes of a parsed manifest.
+    fileEnv.freeze();
+
+    Environment compileEnv = new Environment(fileEnv);
+    compileEnv.put("in", () -> "src/kunoichi/ninja/lexer.cc");
+    compileEnv.put("out", () -> "obj/kunoichi/ninja/lexer.o");
+    FormatString compile =
+        template("$cxx -MMD -MF $out.d $defines $includes $cflags -c $in -o $out");
+
+    Environment linkEnv = new Environment(fileEnv);
+    linkEnv.put("out", () -> "bin/kunoichi");
+    linkEnv.put("rspfile", () -> "bin/kunoichi.rsp");
+    FormatString link = template("$cxx $ldflags -o $out @$rspfile $libs");
+
+    FormatString description = template("CXX $out");
+
+    Benchmark benchmark = new Benchmark(50, 10);
+    benchmark.run("evaluate compile command", EVALUATIONS, () -> evaluate(compile, compileEnv));
+    benchmark.run("evaluate link command", EVALUATIONS, () -> evaluate(link, linkEnv));
+    benchmark.run("evaluate description", EVALUATIONS, () -> evaluate(description, compileEnv));
+  }
+
+  private static Object evaluate(FormatString formatString, Environment env) {
+    // Keep the results reachable, so that the JIT can't optimize the evaluation away.
+    String[] results = new String[EVALUATIONS];
+    for (int i = 0; i < EVALUATIONS; i++) {
+      results[i] = formatString.evaluate(env);
+    }
+    return results;
+  }
+
+  /** Builds a format string from text with simple  references, like a manifest does. */
+  private static FormatString template(String s) {
+    FormatStringBuilder builder = FormatString.builder();
+    int i = 0;
+    while (i < s.length()) {
+      char c = s.charAt(i);
+      if (c != '$') {
+        builder.addText(c);
+        i++;
+        continue;
+      }
+      int end = ++i;
+      while (end < s.length()
+          && (Character.isLetterOrDigit(s.charAt(end)) || s.charAt(end) == '_')) {
+        end++;
+      }
+      builder.addVariable(s.substring(i, end));
+      i = end;
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates synthetic manifests that resemble those of large C++ projects.
+ *
+ * <p>The generated tree consists of a top-level build.ninja with the toolchain variables and rules,
+ * and one subninja per module. Modules are nested into a tree, so the manifest has deep subninja
+ * chains. Each module compiles its sources and links them into a library with a large fan-in, and
+ * the top-level file links all libraries into a binary. Paths and flags make heavy use of
+ * $-escapes, and long input lists are split over continuation lines.
+ */
+final class ManifestGenerator {
+
+  /** The number of build statements per module. */
+  private static final int STATEMENTS_PER_MODULE = 2000;
+
+  /** The number of child modules per module. */
+  private static final int FANOUT = 4;
+
+  /** The number of shared headers that every compile step depends on. */
+  private static final int HEADERS = 16;
+
+  /** Statistics about a generated manifest tree. */
+  record Manifest(Path root, List<Path> files, long bytes, int buildStatements) {}
+
+  private ManifestGenerator() {}
+
+  /** Generates a manifest tree with about the given number of build statements into {@code dir}. */
+  static Manifest generate(Path dir, int buildStatements) throws IOException {
+    Files.createDirectories(dir);
+    int modules = Math.max(1, buildStatements / STATEMENTS_PER_MODULE);
+    int statementsPerModule = Math.max(2, buildStatements / modules);
+
+    ArrayList<Path> files = new ArrayList<>();
+    int statements = 0;
+    for (int module = 0; module < modules; module++) {
+      Path file = dir.resolve("module" + module + ".ninja");
+      statements += writeModule(file, module, modules, statementsPerModule);
+      files.add(file);
+    }
+
+    Path root = dir.resolve("build.ninja");
+    statements += writeRoot(root, modules);
+    files.add(0, root);
+
+    long bytes = 0;
+    for (Path file : files) {
+      bytes += Files.size(file);
+    }
+    return new Manifest(root, files, bytes, statements);
+  }
+
+  private static int writeRoot(Path file, int modules) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      out.write(
+          """
+          # Generated by ManifestGenerator.
+          ninja_required_version = 1.10
+          builddir = out/release
+          cxx = clang++
+          common_flags = -O2 -g -fno-exceptions -fvisibility=hidden
+          warning_flags = -Wall -Wextra -Werror -Wno-unused-parameter
+          cflags = $common_flags $warning_flags -std=c++20
+          ldflags = -fuse-ld=lld -Wl,--gc-sections -Wl,--icf=all
+
+          pool link_pool
+            depth = 4
+
+          rule cxx
+            command = $cxx -MMD -MF $out.d $defines $includes $cflags -c $in -o $out
+            description = CXX $out
+            depfile = $out.d
+            deps = gcc
+
+          rule ar
+            command = rm -f $out && llvm-ar rcs $out @$out.rsp
+            description = AR $out
+            rspfile = $out.rsp
+            rspfile_content = $in_newline
+
+          rule link
+            command = $cxx $ldflags -o $out @$out.rsp $libs
+            description = LINK $out
+            rspfile = $out.rsp
+            rspfile_content = $in
+            pool = link_pool
+
+          """);
+      out.write("subninja module0.ninja\n\n");
+      out.write("build $builddir/bin/app: link $builddir/obj/main.o");
+      for (int module = 0; module < modules; module++) {
+        out.write(" $\n    $builddir/lib/libmodule" + module + ".a");
+      }
+      out.write("\n  libs = -lpthread -ldl\n");
+      out.write("build $builddir/obj/main.o: cxx src/main.cc\n");
+      out.write("build app: phony $builddir/bin/app\n");
+      out.write("default app\n");
+    }
+    return 3;
+  }
+
+  private static int writeModule(Path file, int module, int modules, int statements)
+      throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      out.write("# Module " + module + ", generated by ManifestGenerator.\n");
+      out.write("moddir = src/module" + module + "\n");
+      out.write("objdir = $builddir/obj/module" + module + "\n");
+      out.write("includes = -I$moddir/include -Ithird_party/abseil$ cpp -I$builddir/gen\n");
+      // Nest the modules into a tree, so that some subninja chains are log(modules) deep.
+      for (int child = module * FANOUT + 1; child <= module * FANOUT + FANOUT; child++) {
+        if (child < modules) {
+          out.write("subninja module" + child + ".ninja\n");
+        }
+      }
+      out.write("\n");
+
+      int sources = statements - 1;
+      for (int source = 0; source < sources; source++) {
+        // Spaces and colons in paths need to be escaped.
+        String name = (source % 10 == 0 ? "file$ with$ space" : "file") + source;
+        out.write("build $objdir/" + name + ".o: cxx $moddir/" + name + ".cc |");
+        for (int header = 0; header < HEADERS; header++) {
+          if (header % 4 == 0) {
+            out.write(" $\n   ");
+          }
+          out.write(" $moddir/include/header" + ((source + header) % 64) + ".h");
+        }
+        out.write(" || $builddir/gen/version$:stamp.h\n");
+        if (source % 3 == 0) {
+          out.write("  defines = -DMODULE=" + module + " -DNAME=\\\"file$$" + source + "\\\"\n");
+        }
+      }
+
+      out.write("build $builddir/lib/libmodule" + module + ".a: ar");
+      for (int source = 0; source < sources; source++) {
+        String name = (source % 10 == 0 ? "file$ with$ space" : "file") + source;
+        out.write(" $\n    $objdir/" + name + ".o");
+      }
+      out.write("\n\n");
+    }
+    return statements;
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import de.philwo.kunoichi.benchmark.Benchmark;
+import de.philwo.kunoichi.benchmark.Benchmark.Result;
+import de.philwo.kunoichi.ninja.ManifestGenerator.Manifest;
+import de.philwo.kunoichi.ninja.NinjaFile.NinjaFileParser;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput of the manifest parser on generated manifests of increasing size.
+ *
+ * <p>For each size, three stages are measured:
+ *
+ * <ul>
+ *   <li>lex: reading all statements of all files with {@link NinjaFileLexer} and the statement
+ *       parsers, without evaluating them, on a single thread. The lexer can't be run without the
+ *       statement parsers, as how it reads the input depends on the statement it is in.
+ *   <li>parse: the complete {@link NinjaFile#parse} on a single thread.
+ *   <li>parse-parallel: the complete {@link NinjaFile#parse} with one thread per processor.
+ * </ul>
+ *
+ * <p>The sizes (in build statements) can be passed as arguments and default to 10k up to 2M.
+ */
+public class ParserBenchmark {
+
+  private static final int[] DEFAULT_SIZES = {10_000, 100_000, 1_000_000, 2_000_000};
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0) {
+      sizes = Stream.of(args).mapToInt(Integer::parseInt).toArray();
+    }
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (int size : sizes) {
+      Path dir = Files.createTempDirectory("kunoichi-bench");
+      try {
+        Manifest manifest = ManifestGenerator.generate(dir, size);
+        System.out.printf(
+            "%n%,d build statements in %d files, %.1f MB%n",
+            manifest.buildStatements(), manifest.files().size(), manifest.bytes() / 1e6);
+
+        // Fewer iterations for the large manifests, which take seconds each.
+        Benchmark benchmark = size >= 1_000_000 ? new Benchmark(1, 3) : new Benchmark(3, 5);
+        report(
+            manifest,
+            benchmark.run("lex " + size, manifest.buildStatements(), () -> lex(manifest)));
+        report(
+            manifest,
+            benchmark.run(
+                "parse " + size,
+                manifest.buildStatements(),
+                () -> NinjaFile.parse(manifest.root(), Integer.MAX_VALUE, 1)));
+        report(
+            manifest,
+            benchmark.run(
+                "parse-parallel " + size,
+                manifest.buildStatements(),
+                () ->
+                    NinjaFile.parse(manifest.root(), NinjaFile.DEFAULT_CHUNK_SIZE, processors)));
+      } finally {
+        deleteRecursively(dir);
+      }
+    }
+  }
+
+  private static Object lex(Manifest manifest) throws IOException {
+    Interner interner = new Interner();
+    int statements = 0;
+    for (Path file : manifest.files()) {
+      ByteBuffer buffer = NinjaFileLexer.map(file);
+      try (NinjaFileParser parser =
+          new NinjaFileParser(new NinjaFileLexer(buffer, 0, buffer.limit(), interner))) {
+        while (parser.readStatement() != null) {
+          statements++;
+        }
+      }
+    }
+    return statements;
+  }
+
+  private static void report(Manifest manifest, Result result) {
+    // Allocations are only counted on the calling thread, so they are only accurate for the
+    // single-threaded stages.
+    double seconds = result.nanosPerOp() * manifest.buildStatements() / 1e9;
+    System.out.printf(
+        "  %8.1f MB/s %,14.0f statements/s %10.1f ms%n",
+        manifest.bytes() / 1e6 / seconds, manifest.buildStatements() / seconds, seconds * 1e3);
+  }
+
+  private static void deleteRecursively(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package de.philwo.kunoichi.ninja;
+
+import de.philwo.kunoichi.benchmark.Benchmark;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Rule;
+import de.philwo.kunoichi.datamodel.Rules;
+import de.philwo.kunoichi.ninja.NinjaStatement.BuildStatement;
+import de.philwo.kunoichi.ninja.NinjaToken.Type;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the time and allocations per build statement of {@link NinjaTargetParser} and {@link
+ * NinjaTargetEvaluator}.
+ *
+ * <p>The input resembles the build statements of a large C++ project: every statement has one
+ * object file output, a source file, a handful of shared headers as implicit inputs, an order-only
+ * dependency on generated files and sometimes a variable binding.
+ */
+public class TargetParserBenchmark {
+
+  private static final int STATEMENTS = 20_000;
+
+  // Shared by all iterations, as the tables are warm after the first statements of a manifest.
+  private static final Interner INTERNER = new Interner();
+
+  public static void main(String[] args) throws Exception {
+    ByteBuffer manifest = ByteBuffer.wrap(generateManifest().getBytes(StandardCharsets.UTF_8));
+    List<BuildStatement> statements = parse(manifest);
+
+    Rules rules = new Rules();
+    rules.add(
+        Rule.builder()
+            .name("cc")
+            .command(FormatString.fromPlainText("clang -c in -o out"))
+            .build());
+    Environment env = new Environment();
+
+    Benchmark benchmark = new Benchmark(20, 10);
+    benchmark.run("NinjaTargetParser.parse", STATEMENTS, () -> parse(manifest));
+    benchmark.run(
+        "NinjaTargetEvaluator.evaluate",
+        STATEMENTS,
+        () -> {
+          NinjaTargetEvaluator evaluator = new NinjaTargetEvaluator(rules, env, INTERNER);
+          ArrayList<Object> actions = new ArrayList<>(statements.size());
+          for (BuildStatement statement : statements) {
+            actions.add(evaluator.evaluate(statement));
+          }
+          return actions;
+        });
+  }
+
+  private static List<BuildStatement> parse(ByteBuffer manifest) throws IOException {
+    NinjaFileLexer lexer = new NinjaFileLexer(manifest, 0, manifest.limit(), INTERNER);
+    NinjaTargetParser parser = new NinjaTargetParser(lexer);
+    ArrayList<BuildStatement> statements = new ArrayList<>(STATEMENTS);
+    for (NinjaToken token = lexer.readToken();
+        token.type() != Type.EOF;
+        token = lexer.readToken()) {
+      if (token.type() == Type.BUILD) {
+        statements.add(parser.parse());
+      }
+    }
+    return statements;
+  }
+
+  private static String generateManifest() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < STATEMENTS; i++) {
+      sb.append("build obj/dir%d/file%d.o: cc src/dir%d/file%d.cc".formatted(i % 50, i, i % 50, i));
+      sb.append(" | include/base.h include/dir%d/common.h include/config.h".formatted(i % 50));
+      sb.append(" || gen/version.h\n");
+      if (i % 4 == 0) {
+        sb.append("  cflags = -O2 -DFILE=%d\n".formatted(i));
+      }
+    }
+    return sb.toString();
+  }
+}
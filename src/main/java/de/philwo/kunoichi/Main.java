@@ -15,13 +15,14 @@
 package de.philwo.kunoichi;
 
 import de.philwo.kunoichi.build.BuildCommand;
+import de.philwo.kunoichi.build.GraphStatsCommand;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 
 @Command(
     name = "kn",
     description = "Kunoichi is a Ninja-compatible build system",
-    subcommands = {BuildCommand.class},
+    subcommands = {BuildCommand.class, GraphStatsCommand.class},
     mixinStandardHelpOptions = true)
 public class Main {
   public static void main(String[] args) {
@@ -0,0 +1,188 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
+import de.philwo.kunoichi.utils.Preconditions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Builds the action graph of an eagerly loaded manifest on all cores.
+ *
+ * <p>The action with index i in the manifest gets ID i. Outputs are registered concurrently in an
+ * array indexed by node ID, which holds the lowest ID of the actions that produce each node. The
+ * dependencies of each action are then resolved independently, and every source file is stat'ed
+ * only once, no matter how many actions read it, in a parallel pass over the distinct files.
+ *
+ * <p>Errors are reported as if the actions were analyzed one after the other: the duplicate output
+ * of the first action that has one, or the first missing input of the first action that has one.
+ */
+final class ActionGraphAnalyzer {
+
+  private final Action[] actions;
+
+  /** The ID of the action that produces each node plus one, or zero for source files. */
+  private final AtomicIntegerArray producers;
+
+  /** The source files that need to be stat'ed, indexed by their node ID. */
+  private final Node[] sourceFiles;
+
+  private final AtomicBoolean sawInvalidInput = new AtomicBoolean();
+
+  private ActionGraphAnalyzer(NodeTable nodes, List<Action> actions) {
+    this.actions = actions.toArray(new Action[0]);
+    this.producers = new AtomicIntegerArray(nodes.size());
+    this.sourceFiles = new Node[nodes.size()];
+  }
+
+  /** Returns the graph of the given actions, whose nodes belong to the given table. */
+  static CompactActionGraph analyze(NodeTable nodes, List<Action> actions) {
+    return new ActionGraphAnalyzer(nodes, actions).analyze();
+  }
+
+  private CompactActionGraph analyze() {
+    IntStream.range(0, actions.length).parallel().forEach(this::registerOutputs);
+    IntStream.range(0, actions.length)
+        .parallel()
+        .filter(this::hasDuplicateOutput)
+        .findFirst()
+        .ifPresent(this::reportDuplicateOutput);
+
+    int[][] dependencies = new int[actions.length][];
+    IntStream.range(0, actions.length)
+        .parallel()
+        .forEach(action -> dependencies[action] = resolveDependencies(action));
+
+    IntStream.range(0, sourceFiles.length).parallel().forEach(this::stat);
+    if (sawInvalidInput.get()
+        || Arrays.stream(sourceFiles)
+            .parallel()
+            .anyMatch(node -> node != null && node.mtime() == Node.MTIME_MISSING)) {
+      IntStream.range(0, actions.length)
+          .parallel()
+          .filter(this::hasInvalidInput)
+          .findFirst()
+          .ifPresent(this::reportInvalidInput);
+    }
+
+    return CompactActionGraph.of(actions, dependencies);
+  }
+
+  private void registerOutputs(int action) {
+    Action a = actions[action];
+    Preconditions.checkArgument(a.hasNodes(), "Action %s has no nodes", a);
+    for (int i = 0; i < a.outputNodeCount(); i++) {
+      producers.accumulateAndGet(
+          a.outputNode(i).id(),
+          action + 1,
+          (existing, candidate) -> existing == 0 ? candidate : Math.min(existing, candidate));
+    }
+  }
+
+  private boolean hasDuplicateOutput(int action) {
+    return firstDuplicateOutput(action) != null;
+  }
+
+  private Node firstDuplicateOutput(int action) {
+    Action a = actions[action];
+    for (int i = 0; i < a.outputNodeCount(); i++) {
+      if (producers.get(a.outputNode(i).id()) != action + 1) {
+        return a.outputNode(i);
+      }
+    }
+    return null;
+  }
+
+  private void reportDuplicateOutput(int action) {
+    throw new IllegalArgumentException(
+        "Output " + firstDuplicateOutput(action) + " is generated by multiple actions");
+  }
+
+  /**
+   * Returns the IDs of the actions that produce the inputs of the given action, sorted and without
+   * duplicates, and marks the inputs that are source files to be stat'ed.
+   */
+  private int[] resolveDependencies(int action) {
+    Action a = actions[action];
+    int[] dependencies = new int[a.inputNodeCount()];
+    int count = 0;
+    for (int i = 0; i < a.inputNodeCount(); i++) {
+      Node node = a.inputNode(i);
+      int producer = producers.get(node.id()) - 1;
+      if (producer == action) {
+        sawInvalidInput.set(true);
+      } else if (producer >= 0) {
+        dependencies[count++] = producer;
+      } else if (sourceFiles[node.id()] == null) {
+        // Racy, but harmless: another thread can only store the same node.
+        sourceFiles[node.id()] = node;
+      }
+    }
+    Arrays.sort(dependencies, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || dependencies[distinct - 1] != dependencies[i]) {
+        dependencies[distinct++] = dependencies[i];
+      }
+    }
+    return distinct == dependencies.length ? dependencies : Arrays.copyOf(dependencies, distinct);
+  }
+
+  private void stat(int id) {
+    if (sourceFiles[id] != null) {
+      stat(sourceFiles[id]);
+    }
+  }
+
+  /** Caches the modification time of the given file in its node, unless it is known already. */
+  static void stat(Node node) {
+    if (node.mtime() != Node.MTIME_UNKNOWN) {
+      return;
+    }
+    node.setMtime(BuildLog.mtime(node.path()));
+  }
+
+  private boolean hasInvalidInput(int action) {
+    return firstInvalidInput(action) != null;
+  }
+
+  /** Returns the first input of the given action that is missing or produced by itself. */
+  private Node firstInvalidInput(int action) {
+    Action a = actions[action];
+    for (int i = 0; i < a.inputNodeCount(); i++) {
+      Node node = a.inputNode(i);
+      int producer = producers.get(node.id()) - 1;
+      if (producer == action || (producer < 0 && node.mtime() == Node.MTIME_MISSING)) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  private void reportInvalidInput(int action) {
+    Node input = firstInvalidInput(action);
+    if (producers.get(input.id()) - 1 == action) {
+      throw new IllegalArgumentException("Cannot add self-edge to " + actions[action]);
+    }
+    throw new IllegalArgumentException("Build target for '" + input + "' not found.");
+  }
+}
@@ -14,22 +14,21 @@
 
 package de.philwo.kunoichi.build;
 
-import de.philwo.kunoichi.datamodel.Action;
-import de.philwo.kunoichi.datamodel.ActionGraph;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
 import de.philwo.kunoichi.ninja.NinjaFile;
+import de.philwo.kunoichi.ninja.NinjaFile.LoadStatistics;
 import de.philwo.kunoichi.utils.Preconditions;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -38,6 +37,9 @@ import picocli.CommandLine.Parameters;
 @Command(name = "build", description = "Build target(s)")
 public class BuildCommand implements Callable<Integer> {
 
+  /** Snapshot of the parsed manifest, which speeds up loading it again if it didn't change. */
+  private static final String SNAPSHOT_FILE = ".kunoichi_snapshot";
+
   private final FileSystem fs;
   private final LocalSpawnStrategy spawnStrategy;
 
@@ -49,6 +51,32 @@ public class BuildCommand implements Callable<Integer> {
       description = "number of parallel jobs")
   private int jobs = Runtime.getRuntime().availableProcessors();
 
+  @Option(
+      names = {"-f", "--file"},
+      description = "manifest to load, which may be gzip-compressed or a FIFO")
+  private Path manifestFile = Path.of("build.ninja");
+
+  @Option(
+      names = "--manifest-from-stdin",
+      description = "read the manifest from stdin while it is being generated")
+  private boolean manifestFromStdin = false;
+
+  @Option(
+      names = "--lazy",
+      description = "only load the build statements that the requested targets depend on")
+  private boolean lazy = false;
+
+  @Option(
+      names = "--optimize-graph",
+      description = "splice phony actions out of the graph before executing it")
+  private boolean optimizeGraph = false;
+
+  @Option(
+      names = "--reduce-order-only",
+      description =
+          "like --optimize-graph, and also remove order-only edges that are implied by other edges")
+  private boolean reduceOrderOnly = false;
+
   @Option(
       names = {"-n", "--nobuild"},
       description = "skip execution phase")
@@ -65,96 +93,249 @@ public class BuildCommand implements Callable<Integer> {
     if (targetsToBuild == null || targetsToBuild.isEmpty()) {
       targetsToBuild = ninjaFile.defaultTargets().items();
     }
-    ActionGraph actionGraph = analyze(ninjaFile);
-    if (!noBuild) {
-      execute(actionGraph);
+    CompactActionGraph actionGraph;
+    if (lazy) {
+      actionGraph = analyzeLazily(ninjaFile);
+    } else if (targetsToBuild.isEmpty()) {
+      actionGraph = analyze(ninjaFile);
+    } else {
+      actionGraph = analyzeTargets(ninjaFile);
+    }
+    int[] roots = resolveTargets(actionGraph);
+    if (optimizeGraph || reduceOrderOnly) {
+      GraphOptimizer.Result optimized = optimize(actionGraph, roots);
+      actionGraph = optimized.graph();
+      roots = optimized.roots();
+    }
+    Path buildDirectory = buildDirectory(ninjaFile);
+    // A dry run must not write to the build directory, so the logs aren't recompacted.
+    Path buildLogPath = buildDirectory.resolve(BuildLog.FILE_NAME);
+    Path depsLogPath = buildDirectory.resolve(DepsLog.FILE_NAME);
+    try (BuildLog buildLog = noBuild ? BuildLog.load(buildLogPath) : BuildLog.open(buildLogPath);
+        DepsLog depsLog =
+            noBuild
+                ? DepsLog.load(depsLogPath, ninjaFile.nodes())
+                : DepsLog.open(depsLogPath, ninjaFile.nodes())) {
+      ExecutionPlan plan = ExecutionPlan.of(actionGraph, roots);
+      DirtyChecker dirtyChecker = new DirtyChecker(actionGraph, buildLog, depsLog);
+      plan = checkDirty(plan, dirtyChecker);
+      if (!noBuild) {
+        execute(actionGraph, plan, buildLog, depsLog, dirtyChecker);
+      }
     }
     return 0;
   }
 
+  /** Returns the directory for Ninja's files, which is ${builddir} if the manifest sets it. */
+  private static Path buildDirectory(NinjaFile ninjaFile) {
+    return ninjaFile.env().hasLocal("builddir")
+        ? Path.of(ninjaFile.env().get("builddir"))
+        : Path.of("");
+  }
+
+  /**
+   * Returns where the snapshot of the given manifest is kept: next to it. Unlike the logs, it can't
+   * go to ${builddir}, as that is a variable of the manifest, which is only known once the snapshot
+   * was already needed to load it. The manifest usually lives in the build directory anyway.
+   */
+  static Path snapshotPath(Path manifestFile) {
+    return manifestFile.resolveSibling(SNAPSHOT_FILE);
+  }
+
   private NinjaFile load() throws IOException {
     Instant start = Instant.now();
     System.err.println("Loading...");
+    NinjaFile ninjaFile = null;
     try {
-      return NinjaFile.parse(Path.of("build.ninja"));
+      if (lazy) {
+        // The snapshot holds complete scopes, so it doesn't help when loading lazily.
+        ninjaFile = NinjaFile.parseLazily(manifestFile);
+      } else if (manifestFromStdin) {
+        // Includes and subninjas are resolved relative to the manifest file, as if it was read
+        // from there.
+        ninjaFile = NinjaFile.parse(manifestFile, System.in, snapshotPath(manifestFile));
+      } else {
+        Path manifest = manifestFile;
+        Path compressed = manifest.resolveSibling(manifest.getFileName() + ".gz");
+        if (!Files.exists(manifest) && Files.exists(compressed)) {
+          manifest = compressed;
+        }
+        ninjaFile = NinjaFile.parse(manifest, snapshotPath(manifestFile));
+      }
+      return ninjaFile;
     } finally {
       long timeElapsed = Duration.between(start, Instant.now()).toMillis();
-      System.err.println("Parsing took " + timeElapsed + "ms.");
+      if (ninjaFile != null) {
+        LoadStatistics stats = ninjaFile.loadStatistics();
+        System.err.println(
+            "Parsing took "
+                + timeElapsed
+                + "ms ("
+                + stats.parsedScopes()
+                + " manifests parsed, "
+                + stats.restoredScopes()
+                + " restored from snapshot).");
+        if (stats.uncompressedBytes() != stats.readBytes()) {
+          System.err.printf(
+              "Read %.1f MB of compressed manifests, %.1f MB uncompressed.%n",
+              stats.readBytes() / 1e6, stats.uncompressedBytes() / 1e6);
+        } else {
+          System.err.printf("Read %.1f MB of manifests.%n", stats.readBytes() / 1e6);
+        }
+        System.err.printf(
+            "Interning shared %d duplicate strings and paths, saving ~%.1f MB of heap.%n",
+            stats.dedupedObjects(), stats.dedupedBytes() / 1e6);
+      } else {
+        System.err.println("Parsing took " + timeElapsed + "ms.");
+      }
     }
   }
 
-  private ActionGraph analyze(NinjaFile ninjaFile) {
+  private CompactActionGraph analyze(NinjaFile ninjaFile) {
     System.err.println("Analyzing...");
     Instant start = Instant.now();
     try {
-      ActionGraph actionGraph = new ActionGraph(ninjaFile.actions().size());
-      ninjaFile.actions().stream().forEach(action -> actionGraph.addAction(action));
-      ninjaFile.actions().stream()
-          .forEach(
-              action ->
-                  action
-                      .inputs()
-                      .forEach(
-                          input -> {
-                            Action generatingAction = actionGraph.getGeneratingAction(input);
-                            if (generatingAction != null) {
-                              actionGraph.putEdge(action, generatingAction);
-                            } else {
-                              if (!Files.exists(input)) {
-                                throw new IllegalArgumentException(
-                                    "Build target for '" + input + "' not found.");
-                              }
-                            }
-                          }));
-      return actionGraph;
+      return ActionGraphAnalyzer.analyze(ninjaFile.nodes(), ninjaFile.actions());
     } finally {
       long timeElapsed = Duration.between(start, Instant.now()).toMillis();
       System.err.println("Building the graph took " + timeElapsed + "ms.");
     }
   }
 
-  private void execute(ActionGraph buildGraph) throws ExecutionException, InterruptedException {
+  /**
+   * Builds the graph of the actions that the requested targets depend on. The validations of these
+   * actions are added to the targets.
+   */
+  private CompactActionGraph analyzeTargets(NinjaFile ninjaFile) {
+    System.err.println("Analyzing...");
     Instant start = Instant.now();
-    System.err.println("Executing...");
+    CompactActionGraph actionGraph = null;
     try {
-      HashMap<Action, CompletableFuture<Void>> futures = new HashMap<>();
-      HashSet<Action> temporaryMarks = new HashSet<>();
-      CompletableFuture<Void> result =
-          CompletableFuture.allOf(
-              targetsToBuild.stream()
-                  .map(buildGraph::getGeneratingAction)
-                  .peek(Preconditions::checkNotNull)
-                  .map(target -> visitAsync(target, buildGraph, futures, temporaryMarks))
-                  .toArray(CompletableFuture[]::new));
-      result.get();
+      TargetGraphAnalyzer.Result result =
+          TargetGraphAnalyzer.analyze(ninjaFile.nodes(), targetsToBuild);
+      actionGraph = result.graph();
+      addValidations(result);
+      return actionGraph;
     } finally {
       long timeElapsed = Duration.between(start, Instant.now()).toMillis();
-      System.err.println("Execution took " + timeElapsed + "ms.");
+      System.err.println(
+          "Building the graph took "
+              + timeElapsed
+              + "ms ("
+              + (actionGraph != null ? actionGraph.size() : 0)
+              + " of "
+              + ninjaFile.actions().size()
+              + " actions needed).");
+    }
+  }
+
+  /**
+   * Like {@link #analyzeTargets}, but walks back from the targets through the output index of a
+   * lazily loaded manifest. Only the actions that are visited are materialized.
+   */
+  private CompactActionGraph analyzeLazily(NinjaFile ninjaFile) throws IOException {
+    System.err.println("Analyzing...");
+    Instant start = Instant.now();
+    try {
+      TargetGraphAnalyzer.Result result =
+          TargetGraphAnalyzer.analyze(
+              ninjaFile.nodes(),
+              targetsToBuild,
+              node -> {
+                try {
+                  return ninjaFile.getGeneratingAction(node);
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              });
+      addValidations(result);
+      return result.graph();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      long timeElapsed = Duration.between(start, Instant.now()).toMillis();
+      LoadStatistics stats = ninjaFile.loadStatistics();
+      System.err.println(
+          "Building the graph took "
+              + timeElapsed
+              + "ms ("
+              + stats.materializedBuilds()
+              + " of "
+              + stats.deferredBuilds()
+              + " build statements materialized).");
     }
   }
 
-  private CompletableFuture<Void> visitAsync(
-      Action action,
-      ActionGraph actionGraph,
-      HashMap<Action, CompletableFuture<Void>> futures,
-      HashSet<Action> temporaryMarks) {
-    CompletableFuture<Void> future = futures.get(action);
-    if (future != null) {
-      return future;
+  /** Adds the validations of the analyzed actions to the targets. */
+  private void addValidations(TargetGraphAnalyzer.Result result) {
+    if (!result.validations().isEmpty()) {
+      targetsToBuild = new ArrayList<>(targetsToBuild);
+      targetsToBuild.addAll(result.validations());
     }
-    if (!temporaryMarks.add(action)) {
-      throw new IllegalArgumentException("Cycle detected in build graph.");
+  }
+
+  /** Returns the IDs of the actions that generate the requested targets. */
+  private int[] resolveTargets(CompactActionGraph buildGraph) {
+    return targetsToBuild.stream()
+        .mapToInt(
+            target -> {
+              int action = buildGraph.getGeneratingAction(target);
+              // Source files can be requested, too, as long as they exist.
+              Preconditions.checkArgument(
+                  action >= 0 || Files.exists(target), "Build target for '%s' not found.", target);
+              return action;
+            })
+        .filter(action -> action >= 0)
+        .toArray();
+  }
+
+  private GraphOptimizer.Result optimize(CompactActionGraph buildGraph, int[] roots) {
+    Instant start = Instant.now();
+    GraphOptimizer.Result result = GraphOptimizer.optimize(buildGraph, roots, reduceOrderOnly);
+    long timeElapsed = Duration.between(start, Instant.now()).toMillis();
+    System.err.println(
+        "Optimizing the graph took "
+            + timeElapsed
+            + "ms (removed "
+            + result.removedActions()
+            + " phony actions and "
+            + result.removedEdges()
+            + " edges, "
+            + result.redundantOrderOnlyEdges()
+            + " of them redundant order-only edges).");
+    return result;
+  }
+
+  /** Returns the part of the given plan that is out of date. */
+  private ExecutionPlan checkDirty(ExecutionPlan plan, DirtyChecker dirtyChecker) {
+    Instant start = Instant.now();
+    ExecutionPlan dirtyPlan = plan.retain(dirtyChecker.check(plan));
+    long timeElapsed = Duration.between(start, Instant.now()).toMillis();
+    System.err.println(
+        "Checking for changes took "
+            + timeElapsed
+            + "ms ("
+            + dirtyPlan.size()
+            + " of "
+            + plan.size()
+            + " actions are dirty).");
+    return dirtyPlan;
+  }
+
+  private void execute(
+      CompactActionGraph buildGraph,
+      ExecutionPlan plan,
+      BuildLog buildLog,
+      DepsLog depsLog,
+      DirtyChecker dirtyChecker)
+      throws ExecutionException, InterruptedException {
+    Instant start = Instant.now();
+    System.err.println("Executing...");
+    try {
+      Scheduler.run(buildGraph, plan, spawnStrategy, buildLog, depsLog, dirtyChecker, jobs);
+    } finally {
+      long timeElapsed = Duration.between(start, Instant.now()).toMillis();
+      System.err.println("Execution took " + timeElapsed + "ms.");
     }
-    future =
-        CompletableFuture.allOf(
-                actionGraph.getDependencies(action).stream()
-                    .map(
-                        predecessor ->
-                            visitAsync(predecessor, actionGraph, futures, temporaryMarks))
-                    .toArray(CompletableFuture[]::new))
-            .thenRunAsync(() -> spawnStrategy.spawn(action));
-    temporaryMarks.remove(action);
-    futures.put(action, future);
-    return future;
   }
 }
@@ -0,0 +1,291 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Node;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The log of the commands that produced each output, in the format of Ninja's ".ninja_log" (v5),
+ * so that Ninja and Kunoichi can share a build directory. Each line holds the start and end time
+ * of an action in milliseconds since the start of its build, the modification time of the output
+ * in nanoseconds, the output and a MurmurHash64A of the command, separated by tabs. Later lines
+ * supersede earlier ones for the same output.
+ *
+ * <p>Entries are appended through a buffer that is flushed at most once per second and when the
+ * log is closed, so finishing actions don't wait for a write each. If the build is killed, the
+ * entries of the last second are lost, and their actions run again in the next build. When the
+ * log is opened and most of its lines are superseded, it is rewritten with only the latest ones.
+ *
+ * <p>Like in Ninja, the outputs of "restat" actions are logged as at least as new as the start of
+ * their command. Such an action may leave an output untouched, and its inputs that are older than
+ * the start then don't make it dirty again.
+ */
+final class BuildLog implements AutoCloseable {
+
+  static final String FILE_NAME = ".ninja_log";
+
+  private static final String HEADER = "# ninja log v5";
+
+  /** Logs with fewer lines than this are never recompacted. */
+  private static final int MIN_COMPACTION_ENTRY_COUNT = 100;
+
+  /** Logs are recompacted when they have this many times more lines than distinct outputs. */
+  private static final int COMPACTION_RATIO = 3;
+
+  private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** The latest log entry of an output. */
+  record Entry(String output, int startTime, int endTime, long mtime, long commandHash) {}
+
+  private final Path path;
+  private final HashMap<String, Entry> entries;
+  private final long startNanos = System.nanoTime();
+  private final Instant startInstant = Instant.now();
+
+  /** Whether the file has to be started from scratch, because it is missing or unreadable. */
+  private final boolean truncate;
+
+  // Guarded by this. The writer is only opened once the first entry is recorded.
+  private Writer writer;
+  private long lastFlushNanos;
+
+  private BuildLog(Path path, HashMap<String, Entry> entries, boolean truncate) {
+    this.path = path;
+    this.entries = entries;
+    this.truncate = truncate;
+  }
+
+  /**
+   * Loads the log at the given path, which doesn't have to exist yet. A log of an unknown version
+   * is ignored and replaced by the first entry that is recorded.
+   */
+  static BuildLog open(Path path) throws IOException {
+    return read(path, true);
+  }
+
+  /**
+   * Like {@link #open(Path)}, but doesn't recompact the log, so that it is left untouched until an
+   * entry is recorded, e.g. for a dry run.
+   */
+  static BuildLog load(Path path) throws IOException {
+    return read(path, false);
+  }
+
+  private static BuildLog read(Path path, boolean recompact) throws IOException {
+    HashMap<String, Entry> entries = new HashMap<>();
+    int lineCount = 0;
+    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+      if (!HEADER.equals(reader.readLine())) {
+        return new BuildLog(path, entries, true);
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Entry entry = parseEntry(line);
+        if (entry != null) {
+          entries.put(entry.output(), entry);
+          lineCount++;
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return new BuildLog(path, entries, true);
+    }
+    if (recompact
+        && lineCount > MIN_COMPACTION_ENTRY_COUNT
+        && lineCount > entries.size() * COMPACTION_RATIO) {
+      recompact(path, entries);
+    }
+    return new BuildLog(path, entries, false);
+  }
+
+  /** Parses a line of the log, or returns null if it is malformed (e.g. cut off by a crash). */
+  private static Entry parseEntry(String line) {
+    String[] fields = line.split("\t", -1);
+    if (fields.length != 5) {
+      return null;
+    }
+    try {
+      return new Entry(
+          fields[3],
+          Integer.parseInt(fields[0]),
+          Integer.parseInt(fields[1]),
+          Long.parseLong(fields[2]),
+          Long.parseUnsignedLong(fields[4], 16));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Replaces the log with one that only contains the given entries. */
+  private static void recompact(Path path, HashMap<String, Entry> entries) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".recompact");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      writer.write(HEADER);
+      writer.write('\n');
+      for (Entry entry : entries.values()) {
+        write(writer, entry);
+      }
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void write(Writer writer, Entry entry) throws IOException {
+    writer.write(
+        entry.startTime()
+            + "\t"
+            + entry.endTime()
+            + "\t"
+            + entry.mtime()
+            + "\t"
+            + entry.output()
+            + "\t"
+            + Long.toHexString(entry.commandHash())
+            + "\n");
+  }
+
+  /** Returns the latest entry of the given output, or null if it was never built. */
+  synchronized Entry lookup(Path output) {
+    return entries.get(output.toString());
+  }
+
+  /** Returns the number of distinct outputs in the log. */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Records that the given action ran from {@code startNanos} to {@code endNanos} (as returned by
+   * {@link System#nanoTime()}). The modification times of its outputs are read from disk.
+   */
+  void record(Action action, long startNanos, long endNanos) {
+    long commandHash = hashCommand(action.command());
+    int startTime = (int) TimeUnit.NANOSECONDS.toMillis(startNanos - this.startNanos);
+    int endTime = (int) TimeUnit.NANOSECONDS.toMillis(endNanos - this.startNanos);
+    List<Path> outputs = action.outputs().toList();
+    long minMtime = 0;
+    if (action.rule().restat()) {
+      Instant start = startInstant.plusNanos(startNanos - this.startNanos);
+      minMtime = TimeUnit.SECONDS.toNanos(start.getEpochSecond()) + start.getNano();
+    }
+    long[] mtimes = new long[outputs.size()];
+    for (int i = 0; i < mtimes.length; i++) {
+      mtimes[i] = Math.max(mtime(outputs.get(i)), minMtime);
+    }
+    synchronized (this) {
+      try {
+        if (writer == null) {
+          openWriter();
+        }
+        for (int i = 0; i < mtimes.length; i++) {
+          Entry entry =
+              new Entry(outputs.get(i).toString(), startTime, endTime, mtimes[i], commandHash);
+          entries.put(entry.output(), entry);
+          write(writer, entry);
+        }
+        if (endNanos - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+          writer.flush();
+          lastFlushNanos = endNanos;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to write " + path, e);
+      }
+    }
+  }
+
+  private void openWriter() throws IOException {
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    writer =
+        truncate
+            ? Files.newBufferedWriter(path, StandardCharsets.UTF_8)
+            : Files.newBufferedWriter(
+                path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    if (truncate) {
+      writer.write(HEADER);
+      writer.write('\n');
+    }
+    lastFlushNanos = System.nanoTime();
+  }
+
+  /**
+   * Returns the modification time of the given file in nanoseconds, or {@link Node#MTIME_MISSING}
+   * if it doesn't exist. Like in Ninja, files from the epoch (e.g. extracted from an archive that
+   * was built with SOURCE_DATE_EPOCH=0) count as 1 nanosecond later, so they aren't mistaken for
+   * missing ones.
+   */
+  static long mtime(Path path) {
+    try {
+      return Math.max(1, Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS));
+    } catch (IOException e) {
+      return Node.MTIME_MISSING;
+    }
+  }
+
+  /** Flushes the entries that were recorded since the last flush. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  /** Returns the hash of a command that Ninja stores in its log (MurmurHash64A). */
+  static long hashCommand(String command) {
+    byte[] data = command.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    final long m = 0xc6a4a7935bd1e995L;
+    final int r = 47;
+    long h = 0xDECAFBADDECAFBADL ^ (data.length * m);
+    int offset = 0;
+    for (; offset + 8 <= data.length; offset += 8) {
+      long k = buffer.getLong(offset);
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h ^= k;
+      h *= m;
+    }
+    int remaining = data.length - offset;
+    if (remaining > 0) {
+      for (int i = remaining - 1; i >= 0; i--) {
+        h ^= (data[offset + i] & 0xFFL) << (8 * i);
+      }
+      h *= m;
+    }
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    return h;
+  }
+}
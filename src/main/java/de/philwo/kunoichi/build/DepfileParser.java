@@ -0,0 +1,101 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Parses the Makefile-style dependency files that compilers like GCC and Clang write with {@code
+ * -MD}, e.g. "foo.o: foo.c foo.h \" followed by more inputs on the next line. Like Ninja, this
+ * accepts several rules per file, and understands the escaping that compilers use for special
+ * characters in paths: "\ " is a space, "\#" is a hash, and "$$" is a dollar sign.
+ */
+final class DepfileParser {
+
+  private DepfileParser() {}
+
+  /** Returns the distinct inputs of all rules in the given depfile, in order. */
+  static List<String> parse(String content) {
+    LinkedHashSet<String> inputs = new LinkedHashSet<>();
+    StringBuilder token = new StringBuilder();
+    boolean inTargets = true;
+    int length = content.length();
+    int i = 0;
+    while (i < length) {
+      char c = content.charAt(i);
+      if (c == '\\') {
+        int backslashes = 0;
+        while (i < length && content.charAt(i) == '\\') {
+          backslashes++;
+          i++;
+        }
+        char next = i < length ? content.charAt(i) : '\0';
+        if (next == '\n' || (next == '\r' && i + 1 < length && content.charAt(i + 1) == '\n')) {
+          // A line continuation, which separates tokens like a space.
+          token.append("\\".repeat(backslashes - 1));
+          i += next == '\r' ? 2 : 1;
+          finishToken(token, inTargets, inputs);
+        } else if (next == ' ' || next == '#') {
+          token.append("\\".repeat(backslashes / 2));
+          if (backslashes % 2 == 1) {
+            token.append(next);
+            i++;
+          }
+        } else {
+          token.append("\\".repeat(backslashes));
+        }
+      } else if (c == '$' && i + 1 < length && content.charAt(i + 1) == '$') {
+        token.append('$');
+        i += 2;
+      } else if (c == ':' && inTargets && endsTarget(content, i + 1)) {
+        finishToken(token, true, inputs);
+        inTargets = false;
+        i++;
+      } else if (c == '\n') {
+        finishToken(token, inTargets, inputs);
+        inTargets = true;
+        i++;
+      } else if (isWhitespace(c)) {
+        finishToken(token, inTargets, inputs);
+        i++;
+      } else {
+        token.append(c);
+        i++;
+      }
+    }
+    finishToken(token, inTargets, inputs);
+    return new ArrayList<>(inputs);
+  }
+
+  /** Returns whether a colon before the given index separates targets from inputs. */
+  private static boolean endsTarget(String content, int index) {
+    return index == content.length() || isWhitespace(content.charAt(index));
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  /** Adds the token to the inputs unless it is a target, and clears it. */
+  private static void finishToken(
+      StringBuilder token, boolean inTargets, LinkedHashSet<String> inputs) {
+    if (!token.isEmpty() && !inTargets) {
+      inputs.add(token.toString());
+    }
+    token.setLength(0);
+  }
+}
@@ -0,0 +1,398 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The inputs that actions discovered while they ran, e.g. the headers that a compiler read, in the
+ * binary format of Ninja's ".ninja_deps" (version 4), so that Ninja and Kunoichi can share a build
+ * directory.
+ *
+ * <p>After a signature and the version, the file is a sequence of records, each starting with its
+ * size. Path records assign the next ID to a path. Deps records (whose size has the high bit set)
+ * hold the ID of an output, its modification time and the IDs of its inputs. Later deps records of
+ * an output supersede earlier ones.
+ *
+ * <p>The file is memory-mapped when it is opened, and only the paths and the offset of the latest
+ * deps record of each output are indexed. The inputs are read from the mapping when they are
+ * looked up. Like the {@link BuildLog}, new records are appended through a buffer that is flushed
+ * at most once per second and when the log is closed. A record that was cut off by a crash is
+ * dropped, and the log is recompacted when most of its deps records are superseded.
+ */
+final class DepsLog implements AutoCloseable {
+
+  static final String FILE_NAME = ".ninja_deps";
+
+  private static final byte[] SIGNATURE = "# ninjadeps\n".getBytes(StandardCharsets.US_ASCII);
+  private static final int VERSION = 4;
+  private static final int HEADER_SIZE = SIGNATURE.length + 4;
+  private static final int MAX_RECORD_SIZE = (1 << 19) - 1;
+  private static final int DEPS_RECORD_FLAG = 0x80000000;
+
+  /** Logs with fewer deps records than this are never recompacted. */
+  private static final int MIN_COMPACTION_ENTRY_COUNT = 1000;
+
+  /** Logs are recompacted when they have this many times more deps records than outputs. */
+  private static final int COMPACTION_RATIO = 3;
+
+  private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** The inputs of an output, as recorded when the output had the given modification time. */
+  record Deps(long mtime, Node[] inputs) {}
+
+  private final Path path;
+  private final NodeTable nodes;
+
+  /** The mapped file, or null if it was empty or unreadable. */
+  private final MappedByteBuffer buffer;
+
+  /** The size of the valid part of the file, or 0 if it has to be started from scratch. */
+  private final long validSize;
+
+  /** The paths of the IDs that were read from the file. */
+  private final String[] loadedPaths;
+
+  /** The offset of the latest deps record of each loaded ID, or 0 if there is none. */
+  private final int[] depsOffsets;
+
+  /** The nodes of the loaded IDs, resolved on first use. Races are harmless. */
+  private final Node[] loadedNodes;
+
+  private final ConcurrentHashMap<String, Integer> ids;
+
+  // Guarded by this. The stream is only opened once the first record is written.
+  private OutputStream out;
+  private long lastFlushNanos;
+
+  private DepsLog(
+      Path path,
+      NodeTable nodes,
+      MappedByteBuffer buffer,
+      long validSize,
+      String[] loadedPaths,
+      int[] depsOffsets,
+      ConcurrentHashMap<String, Integer> ids) {
+    this.path = path;
+    this.nodes = nodes;
+    this.buffer = buffer;
+    this.validSize = validSize;
+    this.loadedPaths = loadedPaths;
+    this.depsOffsets = depsOffsets;
+    this.loadedNodes = new Node[loadedPaths.length];
+    this.ids = ids;
+  }
+
+  /**
+   * Loads the log at the given path, which doesn't have to exist yet. The paths in the log are
+   * resolved to nodes of the given table. A log of an unknown version is ignored and replaced as
+   * soon as the first record is written.
+   */
+  static DepsLog open(Path path, NodeTable nodes) throws IOException {
+    DepsLog log = load(path, nodes);
+    if (log.needsRecompaction()) {
+      log.recompact();
+      log = load(path, nodes);
+    }
+    return log;
+  }
+
+  /**
+   * Like {@link #open(Path, NodeTable)}, but doesn't recompact the log, so that it is left
+   * untouched until a record is written, e.g. for a dry run.
+   */
+  static DepsLog load(Path path, NodeTable nodes) throws IOException {
+    ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    if (!Files.exists(path)) {
+      return new DepsLog(path, nodes, null, 0, new String[0], new int[0], ids);
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (!hasValidHeader(buffer)) {
+      return new DepsLog(path, nodes, null, 0, new String[0], new int[0], ids);
+    }
+
+    String[] paths = new String[1024];
+    int[] depsOffsets = new int[1024];
+    int pathCount = 0;
+    int position = HEADER_SIZE;
+    while (position + 4 <= buffer.limit()) {
+      int header = buffer.getInt(position);
+      int size = header & ~DEPS_RECORD_FLAG;
+      int payload = position + 4;
+      if (size > MAX_RECORD_SIZE || size % 4 != 0 || payload + size > buffer.limit()) {
+        break;
+      }
+      if ((header & DEPS_RECORD_FLAG) != 0) {
+        if (size < 12 || !hasValidIds(buffer, payload, size, pathCount)) {
+          break;
+        }
+        depsOffsets[buffer.getInt(payload)] = payload;
+      } else {
+        if (size < 4 || buffer.getInt(payload + size - 4) != ~pathCount) {
+          break;
+        }
+        int length = size - 4;
+        while (length > 0 && buffer.get(payload + length - 1) == 0) {
+          length--;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(payload, bytes);
+        if (pathCount == paths.length) {
+          paths = Arrays.copyOf(paths, pathCount * 2);
+          depsOffsets = Arrays.copyOf(depsOffsets, pathCount * 2);
+        }
+        paths[pathCount] = new String(bytes, StandardCharsets.UTF_8);
+        if (ids.putIfAbsent(paths[pathCount], pathCount) != null) {
+          break;
+        }
+        pathCount++;
+      }
+      position = payload + size;
+    }
+    return new DepsLog(
+        path,
+        nodes,
+        buffer,
+        position,
+        Arrays.copyOf(paths, pathCount),
+        Arrays.copyOf(depsOffsets, pathCount),
+        ids);
+  }
+
+  private static boolean hasValidHeader(ByteBuffer buffer) {
+    if (buffer.limit() < HEADER_SIZE) {
+      return false;
+    }
+    for (int i = 0; i < SIGNATURE.length; i++) {
+      if (buffer.get(i) != SIGNATURE[i]) {
+        return false;
+      }
+    }
+    return buffer.getInt(SIGNATURE.length) == VERSION;
+  }
+
+  /** Returns whether the output and input IDs of a deps record refer to known paths. */
+  private static boolean hasValidIds(ByteBuffer buffer, int payload, int size, int pathCount) {
+    for (int offset = 0; offset < size; offset += offset == 0 ? 12 : 4) {
+      int id = buffer.getInt(payload + offset);
+      if (id < 0 || id >= pathCount) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean needsRecompaction() {
+    if (buffer == null) {
+      return false;
+    }
+    int depsRecords = 0;
+    int outputs = 0;
+    for (int position = HEADER_SIZE; position < validSize; ) {
+      int header = buffer.getInt(position);
+      if ((header & DEPS_RECORD_FLAG) != 0) {
+        depsRecords++;
+      }
+      position += 4 + (header & ~DEPS_RECORD_FLAG);
+    }
+    for (int offset : depsOffsets) {
+      if (offset != 0) {
+        outputs++;
+      }
+    }
+    return depsRecords > MIN_COMPACTION_ENTRY_COUNT && depsRecords > outputs * COMPACTION_RATIO;
+  }
+
+  /** Replaces the log with one that only contains the latest deps record of each output. */
+  private void recompact() throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".recompact");
+    ConcurrentHashMap<String, Integer> newIds = new ConcurrentHashMap<>();
+    try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+      writeHeader(stream);
+      for (int output = 0; output < depsOffsets.length; output++) {
+        if (depsOffsets[output] == 0) {
+          continue;
+        }
+        Deps deps = deps(output);
+        int[] inputIds = new int[deps.inputs().length];
+        for (int i = 0; i < inputIds.length; i++) {
+          inputIds[i] = id(stream, newIds, loadedPaths[inputId(output, i)]);
+        }
+        writeDeps(stream, id(stream, newIds, loadedPaths[output]), deps.mtime(), inputIds);
+      }
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Returns the dependencies that were recorded for the given output, or null if there are none. */
+  Deps lookup(Node output) {
+    Integer id = ids.get(output.name());
+    if (id == null || id >= depsOffsets.length || depsOffsets[id] == 0) {
+      return null;
+    }
+    return deps(id);
+  }
+
+  private Deps deps(int output) {
+    int payload = depsOffsets[output];
+    int count = ((buffer.getInt(payload - 4) & ~DEPS_RECORD_FLAG) - 12) / 4;
+    Node[] inputs = new Node[count];
+    for (int i = 0; i < count; i++) {
+      inputs[i] = node(inputId(output, i));
+    }
+    return new Deps(buffer.getLong(payload + 4), inputs);
+  }
+
+  private int inputId(int output, int index) {
+    return buffer.getInt(depsOffsets[output] + 12 + 4 * index);
+  }
+
+  private Node node(int id) {
+    Node node = loadedNodes[id];
+    if (node == null) {
+      node = nodes.intern(loadedPaths[id]);
+      loadedNodes[id] = node;
+    }
+    return node;
+  }
+
+  /** Returns the table to which the paths of this log are resolved. */
+  NodeTable nodes() {
+    return nodes;
+  }
+
+  /**
+   * Records that the outputs of the given action depend on the given inputs, as of the given
+   * modification time of its first output.
+   */
+  void record(Action action, long mtime, List<String> inputs) throws IOException {
+    String[] inputPaths = new String[inputs.size()];
+    for (int i = 0; i < inputPaths.length; i++) {
+      inputPaths[i] = nodes.intern(inputs.get(i)).name();
+    }
+    if (12 + 4L * inputPaths.length > MAX_RECORD_SIZE) {
+      // Ninja can't read such records either. The action just runs again in the next build.
+      return;
+    }
+    synchronized (this) {
+      if (out == null) {
+        openStream();
+      }
+      int[] inputIds = new int[inputPaths.length];
+      for (int i = 0; i < inputIds.length; i++) {
+        inputIds[i] = id(out, ids, inputPaths[i]);
+      }
+      for (int i = 0; i < action.outputNodeCount(); i++) {
+        writeDeps(out, id(out, ids, action.outputNode(i).name()), mtime, inputIds);
+      }
+      long now = System.nanoTime();
+      if (now - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+        out.flush();
+        lastFlushNanos = now;
+      }
+    }
+  }
+
+  /**
+   * Returns the ID of the given path, which gets a path record if it doesn't have one yet. The IDs
+   * are dense, so the next one is the number of paths.
+   */
+  private int id(OutputStream stream, ConcurrentHashMap<String, Integer> ids, String path)
+      throws IOException {
+    Integer id = ids.get(path);
+    if (id != null) {
+      return id;
+    }
+    int newId = ids.size();
+    writePath(stream, path, newId);
+    ids.put(path, newId);
+    return newId;
+  }
+
+  private void openStream() throws IOException {
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    // Drops a record that was cut off, or an old log that is replaced.
+    channel.truncate(validSize);
+    channel.position(validSize);
+    out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+    if (validSize == 0) {
+      ids.clear();
+      writeHeader(out);
+    }
+    lastFlushNanos = System.nanoTime();
+  }
+
+  private static void writeHeader(OutputStream stream) throws IOException {
+    stream.write(SIGNATURE);
+    stream.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(VERSION).array());
+  }
+
+  private static void writePath(OutputStream stream, String path, int id) throws IOException {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    int padding = (4 - bytes.length % 4) % 4;
+    int size = bytes.length + padding + 4;
+    ByteBuffer record = ByteBuffer.allocate(4 + size).order(ByteOrder.LITTLE_ENDIAN);
+    record.putInt(size).put(bytes).position(4 + bytes.length + padding);
+    record.putInt(~id);
+    stream.write(record.array());
+  }
+
+  private static void writeDeps(OutputStream stream, int output, long mtime, int[] inputs)
+      throws IOException {
+    int size = 12 + 4 * inputs.length;
+    ByteBuffer record = ByteBuffer.allocate(4 + size).order(ByteOrder.LITTLE_ENDIAN);
+    record.putInt(size | DEPS_RECORD_FLAG).putInt(output).putLong(mtime);
+    for (int input : inputs) {
+      record.putInt(input);
+    }
+    stream.write(record.array());
+  }
+
+  /** Flushes the records that were written since the last flush. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+}
@@ -0,0 +1,289 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.Rule;
+import de.philwo.kunoichi.utils.Preconditions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which actions of an {@link ExecutionPlan} have to run, by comparing the modification
+ * times of their inputs and outputs like Ninja does. An action is dirty if one of its outputs is
+ * missing, if one of its explicit or implicit inputs is newer than its oldest output, or if it
+ * depends on a dirty action through such an input. Order-only inputs only affect the order in
+ * which actions run, not whether they run.
+ *
+ * <p>If there is a {@link BuildLog}, an action is also dirty if its command isn't the one that
+ * last produced its outputs, if it never ran at all, or if the modification time that was logged
+ * for an output is older than its newest input. The command of generator actions isn't checked.
+ *
+ * <p>If there is a {@link DepsLog}, the inputs that an action discovered when it last ran (e.g. the
+ * headers that a compiler read) count as implicit inputs. They come from the deps log for rules
+ * with "deps", and from the depfile itself for rules with only a "depfile". An action whose
+ * discovered inputs are unknown, out of date or missing is dirty.
+ *
+ * <p>An action that is only dirty because of its dependencies may turn out to be clean once they
+ * ran, if "restat" actions among them left their outputs untouched. The {@link Scheduler} then
+ * marks them as clean and has their dependents {@link #recheck(int) checked again}. For the same
+ * reason, the outputs of restat actions are compared to their inputs using the time that was
+ * logged for them, which is the latest time at which they were known to be up to date.
+ *
+ * <p>Phony actions have no outputs of their own: they are as new as the newest of their inputs, and
+ * dirty if one of those is produced by a dirty action. A phony action without inputs is dirty if
+ * its output doesn't exist, so that everything that depends on it always runs. This also applies
+ * to phony actions that were spliced out of the graph by the {@link GraphOptimizer}.
+ */
+final class DirtyChecker {
+
+  /** The modification time of inputs that are produced by dirty actions, newer than anything. */
+  private static final long DIRTY = Long.MAX_VALUE;
+
+  /** The discovered inputs of actions for which they are unknown. */
+  private static final Node[] MISSING_DEPS = new Node[0];
+
+  private final CompactActionGraph graph;
+  private final BuildLog buildLog;
+  private final DepsLog depsLog;
+  private final boolean[] dirty;
+
+  /** The discovered inputs of each action, {@link #MISSING_DEPS}, or null if it has none. */
+  private final Node[][] discoveredInputs;
+
+  /** The hash of the command of each action, if there is a build log. */
+  private final long[] commandHashes;
+
+  /** The modification time of the newest input of each phony action, or {@link #DIRTY}. */
+  private final long[] phonyMtimes;
+
+  /**
+   * The ID of the action that produces each node plus one, or zero for source files, indexed by
+   * node ID. Nodes that were created after the graph, e.g. for discovered inputs, are not covered.
+   */
+  private final int[] producers;
+
+  /** Creates a checker that consults the given logs, each of which may be null. */
+  DirtyChecker(CompactActionGraph graph, BuildLog buildLog, DepsLog depsLog) {
+    this.graph = graph;
+    this.buildLog = buildLog;
+    this.depsLog = depsLog;
+    this.dirty = new boolean[graph.size()];
+    this.discoveredInputs = new Node[graph.size()][];
+    this.commandHashes = buildLog != null ? new long[graph.size()] : null;
+    this.phonyMtimes = new long[graph.size()];
+    this.producers = indexProducers(graph);
+  }
+
+  private static int[] indexProducers(CompactActionGraph graph) {
+    int maxId = -1;
+    for (int action = 0; action < graph.size(); action++) {
+      Action a = graph.action(action);
+      Preconditions.checkArgument(a.hasNodes(), "Action %s has no nodes", a);
+      for (int i = 0; i < a.outputNodeCount(); i++) {
+        maxId = Math.max(maxId, a.outputNode(i).id());
+      }
+    }
+    int[] producers = new int[maxId + 1];
+    for (int action = 0; action < graph.size(); action++) {
+      Action a = graph.action(action);
+      for (int i = 0; i < a.outputNodeCount(); i++) {
+        producers[a.outputNode(i).id()] = action + 1;
+      }
+    }
+    return producers;
+  }
+
+  /**
+   * Returns which of the actions of the given plan are dirty, indexed by their ID. The array is
+   * updated when actions are {@link #markClean(int) marked as clean} later on.
+   */
+  boolean[] check(ExecutionPlan plan) {
+    // The files are stat'ed and the commands hashed in parallel up front. Dirtiness has to be
+    // propagated from the dependencies to their dependents, so that part runs in plan order.
+    Arrays.stream(plan.order()).parallel().forEach(this::statNodes);
+    for (int action : plan.order()) {
+      Action a = graph.action(action);
+      dirty[action] = GraphOptimizer.isPhony(a) ? checkPhony(action, a) : check(action, a);
+    }
+    return dirty;
+  }
+
+  /**
+   * Checks again whether the given action is dirty, after some of its dependencies were marked as
+   * clean, and returns the result. All of its dependencies must have finished.
+   */
+  boolean recheck(int action) {
+    Action a = graph.action(action);
+    dirty[action] = GraphOptimizer.isPhony(a) ? checkPhony(action, a) : check(action, a);
+    return dirty[action];
+  }
+
+  /**
+   * Marks the given action as clean, because it turned out not to change its outputs (or didn't
+   * run), so that its dependents see the modification times that their inputs still have.
+   */
+  void markClean(int action) {
+    dirty[action] = false;
+  }
+
+  private void statNodes(int action) {
+    Action a = graph.action(action);
+    for (int i = 0; i < a.outputNodeCount(); i++) {
+      ActionGraphAnalyzer.stat(a.outputNode(i));
+    }
+    for (int i = 0; i < hardInputCount(a); i++) {
+      ActionGraphAnalyzer.stat(a.inputNode(i));
+    }
+    if (depsLog != null && !GraphOptimizer.isPhony(a)) {
+      Node[] discovered = loadDiscoveredInputs(a);
+      if (discovered != null) {
+        for (Node input : discovered) {
+          ActionGraphAnalyzer.stat(input);
+        }
+      }
+      discoveredInputs[action] = discovered;
+    }
+    if (commandHashes != null && !GraphOptimizer.isPhony(a) && !a.rule().generator()) {
+      commandHashes[action] = BuildLog.hashCommand(a.command());
+    }
+  }
+
+  private Node[] loadDiscoveredInputs(Action a) {
+    if (a.rule().deps() != Rule.Deps.NONE) {
+      if (a.outputNodeCount() == 0) {
+        return null;
+      }
+      DepsLog.Deps deps = depsLog.lookup(a.outputNode(0));
+      // Deps that are older than the output belong to an earlier run of the action.
+      if (deps == null || deps.mtime() < a.outputNode(0).mtime()) {
+        return MISSING_DEPS;
+      }
+      return deps.inputs();
+    }
+    if (!a.hasDepFile()) {
+      return null;
+    }
+    List<String> inputs;
+    try {
+      inputs = DepfileParser.parse(Files.readString(a.depFile()));
+    } catch (IOException e) {
+      return MISSING_DEPS;
+    }
+    Node[] nodes = new Node[inputs.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = depsLog.nodes().intern(inputs.get(i));
+    }
+    return nodes;
+  }
+
+  /** Returns the number of explicit and implicit inputs, which come before the order-only ones. */
+  private static int hardInputCount(Action a) {
+    return a.inputNodeCount() - a.orderOnlyInputs().size();
+  }
+
+  private boolean check(int action, Action a) {
+    long newestInput = Node.MTIME_MISSING;
+    for (int i = 0; i < hardInputCount(a); i++) {
+      newestInput = Math.max(newestInput, mtime(a.inputNode(i)));
+      if (newestInput == DIRTY) {
+        return true;
+      }
+    }
+    Node[] discovered = discoveredInputs[action];
+    if (discovered == MISSING_DEPS) {
+      return true;
+    }
+    if (discovered != null) {
+      for (Node input : discovered) {
+        long mtime = mtime(input);
+        if (mtime == DIRTY || mtime == Node.MTIME_MISSING) {
+          return true;
+        }
+        newestInput = Math.max(newestInput, mtime);
+      }
+    }
+    for (int i = 0; i < a.outputNodeCount(); i++) {
+      Node output = a.outputNode(i);
+      if (output.mtime() == Node.MTIME_MISSING) {
+        return true;
+      }
+      BuildLog.Entry entry = buildLog != null ? buildLog.lookup(output.path()) : null;
+      long mtime = output.mtime();
+      if (entry != null && a.rule().restat()) {
+        mtime = Math.max(mtime, entry.mtime());
+      }
+      if (mtime < newestInput) {
+        return true;
+      }
+      if (buildLog != null) {
+        boolean generator = a.rule().generator();
+        if (entry == null) {
+          if (!generator) {
+            return true;
+          }
+        } else if (entry.mtime() < newestInput
+            || (!generator && entry.commandHash() != commandHashes[action])) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean checkPhony(int action, Action a) {
+    phonyMtimes[action] = newestInput(a);
+    return phonyMtimes[action] == DIRTY;
+  }
+
+  /** Returns the modification time of the given input, or {@link #DIRTY}. */
+  private long mtime(Node input) {
+    int producer = input.id() < producers.length ? producers[input.id()] - 1 : -1;
+    if (producer >= 0) {
+      if (dirty[producer]) {
+        return DIRTY;
+      }
+      return GraphOptimizer.isPhony(graph.action(producer)) ? phonyMtimes[producer] : input.mtime();
+    }
+    // Phony actions that were spliced out of the graph are resolved on the fly.
+    Action spliced = input.producer();
+    if (spliced != null && spliced.hasNodes() && GraphOptimizer.isPhony(spliced)) {
+      return newestInput(spliced);
+    }
+    ActionGraphAnalyzer.stat(input);
+    return input.mtime();
+  }
+
+  /** Returns the modification time of the newest input of the given phony action, or DIRTY. */
+  private long newestInput(Action phony) {
+    if (hardInputCount(phony) == 0) {
+      if (phony.outputNodeCount() == 0) {
+        return DIRTY;
+      }
+      ActionGraphAnalyzer.stat(phony.outputNode(0));
+      long mtime = phony.outputNode(0).mtime();
+      return mtime == Node.MTIME_MISSING ? DIRTY : mtime;
+    }
+    long newest = Node.MTIME_MISSING;
+    for (int i = 0; i < hardInputCount(phony); i++) {
+      newest = Math.max(newest, mtime(phony.inputNode(i)));
+    }
+    return newest;
+  }
+}
@@ -0,0 +1,247 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * The actions that have to run to build a set of targets, in topological order (dependencies
+ * first), along with the number of actions of the plan that each action waits for, and the ones
+ * that wait for it. The order is computed with Kahn's algorithm and without recursion, so
+ * arbitrarily long dependency chains are fine.
+ */
+final class ExecutionPlan {
+
+  private final int[] order;
+  private final int[] dependencyCounts;
+
+  /** The actions that wait for action i are {@code dependents[dependentStarts[i]..[i + 1])}. */
+  private final int[] dependentStarts;
+
+  private final int[] dependents;
+
+  private ExecutionPlan(
+      int[] order, int[] dependencyCounts, int[] dependentStarts, int[] dependents) {
+    this.order = order;
+    this.dependencyCounts = dependencyCounts;
+    this.dependentStarts = dependentStarts;
+    this.dependents = dependents;
+  }
+
+  /**
+   * Returns the plan for the given root actions and everything they depend on. Throws an {@link
+   * IllegalArgumentException} with the path of a cycle if they depend on one.
+   */
+  static ExecutionPlan of(CompactActionGraph graph, int[] roots) {
+    boolean[] needed = new boolean[graph.size()];
+    int[] stack = new int[graph.size()];
+    int stackSize = 0;
+    int neededCount = 0;
+    for (int root : roots) {
+      if (!needed[root]) {
+        needed[root] = true;
+        stack[stackSize++] = root;
+        neededCount++;
+      }
+    }
+    while (stackSize > 0) {
+      int action = stack[--stackSize];
+      for (int i = 0; i < graph.dependencyCount(action); i++) {
+        int dependency = graph.dependency(action, i);
+        if (!needed[dependency]) {
+          needed[dependency] = true;
+          stack[stackSize++] = dependency;
+          neededCount++;
+        }
+      }
+    }
+
+    // Everything that a needed action depends on is needed as well, so the dependency counts don't
+    // have to be filtered. Unneeded actions are marked with -1.
+    int[] dependencyCounts = new int[graph.size()];
+    int[] remaining = new int[graph.size()];
+    int[] order = new int[neededCount];
+    int orderSize = 0;
+    for (int action = 0; action < graph.size(); action++) {
+      dependencyCounts[action] = needed[action] ? graph.dependencyCount(action) : -1;
+      remaining[action] = dependencyCounts[action];
+      if (remaining[action] == 0) {
+        order[orderSize++] = action;
+      }
+    }
+    for (int next = 0; next < orderSize; next++) {
+      int action = order[next];
+      for (int i = 0; i < graph.dependentCount(action); i++) {
+        int dependent = graph.dependent(action, i);
+        if (needed[dependent] && --remaining[dependent] == 0) {
+          order[orderSize++] = dependent;
+        }
+      }
+    }
+    if (orderSize < neededCount) {
+      throw new IllegalArgumentException(
+          "Cycle detected in build graph: " + describeCycle(graph, remaining));
+    }
+
+    int[] dependentStarts = new int[graph.size() + 1];
+    for (int action = 0; action < graph.size(); action++) {
+      int count = 0;
+      if (needed[action]) {
+        for (int i = 0; i < graph.dependentCount(action); i++) {
+          if (needed[graph.dependent(action, i)]) {
+            count++;
+          }
+        }
+      }
+      dependentStarts[action + 1] = dependentStarts[action] + count;
+    }
+    int[] dependents = new int[dependentStarts[graph.size()]];
+    for (int action = 0; action < graph.size(); action++) {
+      int next = dependentStarts[action];
+      for (int i = 0; needed[action] && i < graph.dependentCount(action); i++) {
+        int dependent = graph.dependent(action, i);
+        if (needed[dependent]) {
+          dependents[next++] = dependent;
+        }
+      }
+    }
+    return new ExecutionPlan(order, dependencyCounts, dependentStarts, dependents);
+  }
+
+  /**
+   * Finds a cycle among the actions that Kahn's algorithm couldn't order, i.e. whose {@code
+   * remaining} count is still positive. Each of them depends on at least one other such action, so
+   * following those dependencies must eventually lead back to an action that was already seen.
+   */
+  private static String describeCycle(CompactActionGraph graph, int[] remaining) {
+    int start = 0;
+    while (remaining[start] <= 0) {
+      start++;
+    }
+    int[] positions = new int[graph.size()];
+    Arrays.fill(positions, -1);
+    int[] path = new int[graph.size()];
+    int length = 0;
+    int action = start;
+    while (positions[action] < 0) {
+      positions[action] = length;
+      path[length++] = action;
+      int next = -1;
+      for (int i = 0; i < graph.dependencyCount(action) && next < 0; i++) {
+        int dependency = graph.dependency(action, i);
+        if (remaining[dependency] > 0) {
+          next = dependency;
+        }
+      }
+      action = next;
+    }
+    StringJoiner cycle = new StringJoiner(" -> ");
+    for (int i = positions[action]; i < length; i++) {
+      cycle.add(describe(graph.action(path[i])));
+    }
+    return cycle.add(describe(graph.action(action))).toString();
+  }
+
+  private static String describe(Action action) {
+    return action.outputs().findFirst().map(Object::toString).orElse(action.toString());
+  }
+
+  /**
+   * Returns a plan with only the selected actions of this one, e.g. the dirty ones. Each of them
+   * waits for its nearest selected transitive dependencies, i.e. the ones that it reaches without
+   * passing through another selected action. Like in Ninja, where clean actions stay in the plan
+   * and pass on the completion of their dependencies, an action still waits for a selected action
+   * that it only reaches through unselected ones.
+   */
+  ExecutionPlan retain(boolean[] selected) {
+    int size = dependencyCounts.length;
+    int[] retainedOrder = Arrays.stream(order).filter(action -> selected[action]).toArray();
+    int[] retainedCounts = new int[size];
+    Arrays.fill(retainedCounts, -1);
+    for (int action : retainedOrder) {
+      retainedCounts[action] = 0;
+    }
+
+    // Walks forward from each selected action through the unselected ones. Each action is visited
+    // at most once per walk, which is marked by storing the ID of the selected action it started
+    // from.
+    int[] visitedFrom = new int[size];
+    Arrays.fill(visitedFrom, -1);
+    int[] stack = new int[size];
+    int[] retainedStarts = new int[size + 1];
+    int[] retainedDependents = new int[Math.max(16, retainedOrder.length)];
+    int dependentCount = 0;
+    for (int action = 0; action < size; action++) {
+      retainedStarts[action] = dependentCount;
+      if (retainedCounts[action] < 0) {
+        continue;
+      }
+      int stackSize = 0;
+      stack[stackSize++] = action;
+      while (stackSize > 0) {
+        int current = stack[--stackSize];
+        for (int i = dependentStarts[current]; i < dependentStarts[current + 1]; i++) {
+          int dependent = dependents[i];
+          if (visitedFrom[dependent] == action) {
+            continue;
+          }
+          visitedFrom[dependent] = action;
+          if (selected[dependent]) {
+            if (dependentCount == retainedDependents.length) {
+              retainedDependents = Arrays.copyOf(retainedDependents, dependentCount * 2);
+            }
+            retainedDependents[dependentCount++] = dependent;
+            retainedCounts[dependent]++;
+          } else {
+            stack[stackSize++] = dependent;
+          }
+        }
+      }
+    }
+    retainedStarts[size] = dependentCount;
+    return new ExecutionPlan(retainedOrder, retainedCounts, retainedStarts, retainedDependents);
+  }
+
+  /** Returns the IDs of the needed actions, each one after all of its dependencies. */
+  int[] order() {
+    return order;
+  }
+
+  /**
+   * Returns the number of actions of this plan that the given action waits for, or -1 if it isn't
+   * part of the plan.
+   */
+  int dependencyCount(int action) {
+    return dependencyCounts[action];
+  }
+
+  /** Returns the number of actions of this plan that wait for the given action. */
+  int dependentCount(int action) {
+    return dependentStarts[action + 1] - dependentStarts[action];
+  }
+
+  /** Returns the given action's dependent with the given index. */
+  int dependent(int action, int index) {
+    return dependents[dependentStarts[action] + index];
+  }
+
+  /** Returns the number of actions that have to run. */
+  int size() {
+    return order.length;
+  }
+}
@@ -0,0 +1,262 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shrinks the part of an action graph that is needed to build a set of root actions before it is
+ * scheduled.
+ *
+ * <p>Phony actions don't run anything, so they are spliced out: their dependents depend on their
+ * dependencies directly instead. A phony action is only spliced out if that doesn't add edges, i.e.
+ * if the product of its number of dependencies and dependents isn't larger than their sum, so a
+ * phony group of many actions that many other actions depend on is kept. Edges that become
+ * duplicates through splicing are dropped.
+ *
+ * <p>Optionally, order-only edges that are implied by another path through the graph are removed
+ * as well (a transitive reduction restricted to order-only edges). Each action's search for such
+ * paths is bounded, so an edge may be kept even though it is redundant.
+ *
+ * <p>The resulting graph only contains the needed actions, numbered in topological order.
+ */
+final class GraphOptimizer {
+
+  /** The maximum number of actions that are visited to check the order-only edges of an action. */
+  private static final int MAX_VISITS_PER_ACTION = 10_000;
+
+  /** The optimized graph, its roots, and how many actions and edges were removed. */
+  record Result(
+      CompactActionGraph graph,
+      int[] roots,
+      int removedActions,
+      int removedEdges,
+      int redundantOrderOnlyEdges) {}
+
+  private final CompactActionGraph graph;
+  private final boolean reduceOrderOnlyEdges;
+
+  /** The dependencies (old IDs) of each spliced phony action, with phony ones spliced, or null. */
+  private final int[][] expansions;
+
+  /** The new ID of each kept action, or -1. */
+  private final int[] newIds;
+
+  /** The stamp of the row that each action was last added to, to skip duplicates. */
+  private final int[] seen;
+
+  private int stamp;
+  private int[] row = new int[16];
+  private int rowSize;
+
+  private GraphOptimizer(CompactActionGraph graph, boolean reduceOrderOnlyEdges) {
+    this.graph = graph;
+    this.reduceOrderOnlyEdges = reduceOrderOnlyEdges;
+    this.expansions = new int[graph.size()][];
+    this.newIds = new int[graph.size()];
+    this.seen = new int[graph.size()];
+    Arrays.fill(newIds, -1);
+  }
+
+  /**
+   * Returns the optimized graph of the given root actions and everything they depend on. Throws an
+   * {@link IllegalArgumentException} if they depend on a cycle.
+   */
+  static Result optimize(CompactActionGraph graph, int[] roots, boolean reduceOrderOnlyEdges) {
+    return new GraphOptimizer(graph, reduceOrderOnlyEdges).optimize(roots);
+  }
+
+  /** Returns whether the given action doesn't run anything. */
+  static boolean isPhony(Action action) {
+    return action.rule() == Rule.PHONY_RULE || action.rule().name().equals("phony");
+  }
+
+  private Result optimize(int[] roots) {
+    ExecutionPlan plan = ExecutionPlan.of(graph, roots);
+    int[] order = plan.order();
+    int[] dependentCounts = new int[graph.size()];
+    int neededEdges = 0;
+    for (int action : order) {
+      neededEdges += graph.dependencyCount(action);
+      for (int i = 0; i < graph.dependencyCount(action); i++) {
+        dependentCounts[graph.dependency(action, i)]++;
+      }
+    }
+
+    // Dependencies come first in the plan, so the expansions of spliced phony actions are known
+    // before they are needed, and the new IDs are in topological order as well.
+    Action[] actions = new Action[order.length];
+    int[][] rows = new int[order.length][];
+    int[] orderOnlyStarts = new int[order.length];
+    int size = 0;
+    for (int action : order) {
+      int orderOnlyStart = collectDependencies(action);
+      if (isPhony(graph.action(action))) {
+        long fanIn = rowSize;
+        long fanOut = dependentCounts[action];
+        if (fanIn * fanOut <= fanIn + fanOut) {
+          expansions[action] = Arrays.copyOf(row, rowSize);
+          continue;
+        }
+      }
+      int[] dependencies = new int[rowSize];
+      for (int i = 0; i < rowSize; i++) {
+        dependencies[i] = newIds[row[i]];
+      }
+      newIds[action] = size;
+      actions[size] = graph.action(action);
+      rows[size] = dependencies;
+      orderOnlyStarts[size] = orderOnlyStart;
+      size++;
+    }
+    actions = Arrays.copyOf(actions, size);
+    rows = Arrays.copyOf(rows, size);
+
+    int redundantOrderOnlyEdges = 0;
+    if (reduceOrderOnlyEdges) {
+      int[] visited = new int[size];
+      int[] stack = new int[size];
+      for (int action = 0; action < size; action++) {
+        int before = rows[action].length;
+        rows[action] =
+            removeRedundantOrderOnlyEdges(rows, action, orderOnlyStarts[action], visited, stack);
+        redundantOrderOnlyEdges += before - rows[action].length;
+      }
+    }
+
+    CompactActionGraph optimized = CompactActionGraph.of(actions, rows);
+    return new Result(
+        optimized,
+        newRoots(roots),
+        order.length - size,
+        neededEdges - optimized.edgeCount(),
+        redundantOrderOnlyEdges);
+  }
+
+  /**
+   * Collects the dependencies of the given action into {@link #row}, with spliced phony actions
+   * replaced by their dependencies. Returns the index of the first dependency that is only reached
+   * through order-only inputs, which is only tracked when order-only edges are reduced.
+   */
+  private int collectDependencies(int action) {
+    stamp++;
+    rowSize = 0;
+    Action a = graph.action(action);
+    if (!reduceOrderOnlyEdges || a.orderOnlyInputs().isEmpty()) {
+      for (int i = 0; i < graph.dependencyCount(action); i++) {
+        add(graph.dependency(action, i));
+      }
+      return rowSize;
+    }
+    addProducers(action, a.explicitInputs());
+    addProducers(action, a.implicitInputs());
+    int orderOnlyStart = rowSize;
+    addProducers(action, a.orderOnlyInputs());
+    return orderOnlyStart;
+  }
+
+  private void addProducers(int action, List<Path> inputs) {
+    for (Path input : inputs) {
+      int producer = graph.getGeneratingAction(input);
+      if (producer >= 0 && producer != action) {
+        add(producer);
+      }
+    }
+  }
+
+  private void add(int dependency) {
+    if (expansions[dependency] == null) {
+      addOnce(dependency);
+      return;
+    }
+    for (int expanded : expansions[dependency]) {
+      addOnce(expanded);
+    }
+  }
+
+  private void addOnce(int dependency) {
+    if (seen[dependency] == stamp) {
+      return;
+    }
+    seen[dependency] = stamp;
+    if (rowSize == row.length) {
+      row = Arrays.copyOf(row, rowSize * 2);
+    }
+    row[rowSize++] = dependency;
+  }
+
+  /**
+   * Returns the dependencies of the given action without the order-only ones that are reachable
+   * through another dependency. New IDs are in topological order, so actions with a lower ID than
+   * the lowest order-only dependency can't lead to one and aren't visited.
+   */
+  private static int[] removeRedundantOrderOnlyEdges(
+      int[][] rows, int action, int orderOnlyStart, int[] visited, int[] stack) {
+    int[] dependencies = rows[action];
+    if (orderOnlyStart == dependencies.length) {
+      return dependencies;
+    }
+    int lowest = Integer.MAX_VALUE;
+    for (int i = orderOnlyStart; i < dependencies.length; i++) {
+      lowest = Math.min(lowest, dependencies[i]);
+    }
+    int mark = action + 1;
+    int stackSize = 0;
+    int visits = 0;
+    for (int dependency : dependencies) {
+      for (int next : rows[dependency]) {
+        if (next >= lowest && visited[next] != mark) {
+          visited[next] = mark;
+          stack[stackSize++] = next;
+        }
+      }
+    }
+    while (stackSize > 0 && visits++ < MAX_VISITS_PER_ACTION) {
+      for (int next : rows[stack[--stackSize]]) {
+        if (next >= lowest && visited[next] != mark) {
+          visited[next] = mark;
+          stack[stackSize++] = next;
+        }
+      }
+    }
+    int count = orderOnlyStart;
+    int[] kept = Arrays.copyOf(dependencies, dependencies.length);
+    for (int i = orderOnlyStart; i < dependencies.length; i++) {
+      if (visited[dependencies[i]] != mark) {
+        kept[count++] = dependencies[i];
+      }
+    }
+    return count == dependencies.length ? dependencies : Arrays.copyOf(kept, count);
+  }
+
+  /** Returns the new IDs of the given roots, with spliced phony actions replaced. */
+  private int[] newRoots(int[] roots) {
+    stamp++;
+    rowSize = 0;
+    for (int root : roots) {
+      add(root);
+    }
+    int[] result = new int[rowSize];
+    for (int i = 0; i < rowSize; i++) {
+      result[i] = newIds[row[i]];
+    }
+    return result;
+  }
+}
@@ -0,0 +1,228 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.utils.Preconditions;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Numbers that describe the shape of an action graph, for sizing the machines that build it.
+ *
+ * <p>The depth of an action is the length of the longest chain of actions that it depends on, so
+ * all actions of the same depth can run at the same time once the shallower ones are done. The
+ * number of actions at each depth is therefore the parallelism that the graph allows. Everything
+ * is computed in a few linear passes over the graph.
+ */
+final class GraphStats {
+
+  /** The maximum number of lines that are printed for the widths of the depths. */
+  private static final int MAX_DEPTH_LINES = 32;
+
+  private final int actionCount;
+  private final int edgeCount;
+  private final int fileCount;
+  private final int generatedFileCount;
+  private final int[] widths;
+  private final long[] fanInHistogram;
+  private final long[] fanOutHistogram;
+  private final Map<String, Integer> ruleCounts;
+  private final Map<String, Integer> poolCounts;
+
+  private GraphStats(
+      int actionCount,
+      int edgeCount,
+      int fileCount,
+      int generatedFileCount,
+      int[] widths,
+      long[] fanInHistogram,
+      long[] fanOutHistogram,
+      Map<String, Integer> ruleCounts,
+      Map<String, Integer> poolCounts) {
+    this.actionCount = actionCount;
+    this.edgeCount = edgeCount;
+    this.fileCount = fileCount;
+    this.generatedFileCount = generatedFileCount;
+    this.widths = widths;
+    this.fanInHistogram = fanInHistogram;
+    this.fanOutHistogram = fanOutHistogram;
+    this.ruleCounts = ruleCounts;
+    this.poolCounts = poolCounts;
+  }
+
+  /**
+   * Returns the graph of the given actions, whose dependencies are the producers that the parser
+   * linked to their input nodes. Unlike the analyzers, this doesn't stat or check any files, so it
+   * also works for a manifest whose source tree isn't checked out.
+   */
+  static CompactActionGraph link(List<Action> actions) {
+    HashMap<Action, Integer> ids = new HashMap<>();
+    for (int id = 0; id < actions.size(); id++) {
+      ids.put(actions.get(id), id);
+    }
+    int[][] dependencies = new int[actions.size()][];
+    for (int id = 0; id < actions.size(); id++) {
+      Action action = actions.get(id);
+      Preconditions.checkArgument(action.hasNodes(), "Action %s has no nodes", action);
+      int[] row = new int[action.inputNodeCount()];
+      int count = 0;
+      for (int i = 0; i < action.inputNodeCount(); i++) {
+        Action producer = action.inputNode(i).producer();
+        Integer dependency = producer != null ? ids.get(producer) : null;
+        if (dependency != null && dependency != id) {
+          row[count++] = dependency;
+        }
+      }
+      dependencies[id] = Arrays.copyOf(row, count);
+    }
+    return CompactActionGraph.of(actions.toArray(new Action[0]), dependencies);
+  }
+
+  /**
+   * Computes the statistics of the given graph, whose actions read and write {@code fileCount}
+   * distinct files. Throws an {@link IllegalArgumentException} if the graph has a cycle.
+   */
+  static GraphStats of(CompactActionGraph graph, int fileCount) {
+    int[] order = ExecutionPlan.of(graph, IntStream.range(0, graph.size()).toArray()).order();
+    int[] depths = new int[graph.size()];
+    int maxDepth = -1;
+    for (int action : order) {
+      int depth = 0;
+      for (int i = 0; i < graph.dependencyCount(action); i++) {
+        depth = Math.max(depth, depths[graph.dependency(action, i)] + 1);
+      }
+      depths[action] = depth;
+      maxDepth = Math.max(maxDepth, depth);
+    }
+    int[] widths = new int[maxDepth + 1];
+    for (int depth : depths) {
+      widths[depth]++;
+    }
+
+    long[] fanInHistogram = new long[Integer.SIZE + 1];
+    long[] fanOutHistogram = new long[Integer.SIZE + 1];
+    int generatedFileCount = 0;
+    TreeMap<String, Integer> ruleCounts = new TreeMap<>();
+    TreeMap<String, Integer> poolCounts = new TreeMap<>();
+    for (int id = 0; id < graph.size(); id++) {
+      fanInHistogram[bucket(graph.dependencyCount(id))]++;
+      fanOutHistogram[bucket(graph.dependentCount(id))]++;
+      Action action = graph.action(id);
+      generatedFileCount +=
+          action.hasNodes() ? action.outputNodeCount() : (int) action.outputs().count();
+      ruleCounts.merge(action.rule().name(), 1, Integer::sum);
+      poolCounts.merge(action.pool(), 1, Integer::sum);
+    }
+
+    return new GraphStats(
+        graph.size(),
+        graph.edgeCount(),
+        fileCount,
+        generatedFileCount,
+        widths,
+        fanInHistogram,
+        fanOutHistogram,
+        ruleCounts,
+        poolCounts);
+  }
+
+  /** Returns the histogram bucket of the given count: 0, 1, 2-3, 4-7 and so on. */
+  private static int bucket(int count) {
+    return Integer.SIZE - Integer.numberOfLeadingZeros(count);
+  }
+
+  /** Returns the length of the longest chain of actions. */
+  int longestChain() {
+    return widths.length;
+  }
+
+  /** Returns the number of actions at each depth. */
+  int[] widths() {
+    return widths;
+  }
+
+  /** Returns the largest number of actions that can run at the same time. */
+  int maxWidth() {
+    return Arrays.stream(widths).max().orElse(0);
+  }
+
+  /** Returns the number of actions by their number of dependencies, bucketed by powers of two. */
+  long[] fanInHistogram() {
+    return fanInHistogram;
+  }
+
+  /** Returns the number of actions by their number of dependents, bucketed by powers of two. */
+  long[] fanOutHistogram() {
+    return fanOutHistogram;
+  }
+
+  Map<String, Integer> ruleCounts() {
+    return ruleCounts;
+  }
+
+  /** Returns the number of actions in each pool, where the default pool is the empty string. */
+  Map<String, Integer> poolCounts() {
+    return poolCounts;
+  }
+
+  void print(PrintStream out) {
+    out.printf("Actions: %d%n", actionCount);
+    out.printf("Edges: %d%n", edgeCount);
+    out.printf(
+        "Files: %d (%d generated, %d source)%n",
+        fileCount, generatedFileCount, fileCount - generatedFileCount);
+    out.printf("Longest dependency chain: %d actions%n", longestChain());
+    out.printf("Maximum parallelism: %d actions%n", maxWidth());
+
+    // Long chains are summarized in ranges of depths, each with its largest width.
+    out.println("Width by depth:");
+    int depthsPerLine = Math.max(1, (widths.length + MAX_DEPTH_LINES - 1) / MAX_DEPTH_LINES);
+    for (int start = 0; start < widths.length; start += depthsPerLine) {
+      int end = Math.min(start + depthsPerLine, widths.length);
+      int width = Arrays.stream(widths, start, end).max().getAsInt();
+      String depths = end - start == 1 ? "" + start : start + "-" + (end - 1);
+      out.printf("  %12s: %d%n", depths, width);
+    }
+
+    printHistogram(out, "Fan-in (dependencies per action):", fanInHistogram);
+    printHistogram(out, "Fan-out (dependents per action):", fanOutHistogram);
+
+    out.println("Actions by rule:");
+    ruleCounts.forEach((rule, count) -> out.printf("  %12d  %s%n", count, rule));
+    out.println("Actions by pool:");
+    poolCounts.forEach(
+        (pool, count) -> out.printf("  %12d  %s%n", count, pool.isEmpty() ? "(default)" : pool));
+  }
+
+  private static void printHistogram(PrintStream out, String title, long[] histogram) {
+    out.println(title);
+    for (int bucket = 0; bucket < histogram.length; bucket++) {
+      if (histogram[bucket] == 0) {
+        continue;
+      }
+      long low = bucket == 0 ? 0 : 1L << (bucket - 1);
+      long high = bucket == 0 ? 0 : (1L << bucket) - 1;
+      String range = low == high ? "" + low : low + "-" + high;
+      out.printf("  %12s: %d%n", range, histogram[bucket]);
+    }
+  }
+}
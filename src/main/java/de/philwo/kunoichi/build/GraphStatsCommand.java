@@ -0,0 +1,48 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.ninja.NinjaFile;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Callable;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(
+    name = "graph-stats",
+    description = "Print the shape of the build graph, without building anything")
+public class GraphStatsCommand implements Callable<Integer> {
+
+  @Option(
+      names = {"-f", "--file"},
+      description = "manifest to load")
+  private Path manifestFile = Path.of("build.ninja");
+
+  @Override
+  public Integer call() throws Exception {
+    Instant start = Instant.now();
+    // Without the snapshot, so that nothing is written next to the manifest.
+    NinjaFile ninjaFile = NinjaFile.parse(manifestFile);
+    CompactActionGraph actionGraph = GraphStats.link(ninjaFile.actions());
+    GraphStats stats = GraphStats.of(actionGraph, ninjaFile.nodes().size());
+    long timeElapsed = Duration.between(start, Instant.now()).toMillis();
+    System.err.println("Loading and analyzing took " + timeElapsed + "ms.");
+    stats.print(System.out);
+    return 0;
+  }
+}
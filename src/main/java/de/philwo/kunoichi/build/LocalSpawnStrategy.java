@@ -15,29 +15,45 @@
 package de.philwo.kunoichi.build;
 
 import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.Rule;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class LocalSpawnStrategy {
 
   private final Set<Path> createdDirectories = Collections.synchronizedSet(new HashSet<>());
 
-  public void spawn(Action action) {
+  /**
+   * Runs the command of the given action. For "deps = msvc" actions, the files that the command
+   * reported to include are removed from its output and returned; otherwise, the list is empty.
+   */
+  public List<String> spawn(Action action) {
     String command = action.command();
     System.err.println("[" + action.mnemonic() + "]: " + command);
-    ensureFilesExist(action.inputs(), "Input file missing");
+    ensureFilesExist(nonPhonyInputs(action), "Input file missing");
     ensureOutputDirectoriesExist(action);
+    List<String> includes;
     try {
       try {
         if (action.hasRspFile()) {
           Files.writeString(action.rspFile(), action.rspFileContent());
         }
-        runCommand(command);
+        if (action.rule().deps() == Rule.Deps.MSVC) {
+          ShowIncludesFilter filter = new ShowIncludesFilter(System.out, action.msvcDepsPrefix());
+          runCommand(command, filter);
+          includes = filter.includes();
+        } else {
+          runCommand(command, null);
+          includes = List.of();
+        }
       } finally {
         if (action.hasRspFile()) {
           Files.delete(action.rspFile());
@@ -47,15 +63,29 @@ public class LocalSpawnStrategy {
       throw new CommandFailedException("I/O error during command execution: " + e.getMessage(), e);
     }
     ensureFilesExist(action.outputs(), "Command did not produce expected output");
+    return includes;
   }
 
-  private void runCommand(String command) throws IOException {
+  /**
+   * Runs the given command. If a filter is given, the standard output of the command is streamed
+   * through it instead of being inherited.
+   */
+  private void runCommand(String command, ShowIncludesFilter stdoutFilter) throws IOException {
     ProcessBuilder pb = new ProcessBuilder();
     pb.inheritIO();
+    if (stdoutFilter != null) {
+      pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
+    }
     pb.command("/bin/sh", "-c", command);
     int exitCode;
     try {
-      exitCode = pb.start().waitFor();
+      Process process = pb.start();
+      if (stdoutFilter != null) {
+        try (stdoutFilter) {
+          process.getInputStream().transferTo(stdoutFilter);
+        }
+      }
+      exitCode = process.waitFor();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new CommandFailedException("Interrupted during command execution", e);
@@ -65,6 +95,17 @@ public class LocalSpawnStrategy {
     }
   }
 
+  /** Returns the inputs of the given action, except the outputs of phony actions. */
+  private static Stream<Path> nonPhonyInputs(Action action) {
+    if (!action.hasNodes()) {
+      return action.inputs();
+    }
+    return IntStream.range(0, action.inputNodeCount())
+        .mapToObj(action::inputNode)
+        .filter(node -> node.producer() == null || !GraphOptimizer.isPhony(node.producer()))
+        .map(Node::path);
+  }
+
   private void ensureFilesExist(Stream<Path> target, String errorMsg) {
     target
         .filter(Files::notExists)
@@ -0,0 +1,232 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the actions of an {@link ExecutionPlan} on a fixed number of threads. Each action keeps a
+ * count of its dependencies that haven't finished yet, and is submitted as soon as that count drops
+ * to zero. There is no recursion and no per-action future.
+ *
+ * <p>The dependencies that an action discovered, e.g. through a depfile, are recorded on the thread
+ * that ran it, right after it finished.
+ *
+ * <p>If a "restat" action leaves all of its outputs untouched, it is marked as clean in the {@link
+ * DirtyChecker}. Each action with a clean dependency is checked again before it runs, and is
+ * skipped (and marked as clean itself) if it is no longer dirty. This prunes the work downstream of
+ * e.g. a code generator that only rewrites files whose content changed.
+ *
+ * <p>If an action fails, no further actions are started, and the ones that are already running are
+ * allowed to finish before the failure is reported.
+ */
+final class Scheduler {
+
+  private final CompactActionGraph graph;
+  private final ExecutionPlan plan;
+  private final LocalSpawnStrategy spawnStrategy;
+  private final BuildLog buildLog;
+  private final DepsLog depsLog;
+  private final DirtyChecker dirtyChecker;
+  private final ExecutorService executor;
+
+  /**
+   * Whether each action turned out to be clean. Written before the action's dependents are
+   * released, so they see it.
+   */
+  private final boolean[] cleaned;
+
+  private final AtomicIntegerArray pendingDependencies;
+  private final AtomicInteger remainingActions;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private Scheduler(
+      CompactActionGraph graph,
+      ExecutionPlan plan,
+      LocalSpawnStrategy spawnStrategy,
+      BuildLog buildLog,
+      DepsLog depsLog,
+      DirtyChecker dirtyChecker,
+      int jobs) {
+    this.graph = graph;
+    this.plan = plan;
+    this.spawnStrategy = spawnStrategy;
+    this.buildLog = buildLog;
+    this.depsLog = depsLog;
+    this.dirtyChecker = dirtyChecker;
+    this.cleaned = new boolean[graph.size()];
+    this.executor = Executors.newFixedThreadPool(jobs);
+    int[] counts = new int[graph.size()];
+    for (int action : plan.order()) {
+      counts[action] = plan.dependencyCount(action);
+    }
+    this.pendingDependencies = new AtomicIntegerArray(counts);
+    this.remainingActions = new AtomicInteger(plan.size());
+  }
+
+  /**
+   * Runs all actions of the given plan, using at most {@code jobs} threads, and records the ones
+   * that succeeded and the dependencies that they discovered in the given logs. The plan must only
+   * contain the actions that the given checker found to be dirty.
+   */
+  static void run(
+      CompactActionGraph graph,
+      ExecutionPlan plan,
+      LocalSpawnStrategy spawnStrategy,
+      BuildLog buildLog,
+      DepsLog depsLog,
+      DirtyChecker dirtyChecker,
+      int jobs)
+      throws ExecutionException, InterruptedException {
+    new Scheduler(graph, plan, spawnStrategy, buildLog, depsLog, dirtyChecker, jobs).run();
+  }
+
+  private void run() throws ExecutionException, InterruptedException {
+    if (plan.size() == 0) {
+      return;
+    }
+    try {
+      for (int action : plan.order()) {
+        if (plan.dependencyCount(action) == 0) {
+          submit(action);
+        }
+      }
+      done.await();
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    if (failure.get() != null) {
+      throw new ExecutionException(failure.get());
+    }
+  }
+
+  private void submit(int action) {
+    try {
+      executor.execute(() -> execute(action));
+    } catch (RejectedExecutionException e) {
+      // The executor is only shut down early after an action failed.
+      if (failure.get() == null) {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Records the files that a "deps = msvc" action reported to include in the deps log, or moves the
+   * inputs that a "deps = gcc" action listed in its depfile there and deletes the depfile. Actions
+   * with a depfile but without "deps" keep it, as it is read again to check whether they are up to
+   * date. Actions without outputs have nothing to record their dependencies for.
+   */
+  private void recordDependencies(Action action, List<String> includes) throws IOException {
+    Path output = action.outputs().findFirst().orElse(null);
+    if (output == null) {
+      return;
+    }
+    if (action.rule().deps() == Rule.Deps.MSVC) {
+      depsLog.record(action, BuildLog.mtime(output), includes);
+      return;
+    }
+    if (action.rule().deps() != Rule.Deps.GCC || !action.hasDepFile()) {
+      return;
+    }
+    Path depFile = action.depFile();
+    List<String> inputs;
+    try {
+      inputs = DepfileParser.parse(Files.readString(depFile));
+    } catch (IOException e) {
+      throw new IOException("Failed to read depfile " + depFile + ": " + e.getMessage(), e);
+    }
+    depsLog.record(action, BuildLog.mtime(output), inputs);
+    Files.delete(depFile);
+  }
+
+  private boolean hasCleanedDependency(int action) {
+    for (int i = 0; i < graph.dependencyCount(action); i++) {
+      if (cleaned[graph.dependency(action, i)]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether all outputs of the given action still have the time they had before it ran. */
+  private static boolean outputsUnchanged(Action action) {
+    for (int i = 0; i < action.outputNodeCount(); i++) {
+      Node output = action.outputNode(i);
+      if (output.mtime() <= Node.MTIME_MISSING || BuildLog.mtime(output.path()) != output.mtime()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void execute(int action) {
+    if (failure.get() != null) {
+      return;
+    }
+    try {
+      Action a = graph.action(action);
+      if (hasCleanedDependency(action) && !dirtyChecker.recheck(action)) {
+        cleaned[action] = true;
+      } else if (!GraphOptimizer.isPhony(a)) {
+        // Phony actions that weren't spliced out of the graph just group their dependencies.
+        long startNanos = System.nanoTime();
+        List<String> includes = spawnStrategy.spawn(a);
+        long endNanos = System.nanoTime();
+        recordDependencies(a, includes);
+        buildLog.record(a, startNanos, endNanos);
+        if (a.rule().restat() && outputsUnchanged(a)) {
+          dirtyChecker.markClean(action);
+          cleaned[action] = true;
+        }
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      failure.compareAndSet(null, e);
+      done.countDown();
+      return;
+    }
+    if (failure.get() != null) {
+      // Another action failed while this one was running, so its dependents must not start.
+      return;
+    }
+    for (int i = 0; i < plan.dependentCount(action); i++) {
+      int dependent = plan.dependent(action, i);
+      if (pendingDependencies.decrementAndGet(dependent) == 0) {
+        submit(dependent);
+      }
+    }
+    if (remainingActions.decrementAndGet() == 0) {
+      done.countDown();
+    }
+  }
+}
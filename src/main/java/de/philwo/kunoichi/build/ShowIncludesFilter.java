@@ -0,0 +1,122 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.utils.Preconditions;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Removes the lines in which a compiler run with /showIncludes reports the files that it included
+ * from its output, and collects these files.
+ *
+ * <p>Each line is buffered until it is complete and then passed through with a single write, so
+ * that the output of actions that run in parallel doesn't get interleaved within a line.
+ */
+final class ShowIncludesFilter extends OutputStream {
+
+  private final OutputStream out;
+  private final byte[] prefix;
+  private final LinkedHashSet<String> includes = new LinkedHashSet<>();
+  private final LineBuffer line = new LineBuffer();
+
+  ShowIncludesFilter(OutputStream out, String prefix) {
+    Preconditions.checkArgument(!prefix.isEmpty(), "The msvc_deps_prefix must not be empty");
+    this.out = out;
+    this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    line.write(b);
+    if (b == '\n') {
+      endLine();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    while (off < end) {
+      int start = off;
+      while (off < end && b[off] != '\n') {
+        off++;
+      }
+      if (off == end) {
+        line.write(b, start, off - start);
+        return;
+      }
+      off++;
+      line.write(b, start, off - start);
+      endLine();
+    }
+  }
+
+  /** Collects the buffered line if it reports an include, and passes it through otherwise. */
+  private void endLine() throws IOException {
+    if (line.startsWith(prefix)) {
+      String path = line.decode(prefix.length).strip();
+      if (!path.isEmpty()) {
+        includes.add(path);
+      }
+    } else {
+      out.write(line.bytes(), 0, line.size());
+    }
+    line.reset();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /** Handles what is left of an unterminated last line. The underlying stream is kept open. */
+  @Override
+  public void close() throws IOException {
+    if (line.size() > 0) {
+      endLine();
+    }
+    out.flush();
+  }
+
+  /** Returns the included files, in the order in which they were first reported. */
+  List<String> includes() {
+    return new ArrayList<>(includes);
+  }
+
+  /** Gives access to the buffered bytes without copying them. */
+  private static final class LineBuffer extends ByteArrayOutputStream {
+
+    byte[] bytes() {
+      return buf;
+    }
+
+    boolean startsWith(byte[] prefix) {
+      return count >= prefix.length
+          && Arrays.equals(buf, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /** Decodes the buffered bytes from the given offset on. */
+    String decode(int offset) {
+      return new String(buf, offset, count - offset, StandardCharsets.UTF_8);
+    }
+  }
+}
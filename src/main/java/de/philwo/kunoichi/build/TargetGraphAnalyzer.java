@@ -0,0 +1,163 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
+import de.philwo.kunoichi.utils.Preconditions;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Builds the graph of only the actions that the requested targets depend on, by walking back from
+ * the targets through the producers of their nodes. Only the source files that are read by these
+ * actions are stat'ed, so the cost of analyzing a target is proportional to the size of its
+ * transitive closure, not to the size of the manifest.
+ *
+ * <p>Like in Ninja, the validations of every action in the closure are built as well: their
+ * producers are added to the graph, and their paths are returned as additional targets.
+ *
+ * <p>The producers of nodes are looked up through a function, so that a lazily loaded manifest can
+ * materialize them as the walk reaches them.
+ */
+final class TargetGraphAnalyzer {
+
+  /** The graph of the closure, and the validations that have to be built in addition to it. */
+  record Result(CompactActionGraph graph, List<Path> validations) {}
+
+  private final NodeTable nodes;
+  private final Function<Node, Action> producers;
+
+  /** The actions in the order in which they were discovered, which is also their ID. */
+  private final ArrayList<Action> actions = new ArrayList<>();
+
+  private final HashMap<Action, Integer> ids = new HashMap<>();
+  private final ArrayList<int[]> dependencies = new ArrayList<>();
+  private final ArrayList<Path> validations = new ArrayList<>();
+  private final HashSet<Node> sourceFiles = new HashSet<>();
+
+  private TargetGraphAnalyzer(NodeTable nodes, Function<Node, Action> producers) {
+    this.nodes = nodes;
+    this.producers = producers;
+  }
+
+  /** Returns the graph of the given targets, whose actions were created from the given table. */
+  static Result analyze(NodeTable nodes, List<Path> targets) {
+    return analyze(nodes, targets, Node::producer);
+  }
+
+  /**
+   * Like {@link #analyze(NodeTable, List)}, but looks up the action that produces a node with the
+   * given function. It returns null for source files.
+   */
+  static Result analyze(NodeTable nodes, List<Path> targets, Function<Node, Action> producers) {
+    return new TargetGraphAnalyzer(nodes, producers).analyze(targets);
+  }
+
+  private Result analyze(List<Path> targets) {
+    ArrayList<Node> targetNodes = new ArrayList<>(targets.size());
+    for (Path target : targets) {
+      Node node = nodes.get(target);
+      if (node == null) {
+        throw new IllegalArgumentException("Build target for '" + target + "' not found.");
+      }
+      targetNodes.add(node);
+      visit(node);
+    }
+
+    // IDs are assigned in the order in which the actions are discovered, so visiting them in
+    // order of their IDs walks the graph breadth-first.
+    for (int id = 0; id < actions.size(); id++) {
+      Action action = actions.get(id);
+      int[] row = new int[action.inputNodeCount()];
+      int count = 0;
+      for (int i = 0; i < action.inputNodeCount(); i++) {
+        int dependency = visit(action.inputNode(i));
+        if (dependency >= 0 && dependency != id) {
+          row[count++] = dependency;
+        }
+      }
+      dependencies.add(count == row.length ? row : Arrays.copyOf(row, count));
+      for (Path validation : action.validations()) {
+        Node node = nodes.get(validation);
+        Preconditions.checkState(node != null);
+        if (visit(node) >= 0) {
+          validations.add(validation);
+        }
+      }
+    }
+
+    sourceFiles.parallelStream().forEach(ActionGraphAnalyzer::stat);
+    for (Node target : targetNodes) {
+      if (target.producer() == null && target.mtime() == Node.MTIME_MISSING) {
+        throw new IllegalArgumentException("Build target for '" + target + "' not found.");
+      }
+    }
+    for (int id = 0; id < actions.size(); id++) {
+      checkNodes(id, actions.get(id));
+    }
+
+    return new Result(
+        CompactActionGraph.of(
+            actions.toArray(new Action[0]), dependencies.toArray(new int[0][])),
+        validations);
+  }
+
+  /**
+   * Adds the producer of the given node to the graph if it isn't in there yet, and returns its ID.
+   * If the node is a source file, it is marked to be stat'ed and -1 is returned.
+   */
+  private int visit(Node node) {
+    Action producer = producers.apply(node);
+    if (producer == null) {
+      sourceFiles.add(node);
+      return -1;
+    }
+    Integer id = ids.get(producer);
+    if (id == null) {
+      id = actions.size();
+      actions.add(producer);
+      ids.put(producer, id);
+    }
+    return id;
+  }
+
+  /** Reports the first duplicate output or invalid input of the given action, if any. */
+  private void checkNodes(int id, Action action) {
+    for (int i = 0; i < action.outputNodeCount(); i++) {
+      Node output = action.outputNode(i);
+      if (output.hasMultipleProducers()) {
+        throw new IllegalArgumentException(
+            "Output " + output + " is generated by multiple actions");
+      }
+    }
+    for (int i = 0; i < action.inputNodeCount(); i++) {
+      Node input = action.inputNode(i);
+      if (input.producer() == action) {
+        throw new IllegalArgumentException("Cannot add self-edge to " + action);
+      }
+      if (input.producer() == null && input.mtime() == Node.MTIME_MISSING) {
+        throw new IllegalArgumentException("Build target for '" + input + "' not found.");
+      }
+    }
+  }
+}
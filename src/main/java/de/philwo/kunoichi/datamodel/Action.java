@@ -22,6 +22,9 @@ import java.util.stream.Stream;
 /** An action is a piece of work that has a set of inputs and outputs. */
 public class Action {
 
+  /** The prefix with which the English version of cl.exe reports the files that it included. */
+  private static final String DEFAULT_MSVC_DEPS_PREFIX = "Note: including file: ";
+
   private final Rule rule;
   private final Environment env;
 
@@ -57,6 +60,15 @@ public class Action {
    */
   private final List<Path> validations;
 
+  /**
+   * The nodes of the outputs followed by those of the inputs, in the order of {@link #outputs()}
+   * and {@link #inputs()}, or null if the action wasn't created from a {@link NodeTable}. They
+   * allow walking the graph without looking up paths.
+   */
+  private final Node[] nodes;
+
+  private final int outputNodeCount;
+
   public Action(
       Rule rule,
       Environment env,
@@ -66,6 +78,34 @@ public class Action {
       List<Path> implicitInputs,
       List<Path> orderOnlyInputs,
       List<Path> validations) {
+    this(
+        rule,
+        env,
+        explicitOutputs,
+        implicitOutputs,
+        explicitInputs,
+        implicitInputs,
+        orderOnlyInputs,
+        validations,
+        null,
+        0);
+  }
+
+  /**
+   * Creates an action whose outputs and inputs are the given nodes: the first {@code
+   * outputNodeCount} of them are the outputs, the rest the inputs.
+   */
+  public Action(
+      Rule rule,
+      Environment env,
+      List<Path> explicitOutputs,
+      List<Path> implicitOutputs,
+      List<Path> explicitInputs,
+      List<Path> implicitInputs,
+      List<Path> orderOnlyInputs,
+      List<Path> validations,
+      Node[] nodes,
+      int outputNodeCount) {
     this.rule = Preconditions.checkNotNull(rule);
     this.env = Preconditions.checkNotNull(env);
     this.explicitOutputs = explicitOutputs;
@@ -74,6 +114,8 @@ public class Action {
     this.implicitInputs = implicitInputs;
     this.orderOnlyInputs = orderOnlyInputs;
     this.validations = validations;
+    this.nodes = nodes;
+    this.outputNodeCount = outputNodeCount;
   }
 
   /** A short mnemonic that identifies this action. */
@@ -81,6 +123,14 @@ public class Action {
     return rule.name();
   }
 
+  /**
+   * The name of the pool that this action runs in, or an empty string for the default pool. A
+   * {@code pool} variable of the build statement takes precedence over the one of the rule.
+   */
+  public String pool() {
+    return env.hasLocal("pool") ? env.get("pool") : env.evaluate(rule.pool());
+  }
+
   /** The command that is executed by this action. */
   public String command() {
     return env.evaluate(rule.command());
@@ -118,6 +168,52 @@ public class Action {
     return inputs;
   }
 
+  /** Returns true if the nodes of the outputs and inputs of this action are known. */
+  public boolean hasNodes() {
+    return nodes != null;
+  }
+
+  public int outputNodeCount() {
+    return outputNodeCount;
+  }
+
+  public Node outputNode(int index) {
+    Preconditions.checkArgument(index < outputNodeCount);
+    return nodes[index];
+  }
+
+  public int inputNodeCount() {
+    return nodes.length - outputNodeCount;
+  }
+
+  public Node inputNode(int index) {
+    return nodes[outputNodeCount + index];
+  }
+
+  public List<Path> explicitOutputs() {
+    return explicitOutputs;
+  }
+
+  public List<Path> implicitOutputs() {
+    return implicitOutputs;
+  }
+
+  public List<Path> explicitInputs() {
+    return explicitInputs;
+  }
+
+  public List<Path> implicitInputs() {
+    return implicitInputs;
+  }
+
+  public List<Path> orderOnlyInputs() {
+    return orderOnlyInputs;
+  }
+
+  public List<Path> validations() {
+    return validations;
+  }
+
   public Environment env() {
     return env;
   }
@@ -130,6 +226,31 @@ public class Action {
     return Path.of(env.evaluate(rule.rspFile()));
   }
 
+  public boolean hasDepFile() {
+    return !rule.depFile().isEmpty();
+  }
+
+  /** The Makefile-style file in which the command lists the files that it actually read. */
+  public Path depFile() {
+    return Path.of(env.evaluate(rule.depFile()));
+  }
+
+  /**
+   * The prefix of the lines in which a "deps = msvc" command reports the files that it included.
+   * Like in Ninja, it can also be set in an enclosing scope instead of the rule.
+   */
+  public String msvcDepsPrefix() {
+    String prefix;
+    if (!rule.msvcDepsPrefix().isEmpty()) {
+      prefix = env.evaluate(rule.msvcDepsPrefix());
+    } else if (env.has("msvc_deps_prefix")) {
+      prefix = env.get("msvc_deps_prefix");
+    } else {
+      prefix = "";
+    }
+    return prefix.isEmpty() ? DEFAULT_MSVC_DEPS_PREFIX : prefix;
+  }
+
   public String rspFileContent() {
     return env.evaluate(rule.rspFileContent());
   }
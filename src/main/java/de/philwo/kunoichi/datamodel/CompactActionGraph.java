@@ -0,0 +1,340 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+import de.philwo.kunoichi.utils.Preconditions;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * An immutable action graph in which every action is identified by a dense int ID.
+ *
+ * <p>The edges are stored in compressed sparse row form: the dependencies of action {@code id} are
+ * {@code dependencies[dependencyOffsets[id]]} up to (excluding) {@code
+ * dependencies[dependencyOffsets[id + 1]]}, sorted and without duplicates, and the reverse edges
+ * (the dependents of each action) are stored the same way. Compared to {@link ActionGraph}, this
+ * needs 8 bytes per edge instead of a boxed list entry per edge and a hash map entry per action,
+ * and a traversal reads consecutive ints instead of chasing pointers.
+ *
+ * <p>Graphs are created with a {@link Builder}, which assigns the IDs in the order in which the
+ * actions are added.
+ */
+public final class CompactActionGraph {
+
+  private final Action[] actions;
+  private final OutputIndex outputIndex;
+  private final int[] dependencyOffsets;
+  private final int[] dependencies;
+  private final int[] dependentOffsets;
+  private final int[] dependents;
+
+  private CompactActionGraph(
+      Action[] actions,
+      OutputIndex outputIndex,
+      int[] dependencyOffsets,
+      int[] dependencies,
+      int[] dependentOffsets,
+      int[] dependents) {
+    this.actions = actions;
+    this.outputIndex = outputIndex;
+    this.dependencyOffsets = dependencyOffsets;
+    this.dependencies = dependencies;
+    this.dependentOffsets = dependentOffsets;
+    this.dependents = dependents;
+  }
+
+  public static Builder builder(int expectedActions) {
+    return new Builder(expectedActions);
+  }
+
+  /**
+   * Creates a graph from the given actions, whose IDs are their indices, and the IDs of the
+   * dependencies of each action. Unlike {@link Builder#putEdge}, this allows callers to resolve the
+   * dependencies of different actions in parallel. Duplicate dependencies are removed.
+   */
+  public static CompactActionGraph of(Action[] actions, int[][] dependencies) {
+    Preconditions.checkArgument(actions.length == dependencies.length);
+    Builder builder = new Builder(actions.length);
+    for (Action action : actions) {
+      builder.addAction(action);
+    }
+    int[] offsets = new int[actions.length + 1];
+    for (int action = 0; action < actions.length; action++) {
+      offsets[action + 1] = offsets[action] + dependencies[action].length;
+    }
+    int[] values = new int[offsets[actions.length]];
+    for (int action = 0; action < actions.length; action++) {
+      for (int dependency : dependencies[action]) {
+        builder.checkEdge(action, dependency);
+      }
+      System.arraycopy(
+          dependencies[action], 0, values, offsets[action], dependencies[action].length);
+    }
+    return builder.build(offsets, values);
+  }
+
+  /** Returns the number of actions in the graph. */
+  public int size() {
+    return actions.length;
+  }
+
+  /** Returns the number of (distinct) edges in the graph. */
+  public int edgeCount() {
+    return dependencies.length;
+  }
+
+  public Action action(int id) {
+    return actions[id];
+  }
+
+  /** Returns the ID of the action that generates the given output, or -1 if there is none. */
+  public int getGeneratingAction(Path output) {
+    return outputIndex.get(Preconditions.checkNotNull(output));
+  }
+
+  /** Returns the number of actions that the given action depends on. */
+  public int dependencyCount(int id) {
+    return dependencyOffsets[id + 1] - dependencyOffsets[id];
+  }
+
+  /** Returns the ID of the {@code index}-th action that the given action depends on. */
+  public int dependency(int id, int index) {
+    return dependencies[dependencyOffsets[id] + index];
+  }
+
+  /** Returns the number of actions that depend on the given action. */
+  public int dependentCount(int id) {
+    return dependentOffsets[id + 1] - dependentOffsets[id];
+  }
+
+  /** Returns the ID of the {@code index}-th action that depends on the given action. */
+  public int dependent(int id, int index) {
+    return dependents[dependentOffsets[id] + index];
+  }
+
+  /** Collects the actions and edges of a {@link CompactActionGraph}. */
+  public static final class Builder {
+    private Action[] actions;
+    private int size;
+    private final OutputIndex outputIndex;
+
+    // The edges in the order in which they were added, as pairs of (action, dependency).
+    private int[] edges = new int[64];
+    private int edgeCount;
+
+    private Builder(int expectedActions) {
+      this.actions = new Action[Math.max(expectedActions, 16)];
+      this.outputIndex = new OutputIndex(expectedActions);
+    }
+
+    /** Adds the given action to the graph and returns its ID. */
+    public int addAction(Action action) {
+      Preconditions.checkNotNull(action);
+      // Check all outputs first, so that a rejected action leaves no trace in the graph.
+      action
+          .outputs()
+          .forEach(
+              output -> {
+                if (outputIndex.get(output) >= 0) {
+                  throw new IllegalArgumentException(
+                      "Output " + output + " is generated by multiple actions");
+                }
+              });
+      if (size == actions.length) {
+        actions = Arrays.copyOf(actions, size * 2);
+      }
+      int id = size++;
+      actions[id] = action;
+      action.outputs().forEach(output -> outputIndex.putIfAbsent(output, id));
+      return id;
+    }
+
+    /** Returns the number of actions that were added so far. */
+    public int size() {
+      return size;
+    }
+
+    public Action action(int id) {
+      Preconditions.checkArgument(id < size, "Unknown action ID: %s", id);
+      return actions[id];
+    }
+
+    /** Returns the ID of the action that generates the given output, or -1 if there is none. */
+    public int getGeneratingAction(Path output) {
+      return outputIndex.get(Preconditions.checkNotNull(output));
+    }
+
+    /** Adds an edge from an action to one of its dependencies. Duplicate edges are ignored. */
+    public void putEdge(int action, int dependency) {
+      checkEdge(action, dependency);
+      if (edgeCount * 2 == edges.length) {
+        edges = Arrays.copyOf(edges, edges.length * 2);
+      }
+      edges[edgeCount * 2] = action;
+      edges[edgeCount * 2 + 1] = dependency;
+      edgeCount++;
+    }
+
+    private void checkEdge(int action, int dependency) {
+      Preconditions.checkArgument(
+          action >= 0 && action < size && dependency >= 0 && dependency < size,
+          "Action %s or %s is not in the graph",
+          action,
+          dependency);
+      if (action == dependency) {
+        throw new IllegalArgumentException("Cannot add self-edge to " + actions[action]);
+      }
+    }
+
+    /** Returns the graph. The builder must not be used anymore afterwards. */
+    public CompactActionGraph build() {
+      int[] dependencyOffsets = new int[size + 1];
+      int[] dependencies = new int[edgeCount];
+      fillRows(dependencyOffsets, dependencies);
+      return build(dependencyOffsets, dependencies);
+    }
+
+    /** Returns the graph with the given rows of dependencies, which may contain duplicates. */
+    private CompactActionGraph build(int[] dependencyOffsets, int[] dependencies) {
+      int dependencyCount = dedupRows(dependencyOffsets, dependencies);
+      dependencies = Arrays.copyOf(dependencies, dependencyCount);
+
+      // The reverse edges are derived from the deduplicated forward edges, so they are sorted and
+      // free of duplicates by construction.
+      int[] dependentOffsets = new int[size + 1];
+      int[] dependents = new int[dependencyCount];
+      for (int dependency : dependencies) {
+        dependentOffsets[dependency + 1]++;
+      }
+      for (int i = 0; i < size; i++) {
+        dependentOffsets[i + 1] += dependentOffsets[i];
+      }
+      int[] next = Arrays.copyOf(dependentOffsets, size);
+      for (int action = 0; action < size; action++) {
+        for (int i = dependencyOffsets[action]; i < dependencyOffsets[action + 1]; i++) {
+          dependents[next[dependencies[i]]++] = action;
+        }
+      }
+
+      return new CompactActionGraph(
+          Arrays.copyOf(actions, size),
+          outputIndex,
+          dependencyOffsets,
+          dependencies,
+          dependentOffsets,
+          dependents);
+    }
+
+    /** Distributes the dependencies into one row per action (a counting sort by action). */
+    private void fillRows(int[] offsets, int[] values) {
+      for (int i = 0; i < edgeCount; i++) {
+        offsets[edges[i * 2] + 1]++;
+      }
+      for (int i = 0; i < size; i++) {
+        offsets[i + 1] += offsets[i];
+      }
+      int[] next = Arrays.copyOf(offsets, size);
+      for (int i = 0; i < edgeCount; i++) {
+        values[next[edges[i * 2]]++] = edges[i * 2 + 1];
+      }
+    }
+
+    /** Sorts each row and removes duplicates in place. Returns the new number of values. */
+    private int dedupRows(int[] offsets, int[] values) {
+      int count = 0;
+      int rowStart = 0;
+      for (int row = 0; row < size; row++) {
+        int rowEnd = offsets[row + 1];
+        Arrays.sort(values, rowStart, rowEnd);
+        offsets[row] = count;
+        for (int i = rowStart; i < rowEnd; i++) {
+          if (count == offsets[row] || values[count - 1] != values[i]) {
+            values[count++] = values[i];
+          }
+        }
+        rowStart = rowEnd;
+      }
+      offsets[size] = count;
+      return count;
+    }
+  }
+
+  /**
+   * A hash map from paths to action IDs, with open addressing and no boxing. The paths of a parsed
+   * manifest are the shared instances of its {@link NodeTable}, so they usually match by identity.
+   */
+  private static final class OutputIndex {
+    private Path[] keys;
+    private int[] values;
+    private int size;
+
+    OutputIndex(int expectedSize) {
+      int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+      keys = new Path[capacity];
+      values = new int[capacity];
+    }
+
+    int get(Path key) {
+      int mask = keys.length - 1;
+      for (int slot = mix(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+        Path existing = keys[slot];
+        if (existing == null) {
+          return -1;
+        }
+        if (existing == key || existing.equals(key)) {
+          return values[slot];
+        }
+      }
+    }
+
+    /** Maps the key to the value unless it is mapped already, and returns the old value or -1. */
+    int putIfAbsent(Path key, int value) {
+      if (2 * (size + 1) > keys.length) {
+        grow();
+      }
+      int mask = keys.length - 1;
+      for (int slot = mix(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+        Path existing = keys[slot];
+        if (existing == null) {
+          keys[slot] = key;
+          values[slot] = value;
+          size++;
+          return -1;
+        }
+        if (existing == key || existing.equals(key)) {
+          return values[slot];
+        }
+      }
+    }
+
+    private void grow() {
+      Path[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new Path[oldKeys.length * 2];
+      values = new int[oldKeys.length * 2];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != null) {
+          putIfAbsent(oldKeys[i], oldValues[i]);
+        }
+      }
+    }
+
+    private static int mix(int hash) {
+      hash *= 0x9e3779b9;
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
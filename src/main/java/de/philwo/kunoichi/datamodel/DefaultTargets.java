@@ -27,6 +27,14 @@ public class DefaultTargets {
     targets.forEach(this.defaultTargets::add);
   }
 
+  public void clear() {
+    defaultTargets.clear();
+  }
+
+  public int size() {
+    return defaultTargets.size();
+  }
+
   public boolean isEmpty() {
     return defaultTargets.isEmpty();
   }
@@ -14,21 +14,101 @@
 
 package de.philwo.kunoichi.datamodel;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
+/**
+ * A scope of variables. Variables are either {@link FormatString}s, which are evaluated in the
+ * scope that defines them, or computed by a {@link Supplier} (e.g. ${in} and ${out} of an action).
+ *
+ * <p>While a manifest is parsed, each scope only holds its own variables and lookups walk up the
+ * chain of parents. Once parsing is done, the scopes of the manifest files are {@link #freeze()
+ * frozen}: each of them is turned into an immutable map that contains the variables of all its
+ * parents, with shadowing already applied. Looking up a variable in a frozen scope is then a single
+ * hash lookup, no matter how deeply its file is nested. Frozen scopes can be read concurrently,
+ * and each of their variables is only evaluated once.
+ *
+ * <p>Until it is frozen, a scope can hide the variables that its parent defines after a given
+ * number of its own. This is how a subninja that is parsed after its parent is complete only sees
+ * what the parent defined before the subninja statement. Once frozen, it sees all of them and
+ * shares their bindings with the parent, like the scopes of Ninja that stay linked to their
+ * parents.
+ */
 public final class Environment {
 
   public static final Environment EMPTY = new Environment();
 
+  static {
+    EMPTY.freeze();
+  }
+
   private final Environment parent;
-  private final Map<String, FormatString> vars = new HashMap<>();
-  private final Map<String, Supplier<String>> computedVars = new HashMap<>();
+
+  /** The number of the parent's own variables that are visible while parsing, or -1 for all. */
+  private final int visibleParentVariables;
+
+  /** The parent's own variables that are hidden while parsing, computed on first use. */
+  private Set<String> hiddenParentVariables;
+
+  /**
+   * The variables of this scope in the order in which they were defined, whose values are {@link
+   * FormatString}s or suppliers.
+   */
+  private final Map<String, Object> vars = new LinkedHashMap<>();
+
+  /** All variables that are visible in this scope, or null if the scope is not frozen yet. */
+  private Map<String, Binding> flattened;
+
+  /** Variables for which we already printed a warning that they are unknown. */
+  private static final Set<String> warnedUnknownVariables = ConcurrentHashMap.newKeySet();
+
+  /**
+   * A variable of a frozen scope together with the scope that defines it, which is where it must
+   * be evaluated. As that scope and its parents can no longer change, the value is only evaluated
+   * once and then shared by all actions that use it.
+   */
+  private static final class Binding {
+    private final Object value;
+    private final Environment scope;
+
+    // Racy single-check idiom: threads that evaluate the binding concurrently all compute the same
+    // immutable String, so it doesn't matter which of them gets to store it.
+    private String memoized;
+
+    Binding(Object value, Environment scope) {
+      this.value = value;
+      this.scope = scope;
+    }
+
+    String evaluate() {
+      String result = memoized;
+      if (result == null) {
+        result = Environment.evaluate(value, scope);
+        memoized = result;
+      }
+      return result;
+    }
+  }
 
   public Environment(Environment parent) {
+    this(parent, -1);
+  }
+
+  /**
+   * Creates a scope that, until it is frozen, only sees the first {@code visibleParentVariables}
+   * variables that the given parent defines itself. The parent must not change anymore once this
+   * scope is used.
+   */
+  public Environment(Environment parent, int visibleParentVariables) {
     this.parent = parent;
+    this.visibleParentVariables = visibleParentVariables;
   }
 
   public Environment() {
@@ -40,44 +120,131 @@ public final class Environment {
   }
 
   public String get(String key) {
-    FormatString value = vars.get(key);
-    if (value == null) {
-      Supplier<String> supplier = computedVars.get(key);
-      if (supplier != null) {
-        return supplier.get();
-      }
+    if (flattened != null) {
+      Binding binding = flattened.get(key);
+      return binding != null ? binding.evaluate() : unknownVariable(key);
     }
-    if (value == null) {
-      if (parent != null) {
-        return parent.get(key);
-      }
-      // I would have thought that undefined variables should be an error, but
-      // Ninja seems to be fine with it and just return an empty string.
+    Object value = vars.get(key);
+    if (value != null) {
+      return evaluate(value, this);
+    }
+    Environment scope = visibleParent(key);
+    if (scope != null) {
+      return scope.get(key);
+    }
+    return unknownVariable(key);
+  }
+
+  /** Returns the scope in which to look up the given variable, if it isn't defined in this one. */
+  private Environment visibleParent(String key) {
+    if (visibleParentVariables < 0 || parent == null) {
+      return parent;
+    }
+    // Racy, but harmless: the parent doesn't change anymore, so all threads compute the same set.
+    if (hiddenParentVariables == null) {
+      hiddenParentVariables =
+          parent.vars.keySet().stream()
+              .skip(visibleParentVariables)
+              .collect(Collectors.toUnmodifiableSet());
+    }
+    return hiddenParentVariables.contains(key) ? parent.parent : parent;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static String evaluate(Object value, Environment scope) {
+    if (value instanceof FormatString formatString) {
+      return formatString.evaluate(scope);
+    }
+    return ((Supplier<String>) value).get();
+  }
+
+  private static String unknownVariable(String key) {
+    // I would have thought that undefined variables should be an error, but
+    // Ninja seems to be fine with it and just return an empty string.
+    if (warnedUnknownVariables.add(key)) {
       System.err.println("WARNING: Unknown variable ${" + key + "}");
-      return "";
     }
-    return value.evaluate(this);
+    return "";
   }
 
   public void put(String key, FormatString value) {
-    if (computedVars.containsKey(key)) {
-      throw new IllegalArgumentException("Duplicate variable: ${" + key + "}");
+    putValue(key, value);
+  }
+
+  public void put(String key, Supplier<String> value) {
+    putValue(key, value);
+  }
+
+  private void putValue(String key, Object value) {
+    if (flattened != null) {
+      throw new IllegalStateException("Cannot modify frozen scope: ${" + key + "}");
     }
-    if (vars.put(key, value) != null) {
+    if (vars.putIfAbsent(key, value) != null) {
       throw new IllegalArgumentException("Duplicate variable: ${" + key + "}");
     }
   }
 
-  public void put(String key, Supplier<String> value) {
+  /** Returns whether the given variable is defined in this scope or one of its parents. */
+  public boolean has(String key) {
+    if (flattened != null) {
+      return flattened.containsKey(key);
+    }
     if (vars.containsKey(key)) {
-      throw new IllegalArgumentException("Duplicate variable: ${" + key + "}");
+      return true;
     }
-    if (computedVars.put(key, value) != null) {
-      throw new IllegalArgumentException("Duplicate variable: ${" + key + "}");
+    Environment scope = visibleParent(key);
+    return scope != null && scope.has(key);
+  }
+
+  /** Returns whether the given variable is defined in this scope, not just in a parent. */
+  public boolean hasLocal(String key) {
+    return vars.containsKey(key);
+  }
+
+  /** Returns the number of variables defined in this scope, without those of the parent. */
+  public int localSize() {
+    return vars.size();
+  }
+
+  /**
+   * Returns the variables defined in this scope in the order of their definition, without those
+   * inherited from the parent.
+   */
+  public Map<String, FormatString> variables() {
+    LinkedHashMap<String, FormatString> variables = new LinkedHashMap<>();
+    for (Entry<String, Object> entry : vars.entrySet()) {
+      if (entry.getValue() instanceof FormatString formatString) {
+        variables.put(entry.getKey(), formatString);
+      }
     }
+    return Collections.unmodifiableMap(variables);
   }
 
   public void add(Entry<String, FormatString> entry) {
     put(entry.getKey(), entry.getValue());
   }
+
+  /**
+   * Makes this scope and its parents immutable and flattens them into a single lookup table. Scopes
+   * that are created later can still use a frozen scope as their parent.
+   */
+  public void freeze() {
+    if (flattened != null) {
+      return;
+    }
+    HashMap<String, Binding> bindings = new HashMap<>();
+    if (parent != null) {
+      parent.freeze();
+      bindings.putAll(parent.flattened);
+    }
+    for (Entry<String, Object> entry : vars.entrySet()) {
+      bindings.put(entry.getKey(), new Binding(entry.getValue(), this));
+    }
+    flattened = Map.copyOf(bindings);
+    hiddenParentVariables = null;
+  }
+
+  public boolean isFrozen() {
+    return flattened != null;
+  }
 }
@@ -15,12 +15,82 @@
 package de.philwo.kunoichi.datamodel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
-public record FormatString(List<Chunk> chunks) {
+/**
+ * A string that may contain references to variables, which are expanded when it is evaluated in an
+ * {@link Environment}.
+ *
+ * <p>Format strings are evaluated very often (e.g. the command of a rule once per action), so they
+ * are compiled into an evaluation plan when they are created: adjacent text chunks are merged, and
+ * the text between variables is kept in an array, so that evaluating only has to append the text
+ * and the values of the variables in turn. Format strings without variables evaluate to a
+ * precomputed string.
+ */
+public final class FormatString {
+  private static final String[] NO_VARIABLES = new String[0];
+
   static final FormatString EMPTY = new FormatString(List.of());
 
+  /**
+   * The text before each variable, followed by the text after the last variable. Always has one
+   * more element than {@link #variables}.
+   */
+  private final String[] texts;
+
+  private final String[] variables;
+
+  /**
+   * The length of the longest result so far. Used to presize the builder for the next evaluation.
+   * Updated racily, which is fine as it is only a hint.
+   */
+  private int lengthHint;
+
+  public FormatString(List<Chunk> chunks) {
+    int variableCount = 0;
+    for (Chunk chunk : chunks) {
+      if (chunk.kind() == Chunk.Kind.VARIABLE) {
+        variableCount++;
+      }
+    }
+    this.texts = new String[variableCount + 1];
+    this.variables = variableCount == 0 ? NO_VARIABLES : new String[variableCount];
+
+    int slot = 0;
+    String text = "";
+    for (Chunk chunk : chunks) {
+      switch (chunk.kind()) {
+        case TEXT -> text = text.isEmpty() ? chunk.text() : text + chunk.text();
+        case VARIABLE -> {
+          texts[slot] = text;
+          variables[slot++] = chunk.text();
+          text = "";
+        }
+      }
+    }
+    texts[slot] = text;
+    this.lengthHint = text.length();
+  }
+
+  private FormatString(String[] texts, String[] variables) {
+    this.texts = texts;
+    this.variables = variables.length == 0 ? NO_VARIABLES : variables;
+    this.lengthHint = texts[variables.length].length();
+  }
+
+  /**
+   * Creates a format string from its evaluation plan, i.e. from the values of {@link #text} and
+   * {@link #variable}. The arrays are not copied.
+   */
+  public static FormatString compiled(String[] texts, String[] variables) {
+    if (texts.length != variables.length + 1) {
+      throw new IllegalArgumentException(
+          "Expected " + (variables.length + 1) + " texts, got " + texts.length);
+    }
+    return new FormatString(texts, variables);
+  }
+
   public static FormatString fromPlainText(String text) {
     if (text.contains("$")) {
       throw new IllegalArgumentException("Text must not contain '$' characters: " + text);
@@ -32,28 +102,81 @@ public record FormatString(List<Chunk> chunks) {
     return new FormatStringBuilder();
   }
 
+  /** Returns the chunks of this format string, with adjacent text merged and empty text omitted. */
+  public List<Chunk> chunks() {
+    List<Chunk> chunks = new ArrayList<>(2 * variables.length + 1);
+    for (int i = 0; i < variables.length; i++) {
+      if (!texts[i].isEmpty()) {
+        chunks.add(new Chunk(Chunk.Kind.TEXT, texts[i]));
+      }
+      chunks.add(new Chunk(Chunk.Kind.VARIABLE, variables[i]));
+    }
+    if (!texts[variables.length].isEmpty()) {
+      chunks.add(new Chunk(Chunk.Kind.TEXT, texts[variables.length]));
+    }
+    return chunks;
+  }
+
+  /** Returns the number of variable references, i.e. how many lookups an evaluation performs. */
+  public int variableCount() {
+    return variables.length;
+  }
+
+  /** Returns the name of the variable at the given index. */
+  public String variable(int index) {
+    return variables[index];
+  }
+
+  /**
+   * Returns the text before the variable at the given index, or the text after the last variable if
+   * the index is {@link #variableCount}.
+   */
+  public String text(int index) {
+    return texts[index];
+  }
+
   public String evaluate(Environment env) {
-    return chunks.stream()
-        .map(
-            chunk ->
-                switch (chunk.kind()) {
-                  case TEXT -> chunk.text();
-                  case VARIABLE -> env.get(chunk.text());
-                })
-        .collect(Collectors.joining());
+    if (variables.length == 0) {
+      return texts[0];
+    }
+    StringBuilder sb = new StringBuilder(lengthHint);
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(texts[i]).append(env.get(variables[i]));
+    }
+    sb.append(texts[variables.length]);
+    if (sb.length() > lengthHint) {
+      lengthHint = sb.length();
+    }
+    return sb.toString();
   }
 
   public boolean isEmpty() {
-    return chunks.isEmpty();
+    return variables.length == 0 && texts[0].isEmpty();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof FormatString other
+        && Arrays.equals(texts, other.texts)
+        && Arrays.equals(variables, other.variables);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(texts) + Arrays.hashCode(variables);
   }
 
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    for (Chunk chunk : chunks) {
-      sb.append(chunk.toQuotedString());
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(quote(texts[i])).append("${").append(variables[i]).append('}');
     }
-    return sb.toString();
+    return sb.append(quote(texts[variables.length])).toString();
+  }
+
+  private static String quote(String text) {
+    return text.replace("$", "$$");
   }
 
   public record Chunk(Kind kind, String text) {
@@ -61,13 +184,6 @@ public record FormatString(List<Chunk> chunks) {
       TEXT,
       VARIABLE
     }
-
-    private String toQuotedString() {
-      return switch (kind) {
-        case TEXT -> text.replace("$", "$$");
-        case VARIABLE -> "${" + text + "}";
-      };
-    }
   }
 
   public static class FormatStringBuilder {
@@ -0,0 +1,120 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A file in the build graph, i.e. a distinct canonical path. There is exactly one node per path in
+ * a {@link NodeTable}, so nodes can be compared by identity.
+ *
+ * <p>Besides its path, a node knows the action that produces it (if any), the actions that consume
+ * it, and caches what we learned about the file on disk.
+ */
+public final class Node {
+
+  /** The modification time of a file that hasn't been looked at yet. */
+  public static final long MTIME_UNKNOWN = -1;
+
+  /** The modification time of a file that doesn't exist. Files from the epoch get 1 instead. */
+  public static final long MTIME_MISSING = 0;
+
+  private static final Action[] NO_ACTIONS = new Action[0];
+
+  private final int id;
+  private final String name;
+  private final Path path;
+
+  private Action producer;
+  private boolean multipleProducers;
+  private Action[] consumers = NO_ACTIONS;
+  private int consumerCount;
+
+  private volatile long mtime = MTIME_UNKNOWN;
+
+  Node(int id, String name) {
+    this.id = id;
+    this.name = name;
+    this.path = Path.of(name);
+  }
+
+  /** Returns the ID of this node, which is unique and dense within its {@link NodeTable}. */
+  public int id() {
+    return id;
+  }
+
+  /** Returns the canonical name of this node. */
+  public String name() {
+    return name;
+  }
+
+  public Path path() {
+    return path;
+  }
+
+  /** Returns the action that produces this file, or null if it is a source file. */
+  public synchronized Action producer() {
+    return producer;
+  }
+
+  /**
+   * Records the action that produces this file, unless another one was recorded already. Returns
+   * the previously recorded producer, or null if the given action is the producer now.
+   */
+  public synchronized Action setProducer(Action action) {
+    if (producer != null) {
+      multipleProducers |= producer != action;
+      return producer;
+    }
+    producer = action;
+    return null;
+  }
+
+  /** Returns true if more than one action tried to register as the producer of this file. */
+  public synchronized boolean hasMultipleProducers() {
+    return multipleProducers;
+  }
+
+  /** Returns the actions that consume this file, in the order in which they were added. */
+  public synchronized List<Action> consumers() {
+    return List.of(Arrays.copyOf(consumers, consumerCount));
+  }
+
+  public synchronized void addConsumer(Action action) {
+    if (consumerCount == consumers.length) {
+      consumers = Arrays.copyOf(consumers, Math.max(4, consumerCount * 2));
+    }
+    consumers[consumerCount++] = action;
+  }
+
+  /**
+   * Returns the cached modification time of the file in nanoseconds, {@link #MTIME_MISSING} if it
+   * doesn't exist or {@link #MTIME_UNKNOWN} if it hasn't been looked at yet.
+   */
+  public long mtime() {
+    return mtime;
+  }
+
+  public void setMtime(long mtime) {
+    this.mtime = mtime;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+import de.philwo.kunoichi.utils.Preconditions;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every distinct canonical path of a build to a single {@link Node} and assigns the nodes
+ * dense IDs. Nodes are looked up by their name, which is cheaper than hashing and comparing {@link
+ * Path}s and doesn't need a Path for names that were seen before.
+ *
+ * <p>The table is thread-safe, so the manifest parser can add nodes from multiple threads.
+ */
+public final class NodeTable {
+
+  private final ConcurrentHashMap<String, Node> nodesByName = new ConcurrentHashMap<>();
+
+  // Guarded by this.
+  private Node[] nodes = new Node[1024];
+  private int size;
+
+  /**
+   * Returns the node for the given path name, which is created if it doesn't exist yet. The name
+   * doesn't have to be canonical: "./foo.h" and "foo.h" are the same node.
+   */
+  public Node intern(String name) {
+    Node node = nodesByName.get(name);
+    if (node != null) {
+      return node;
+    }
+    String canonicalName = PathCanonicalizer.canonicalize(name);
+    node = nodesByName.computeIfAbsent(canonicalName, this::add);
+    if (!canonicalName.equals(name)) {
+      // Remember the spelling as well, so that we don't have to canonicalize it again.
+      nodesByName.putIfAbsent(name, node);
+    }
+    return node;
+  }
+
+  /** Returns the node for the given path name, or null if there is none. */
+  public Node get(String name) {
+    Node node = nodesByName.get(name);
+    return node != null ? node : nodesByName.get(PathCanonicalizer.canonicalize(name));
+  }
+
+  /** Returns the node for the given path, or null if there is none. */
+  public Node get(Path path) {
+    return get(path.toString());
+  }
+
+  /** Returns the node with the given ID. */
+  public synchronized Node node(int id) {
+    Preconditions.checkArgument(id >= 0 && id < size, "Unknown node ID: %s", id);
+    return nodes[id];
+  }
+
+  /** Returns the number of nodes, which is also the exclusive upper bound of their IDs. */
+  public synchronized int size() {
+    return size;
+  }
+
+  private synchronized Node add(String canonicalName) {
+    if (size == nodes.length) {
+      nodes = Arrays.copyOf(nodes, size * 2);
+    }
+    Node node = new Node(size, canonicalName);
+    nodes[size++] = node;
+    return node;
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+/**
+ * Canonicalizes path names the same way as {@code Path.of(name).normalize().toString()}, but
+ * without creating a {@link java.nio.file.Path} first.
+ *
+ * <p>Redundant slashes, trailing slashes and "." components are removed, and "x/.." is collapsed
+ * unless x is ".." itself. Leading ".." components are kept for relative paths and dropped for
+ * absolute ones. Nearly all names in a manifest are canonical already, so the common case is a
+ * single scan over the characters that returns the given string without allocating.
+ */
+public final class PathCanonicalizer {
+
+  private PathCanonicalizer() {}
+
+  /** Returns the canonical form of the given path name. */
+  public static String canonicalize(String name) {
+    return isCanonical(name) ? name : canonicalizeSlowly(name);
+  }
+
+  /** Returns true if the given name contains no empty, "." or collapsible ".." components. */
+  static boolean isCanonical(String name) {
+    int length = name.length();
+    if (length > 1 && name.charAt(length - 1) == '/') {
+      return false;
+    }
+    // Leading ".." components are fine for relative paths, as they can't be collapsed.
+    boolean leading = !name.isEmpty() && name.charAt(0) != '/';
+    int start = leading ? 0 : 1;
+    while (start <= length) {
+      int end = start;
+      while (end < length && name.charAt(end) != '/') {
+        end++;
+      }
+      int componentLength = end - start;
+      if (componentLength == 0 && start < length) {
+        return false;
+      }
+      if (componentLength == 1 && name.charAt(start) == '.') {
+        return false;
+      }
+      boolean dotDot =
+          componentLength == 2 && name.charAt(start) == '.' && name.charAt(start + 1) == '.';
+      if (dotDot && !leading) {
+        return false;
+      }
+      leading &= dotDot;
+      start = end + 1;
+    }
+    return true;
+  }
+
+  private static String canonicalizeSlowly(String name) {
+    int length = name.length();
+    char[] out = new char[length];
+    boolean absolute = length > 0 && name.charAt(0) == '/';
+    int outLength = absolute ? 1 : 0;
+    if (absolute) {
+      out[0] = '/';
+    }
+
+    // For each component in the output, where the output ended before it (including the slash
+    // that separates it from the previous one). Leading ".." components are never popped.
+    int[] componentEnds = new int[length / 2 + 1];
+    int depth = 0;
+    int leadingDotDots = 0;
+
+    int start = 0;
+    while (start < length) {
+      int end = start;
+      while (end < length && name.charAt(end) != '/') {
+        end++;
+      }
+      int componentLength = end - start;
+      boolean dot = componentLength == 1 && name.charAt(start) == '.';
+      boolean dotDot =
+          componentLength == 2 && name.charAt(start) == '.' && name.charAt(start + 1) == '.';
+      if (componentLength == 0 || dot) {
+        // Skip empty and "." components.
+      } else if (dotDot && depth > leadingDotDots) {
+        outLength = componentEnds[--depth];
+      } else if (dotDot && absolute) {
+        // "/.." is "/".
+      } else {
+        componentEnds[depth++] = outLength;
+        if (dotDot) {
+          leadingDotDots++;
+        }
+        if (outLength > (absolute ? 1 : 0)) {
+          out[outLength++] = '/';
+        }
+        name.getChars(start, end, out, outLength);
+        outLength += componentLength;
+      }
+      start = end + 1;
+    }
+    return new String(out, 0, outLength);
+  }
+}
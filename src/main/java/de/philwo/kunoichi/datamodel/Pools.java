@@ -15,6 +15,7 @@
 package de.philwo.kunoichi.datamodel;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 
 public final class Pools {
 
@@ -33,4 +34,12 @@ public final class Pools {
       throw new IllegalArgumentException("Duplicate pool: " + pool.name());
     }
   }
+
+  public List<Pool> items() {
+    return List.copyOf(pools.values());
+  }
+
+  public void addAll(Pools other) {
+    other.pools.values().forEach(this::add);
+  }
 }
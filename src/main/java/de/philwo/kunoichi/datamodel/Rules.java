@@ -14,18 +14,54 @@
 
 package de.philwo.kunoichi.datamodel;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+/**
+ * A scope of rules. Like {@link Environment}, a scope can be {@link #freeze() frozen} once parsing
+ * is done, which flattens it together with its parents into a single immutable lookup table.
+ *
+ * <p>A scope can hide the rules that its parent defines after a given number of its own, so that a
+ * subninja only sees the rules that were defined before its statement.
+ */
 public final class Rules {
 
   public static final Rules EMPTY = new Rules();
 
+  static {
+    EMPTY.freeze();
+  }
+
   private final Rules parent;
-  private final Map<String, Rule> rules = new HashMap<>();
+
+  /** The number of the parent's own rules that are visible, or -1 for all. */
+  private final int visibleParentRules;
+
+  /** The parent's own rules that are hidden, computed on first use. */
+  private Set<String> hiddenParentRules;
+
+  /** The rules of this scope in the order in which they were defined. */
+  private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+  /** All rules that are visible in this scope, or null if the scope is not frozen yet. */
+  private Map<String, Rule> flattened;
 
   public Rules(Rules parent) {
+    this(parent, -1);
+  }
+
+  /**
+   * Creates a scope that only sees the first {@code visibleParentRules} rules that the given parent
+   * defines itself. The parent must not change anymore once this scope is used.
+   */
+  public Rules(Rules parent, int visibleParentRules) {
     this.parent = parent;
+    this.visibleParentRules = visibleParentRules;
   }
 
   public Rules() {
@@ -33,19 +69,79 @@ public final class Rules {
   }
 
   public Rule get(String name) {
-    Rule rule = rules.get(name);
+    Rule rule = flattened != null ? flattened.get(name) : rules.get(name);
     if (rule == null) {
-      if (parent != null) {
-        return parent.get(name);
+      Rules scope = flattened == null ? visibleParent(name) : null;
+      if (scope != null) {
+        return scope.get(name);
       }
       throw new IllegalArgumentException("Unknown rule: ${" + name + "}");
     }
     return rule;
   }
 
+  /** Returns the scope in which to look up the given rule, if it isn't defined in this one. */
+  private Rules visibleParent(String name) {
+    if (visibleParentRules < 0 || parent == null) {
+      return parent;
+    }
+    // Racy, but harmless: the parent doesn't change anymore, so all threads compute the same set.
+    if (hiddenParentRules == null) {
+      hiddenParentRules =
+          parent.rules.keySet().stream()
+              .skip(visibleParentRules)
+              .collect(Collectors.toUnmodifiableSet());
+    }
+    return hiddenParentRules.contains(name) ? parent.parent : parent;
+  }
+
+  /** Returns the number of rules defined in this scope, without those of the parent. */
+  public int localSize() {
+    return rules.size();
+  }
+
+  /**
+   * Returns the rules defined in this scope in the order of their definition, without those
+   * inherited from the parent.
+   */
+  public Collection<Rule> items() {
+    return Collections.unmodifiableCollection(rules.values());
+  }
+
   public void add(Rule rule) {
-    if (rules.put(rule.name(), rule) != null) {
+    if (flattened != null) {
+      throw new IllegalStateException("Cannot modify frozen scope: ${" + rule.name() + "}");
+    }
+    if (rules.putIfAbsent(rule.name(), rule) != null) {
       throw new IllegalArgumentException("Duplicate rule: ${" + rule.name() + "}");
     }
   }
+
+  /** Makes this scope and its parents immutable and flattens them into a single lookup table. */
+  public void freeze() {
+    if (flattened != null) {
+      return;
+    }
+    HashMap<String, Rule> visible = new HashMap<>();
+    if (parent != null) {
+      parent.freeze();
+      if (visibleParentRules < 0) {
+        visible.putAll(parent.flattened);
+      } else {
+        if (parent.parent != null) {
+          visible.putAll(parent.parent.flattened);
+        }
+        parent.rules.values().stream()
+            .limit(visibleParentRules)
+            .forEach(rule -> visible.put(rule.name(), rule));
+      }
+    }
+    visible.putAll(rules);
+    flattened = Map.copyOf(visible);
+    hiddenParentRules = null;
+  }
+
+  public boolean isFrozen() {
+    return flattened != null;
+  }
 }
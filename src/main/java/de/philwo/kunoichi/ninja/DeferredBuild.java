@@ -0,0 +1,67 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.Rules;
+import de.philwo.kunoichi.ninja.NinjaStatement.DeferredBuildStatement;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A build statement of a lazily loaded manifest, which is only parsed and turned into an {@link
+ * Action} once one of its outputs is needed. Until then, it only holds on to its scope and the
+ * range of the manifest that it was read from.
+ */
+final class DeferredBuild {
+
+  private final Rules rules;
+  private final Environment env;
+  private final ByteBuffer buffer;
+  private final int start;
+  private final int end;
+
+  /** Counts the deferred builds of the manifest tree that have been materialized. */
+  private final AtomicInteger materializedCount;
+
+  private Action action;
+
+  DeferredBuild(
+      Rules rules,
+      Environment env,
+      DeferredBuildStatement statement,
+      AtomicInteger materializedCount) {
+    this.rules = rules;
+    this.env = env;
+    this.buffer = statement.buffer();
+    this.start = statement.start();
+    this.end = statement.end();
+    this.materializedCount = materializedCount;
+  }
+
+  /** Returns the action of this build statement, which is created on the first call. */
+  synchronized Action materialize(Interner interner) throws IOException {
+    if (action == null) {
+      NinjaFileLexer lexer = new NinjaFileLexer(buffer, start, end, interner);
+      action =
+          new NinjaTargetEvaluator(rules, env, interner)
+              .evaluate(new NinjaTargetParser(lexer).parse());
+      materializedCount.incrementAndGet();
+    }
+    return action;
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deduplicates the strings, {@link FormatString}s and paths of a manifest tree while it is parsed,
+ * so that the same header, object file or compiler flag is only kept in memory once, no matter how
+ * many build statements refer to it.
+ *
+ * <p>The tables only live as long as the parse: {@link NinjaFile} drops its interner once it is
+ * loaded. Afterwards, the parsed model holds on to the shared instances, but the tables themselves
+ * can be garbage collected. The exception are paths, which are interned as the {@link Node}s of a
+ * {@link NodeTable} that outlives the parse.
+ */
+final class Interner {
+
+  // Rough shallow sizes of the objects we deduplicate, assuming compressed oops: a String with its
+  // byte[], a FormatString with its list and a chunk, and a UnixPath with its byte[] and String.
+  private static final int STRING_OVERHEAD = 40;
+  private static final int FORMAT_STRING_OVERHEAD = 56;
+  private static final int PATH_OVERHEAD = 112;
+
+  /** Rough size of an entry of our tables: a ConcurrentHashMap node and its slot in the array. */
+  private static final int TABLE_ENTRY_OVERHEAD = 40;
+
+  private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<FormatString, FormatString> formatStrings =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FormatString> texts = new ConcurrentHashMap<>();
+  private final NodeTable nodes;
+
+  private final LongAdder dedupedObjects = new LongAdder();
+  private final LongAdder dedupedBytes = new LongAdder();
+
+  Interner() {
+    this(new NodeTable());
+  }
+
+  Interner(NodeTable nodes) {
+    this.nodes = nodes;
+  }
+
+  NodeTable nodes() {
+    return nodes;
+  }
+
+  /** Returns the shared instance of the given string. */
+  String intern(String s) {
+    String existing = strings.putIfAbsent(s, s);
+    if (existing == null) {
+      return s;
+    }
+    recordDuplicate(STRING_OVERHEAD + s.length());
+    return existing;
+  }
+
+  /** Returns the shared instance of the given format string, whose chunks are interned as well. */
+  FormatString intern(FormatString formatString) {
+    FormatString existing = formatStrings.get(formatString);
+    if (existing != null) {
+      long bytes = FORMAT_STRING_OVERHEAD;
+      for (int i = 0; i < formatString.variableCount(); i++) {
+        bytes += STRING_OVERHEAD + formatString.variable(i).length();
+      }
+      for (int i = 0; i <= formatString.variableCount(); i++) {
+        bytes += STRING_OVERHEAD + formatString.text(i).length();
+      }
+      recordDuplicate(bytes);
+      return existing;
+    }
+    String[] texts = new String[formatString.variableCount() + 1];
+    String[] variables = new String[formatString.variableCount()];
+    for (int i = 0; i < variables.length; i++) {
+      texts[i] = intern(formatString.text(i));
+      variables[i] = intern(formatString.variable(i));
+    }
+    texts[variables.length] = intern(formatString.text(variables.length));
+    FormatString interned = FormatString.compiled(texts, variables);
+    existing = formatStrings.putIfAbsent(interned, interned);
+    return existing != null ? existing : interned;
+  }
+
+  /**
+   * Returns the shared instance of the format string that consists of the given plain text. This
+   * is cheaper than building the format string first and then interning it.
+   */
+  FormatString text(String text) {
+    FormatString formatString = texts.get(text);
+    if (formatString != null) {
+      recordDuplicate(FORMAT_STRING_OVERHEAD + STRING_OVERHEAD + text.length());
+      return formatString;
+    }
+    formatString =
+        intern(FormatString.compiled(new String[] {text}, new String[0]));
+    FormatString existing = texts.putIfAbsent(text, formatString);
+    return existing != null ? existing : formatString;
+  }
+
+  /** Returns the shared instance of the normalized path with the given name. */
+  Path path(String name) {
+    return node(name).path();
+  }
+
+  /** Returns the node of the path with the given name. */
+  Node node(String name) {
+    Node node = nodes.get(name);
+    if (node != null) {
+      // Either a path we already know, or a different spelling of it, e.g. "./foo.h" and "foo.h".
+      recordDuplicate(PATH_OVERHEAD + 2 * name.length());
+      return node;
+    }
+    return nodes.intern(name);
+  }
+
+  private void recordDuplicate(long bytes) {
+    dedupedObjects.increment();
+    dedupedBytes.add(bytes);
+  }
+
+  /** Returns how many duplicate objects were replaced by a shared instance. */
+  long dedupedObjects() {
+    return dedupedObjects.sum();
+  }
+
+  /**
+   * Returns an estimate of the heap that was saved by sharing instances, minus the heap used by the
+   * tables. This is negative if there were too few duplicates to pay for the tables.
+   */
+  long dedupedBytes() {
+    long tableEntries = (long) strings.size() + formatStrings.size() + texts.size();
+    return dedupedBytes.sum() - tableEntries * TABLE_ENTRY_OVERHEAD;
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A manifest that is read incrementally, so that the beginning of the file can already be parsed
+ * while the rest is still being read. This is used for gzip-compressed files, which are
+ * decompressed on the fly, and for manifests that are piped in by a generator through stdin or a
+ * FIFO.
+ *
+ * <p>The bytes read so far are kept in a single array, which the lexer can work on just like on a
+ * memory-mapped file. Buffers returned by {@link #buffer()} stay valid when more data is read
+ * later, they just don't see it.
+ */
+final class ManifestStream {
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  /** Arrays can't be larger than this on most JVMs. */
+  private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+  /** The best compression ratio that deflate can achieve, used to sanity-check the size hint. */
+  private static final int MAX_DEFLATE_RATIO = 1032;
+
+  private static final int INITIAL_CAPACITY = 64 << 10;
+
+  private final Path path;
+  private final InputStream in;
+  private final CountingInputStream raw;
+  private byte[] data;
+  private int size;
+  private boolean complete;
+
+  private ManifestStream(Path path, CountingInputStream raw, InputStream in, int initialCapacity) {
+    this.path = path;
+    this.raw = raw;
+    this.in = in;
+    this.data = new byte[initialCapacity];
+  }
+
+  /** Returns a stream that decompresses the given gzip-compressed file. */
+  static ManifestStream decompress(Path path, ByteBuffer compressed) throws IOException {
+    CountingInputStream raw = new CountingInputStream(new ByteBufferInputStream(compressed));
+    return new ManifestStream(
+        path, raw, new GZIPInputStream(raw, INITIAL_CAPACITY), initialCapacity(compressed));
+  }
+
+  /**
+   * Returns a stream that reads the manifest at {@code path} from the given input, e.g. from stdin
+   * or a FIFO. The input is decompressed on the fly if it starts with the gzip magic bytes.
+   */
+  static ManifestStream open(Path path, InputStream input) throws IOException {
+    CountingInputStream raw = new CountingInputStream(input);
+    PushbackInputStream in = new PushbackInputStream(raw, 2);
+    int b0 = in.read();
+    int b1 = b0 >= 0 ? in.read() : -1;
+    if (b1 >= 0) {
+      in.unread(b1);
+    }
+    if (b0 >= 0) {
+      in.unread(b0);
+    }
+    if ((b0 | b1 << 8) == GZIP_MAGIC) {
+      return new ManifestStream(
+          path, raw, new GZIPInputStream(in, INITIAL_CAPACITY), INITIAL_CAPACITY);
+    }
+    return new ManifestStream(path, raw, in, INITIAL_CAPACITY);
+  }
+
+  /**
+   * Returns true if the given manifest is gzip-compressed. Files whose name ends in ".gz" are
+   * always treated as compressed, so that a corrupt file is reported as such.
+   */
+  static boolean isCompressed(Path path, ByteBuffer buffer) {
+    if (path.getFileName() != null && path.getFileName().toString().endsWith(".gz")) {
+      return true;
+    }
+    return buffer.limit() >= 2
+        && buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getShort(0) == (short) GZIP_MAGIC;
+  }
+
+  /**
+   * Estimates the decompressed size from the trailer, which holds the size of the last member
+   * modulo 2^32. This is only a hint: a wrong one just means that the array has to grow.
+   */
+  private static int initialCapacity(ByteBuffer compressed) {
+    int limit = compressed.limit();
+    long hint =
+        limit >= 18
+            ? Integer.toUnsignedLong(
+                compressed.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(limit - 4))
+            : 0;
+    long max = Math.min(MAX_SIZE, (long) limit * MAX_DEFLATE_RATIO);
+    return (int) Math.min(Math.max(hint, 4096), max);
+  }
+
+  /**
+   * Reads until at least {@code minSize} bytes are available or the end of the input is reached.
+   * Returns false once the whole input has been read.
+   */
+  boolean read(long minSize) throws IOException {
+    while (!complete && size < minSize) {
+      if (size == data.length) {
+        grow();
+      }
+      int n = in.read(data, size, data.length - size);
+      if (n < 0) {
+        complete = true;
+        in.close();
+      } else {
+        size += n;
+      }
+    }
+    return !complete;
+  }
+
+  private void grow() throws IOException {
+    if (data.length == MAX_SIZE) {
+      throw new IOException("Manifest is too large to be read: " + path);
+    }
+    data = Arrays.copyOf(data, (int) Math.min(MAX_SIZE, 2L * data.length));
+  }
+
+  /** Returns a buffer with the bytes that have been read so far. */
+  ByteBuffer buffer() {
+    return ByteBuffer.wrap(data, 0, size).slice();
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  /** Returns the number of (uncompressed) bytes that have been read so far. */
+  int size() {
+    return size;
+  }
+
+  /** Returns the number of bytes that have been consumed from the underlying input so far. */
+  long rawSize() {
+    return raw.count;
+  }
+
+  /** Reads from a buffer without copying it first, e.g. from a memory-mapped file. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+  }
+}
@@ -20,18 +20,53 @@ import de.philwo.kunoichi.datamodel.Action;
 import de.philwo.kunoichi.datamodel.DefaultTargets;
 import de.philwo.kunoichi.datamodel.Environment;
 import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
 import de.philwo.kunoichi.datamodel.Pools;
 import de.philwo.kunoichi.datamodel.Rules;
+import de.philwo.kunoichi.ninja.NinjaSnapshot.FileStamp;
+import de.philwo.kunoichi.ninja.NinjaStatement.BuildStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.DefaultStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.DeferredBuildStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.IncludeStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.PoolStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.RuleStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.SubninjaStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.VariableStatement;
 import de.philwo.kunoichi.ninja.NinjaToken.Type;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public final class NinjaFile {
 
+  /** Files larger than this are split into chunks of about this size and parsed in parallel. */
+  static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+  /**
+   * Streamed manifests are parsed in smaller chunks, so that little work is left once the writer of
+   * the stream has finished.
+   */
+  private static final int STREAM_CHUNK_SIZE = 1 << 20;
+
+  /** Number of consecutive build statements that are evaluated by one task in chunked mode. */
+  private static final int BUILD_BATCH_SIZE = 4096;
+
   final Path filePath;
   final Environment env;
   final Rules rules;
@@ -39,31 +74,155 @@ public final class NinjaFile {
   final Pools pools;
   final ArrayList<Action> actions;
 
+  /** The scope that contains the subninja statement for this file, or null for the top level. */
+  private final NinjaFile parent;
+
+  private final LoadContext context;
+
+  /** The subninjas referenced by this file (or its includes), in the order of their statements. */
+  final ArrayList<Subninja> subninjas = new ArrayList<>();
+
+  /** The manifest files that were read into this scope, as they were at the time of reading. */
+  final ArrayList<FileStamp> files = new ArrayList<>();
+
+  /** Identifies the variables and rules of this scope and all of its parents, once complete. */
+  long scopeHash;
+
   public static NinjaFile parse(Path filePath) throws IOException {
-    NinjaFile ninjaFile = new NinjaFile(filePath);
-    ninjaFile.rules().add(PHONY_RULE);
-    try (NinjaFileParser parser = ninjaFile.new NinjaFileParser(filePath)) {
-      parser.parse();
+    return parse(
+        filePath,
+        null,
+        null,
+        false,
+        DEFAULT_CHUNK_SIZE,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Parses the manifest that is read from {@code manifest} as if it was the file at {@code
+   * filePath}, e.g. while a generator is still writing it to our stdin. Statements are parsed and
+   * applied as they arrive, so the model is almost complete once the stream ends. Includes and
+   * subninjas are resolved relative to {@code filePath}, and the snapshot (which may be null) is
+   * only used for the subninjas.
+   */
+  public static NinjaFile parse(Path filePath, InputStream manifest, Path snapshotPath)
+      throws IOException {
+    return parse(
+        filePath,
+        manifest,
+        snapshotPath,
+        false,
+        DEFAULT_CHUNK_SIZE,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Parses the manifest like {@link #parse(Path)}, but reuses the snapshot at {@code snapshotPath}
+   * from a previous run for all scopes whose files and parent scopes did not change. The snapshot
+   * is updated afterwards if any file had to be parsed.
+   */
+  public static NinjaFile parse(Path filePath, Path snapshotPath) throws IOException {
+    return parse(
+        filePath,
+        null,
+        snapshotPath,
+        false,
+        DEFAULT_CHUNK_SIZE,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  static NinjaFile parse(Path filePath, int chunkSize) throws IOException {
+    return parse(
+        filePath, null, null, false, chunkSize, Runtime.getRuntime().availableProcessors());
+  }
+
+  static NinjaFile parse(Path filePath, InputStream manifest, int chunkSize) throws IOException {
+    return parse(
+        filePath, manifest, null, false, chunkSize, Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Parses the manifest using at most {@code parallelism} threads. */
+  static NinjaFile parse(Path filePath, int chunkSize, int parallelism) throws IOException {
+    return parse(filePath, null, null, false, chunkSize, parallelism);
+  }
+
+  /**
+   * Loads the manifest without creating {@link Action}s for its build statements. Only the outputs
+   * of each build statement are read and recorded in an index, along with the range of the file
+   * that the statement spans. The action that generates an output is then created on demand by
+   * {@link #getGeneratingAction}, which makes loading much cheaper if only a small part of the
+   * graph is needed. {@link #actions()} is always empty for such a manifest.
+   *
+   * <p>Syntax errors in the skipped part of a build statement, and unknown rules, are only reported
+   * once the statement is materialized.
+   */
+  public static NinjaFile parseLazily(Path filePath) throws IOException {
+    return parseLazily(filePath, DEFAULT_CHUNK_SIZE);
+  }
+
+  static NinjaFile parseLazily(Path filePath, int chunkSize) throws IOException {
+    return parse(
+        filePath, null, null, true, chunkSize, Runtime.getRuntime().availableProcessors());
+  }
+
+  private static NinjaFile parse(
+      Path filePath,
+      InputStream manifest,
+      Path snapshotPath,
+      boolean lazy,
+      int chunkSize,
+      int parallelism)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      LoadContext context = new LoadContext(executor, chunkSize, snapshotPath != null, lazy);
+      NinjaFile ninjaFile = new NinjaFile(filePath, context);
+      ninjaFile.rules().add(PHONY_RULE);
+      ninjaFile.loadFile(
+          filePath, manifest, snapshotPath != null ? NinjaSnapshot.read(snapshotPath) : null);
+      ninjaFile.awaitSubninjas();
+      if (snapshotPath != null && context.parsedScopes.get() > 0) {
+        NinjaSnapshot.write(snapshotPath, ninjaFile);
+      }
+      ninjaFile.freezeScopes();
+      ninjaFile.mergeSubninjas();
+      context.releaseInterner();
+      return ninjaFile;
+    } finally {
+      executor.shutdownNow();
     }
-    return ninjaFile;
   }
 
-  private NinjaFile(Path filePath) {
+  private NinjaFile(Path filePath, LoadContext context) {
     this.filePath = filePath;
     this.env = new Environment();
     this.rules = new Rules();
     this.defaultTargets = new DefaultTargets();
     this.pools = new Pools();
     this.actions = new ArrayList<>();
+    this.parent = null;
+    this.context = context;
   }
 
-  private NinjaFile(Path filePath, NinjaFile parent) {
-    this.filePath = filePath;
-    this.env = new Environment(parent.env);
-    this.rules = new Rules(parent.rules);
-    this.defaultTargets = parent.defaultTargets;
-    this.pools = parent.pools;
-    this.actions = parent.actions;
+  /**
+   * Creates the scope of a subninja. It starts out with its own actions, pools and default targets,
+   * which are merged into the parent by {@link #mergeSubninjas()} once the subninja is parsed.
+   *
+   * <p>Like in a sequential parse, the subninja only sees the first {@code ruleCount} rules of the
+   * parent, i.e. those that were defined before its statement, even though it is only loaded once
+   * the parent is complete. The same goes for the first {@code variableCount} variables while it is
+   * parsed. Its scope stays linked to the parent's though, so that the commands of its actions see
+   * all of the parent's variables when they are evaluated, and share their memoized values.
+   */
+  private NinjaFile(NinjaFile parent, int variableCount, int ruleCount) {
+    this.filePath = parent.filePath;
+    this.env = new Environment(parent.env, variableCount);
+    this.rules = new Rules(parent.rules, ruleCount);
+    this.defaultTargets = new DefaultTargets();
+    this.pools = new Pools();
+    this.actions = new ArrayList<>();
+    this.parent = parent;
+    this.context = parent.context;
   }
 
   public Environment env() {
@@ -86,41 +245,613 @@ public final class NinjaFile {
     return actions;
   }
 
-  private final class NinjaFileParser implements AutoCloseable {
+  /**
+   * Returns the nodes of all paths of the manifest tree. Each node knows the action that produces
+   * it and the actions that consume it, as far as they have been created: in lazy mode, only the
+   * materialized actions are linked to their nodes.
+   */
+  public NodeTable nodes() {
+    return context.nodes;
+  }
+
+  /**
+   * Returns how many manifest scopes were parsed and how many were restored from a snapshot, how
+   * many bytes were read, how many build statements were deferred and materialized in lazy mode,
+   * and how much memory was saved by sharing identical strings and paths.
+   */
+  public LoadStatistics loadStatistics() {
+    return new LoadStatistics(
+        context.parsedScopes.get(),
+        context.restoredScopes.get(),
+        context.readBytes.sum(),
+        context.uncompressedBytes.sum(),
+        context.deferredBuilds.get(),
+        context.materializedBuilds.get(),
+        context.dedupedObjects + (context.interner != null ? context.interner.dedupedObjects() : 0),
+        context.dedupedBytes + (context.interner != null ? context.interner.dedupedBytes() : 0));
+  }
+
+  /**
+   * Statistics about loading a manifest tree. A scope is the top-level file or a subninja, together
+   * with the files it includes. {@code readBytes} is the size of the parsed files on disk, and
+   * {@code uncompressedBytes} their size after decompressing the gzip-compressed ones. {@code
+   * deferredBuilds} counts the build statements of a lazily loaded manifest, of which {@code
+   * materializedBuilds} have been turned into actions so far. {@code dedupedBytes} is an estimate
+   * of the heap that would have been used by the {@code dedupedObjects} duplicates that were
+   * replaced by shared instances, minus the heap that the intern tables used while loading.
+   */
+  public record LoadStatistics(
+      int parsedScopes,
+      int restoredScopes,
+      long readBytes,
+      long uncompressedBytes,
+      int deferredBuilds,
+      int materializedBuilds,
+      long dedupedObjects,
+      long dedupedBytes) {}
+
+  Interner interner() {
+    return context.interner;
+  }
+
+  /** State that is shared by all scopes that are loaded as part of one manifest tree. */
+  private static final class LoadContext {
+    /** Executor on which subninjas and chunks of the whole manifest tree are parsed. */
+    final ExecutorService executor;
+
+    final int chunkSize;
+
+    /** Whether scope hashes are needed to validate or write a snapshot. */
+    final boolean trackScopes;
+
+    final AtomicInteger parsedScopes = new AtomicInteger();
+    final AtomicInteger restoredScopes = new AtomicInteger();
+    final LongAdder readBytes = new LongAdder();
+    final LongAdder uncompressedBytes = new LongAdder();
+
+    final NodeTable nodes = new NodeTable();
+
+    /**
+     * Shares identical strings and paths across all scopes of the manifest tree while it is loaded.
+     * Afterwards, it is dropped, or replaced by a fresh one that is only used to materialize
+     * deferred build statements in lazy mode.
+     */
+    Interner interner = new Interner(nodes);
+
+    /** The statistics of the interners that were dropped. */
+    long dedupedObjects;
+
+    long dedupedBytes;
+
+    /**
+     * Maps each output to its build statement in lazy mode, or null otherwise. Nodes are unique, so
+     * they are hashed and compared by identity.
+     */
+    final ConcurrentHashMap<Node, DeferredBuild> outputIndex;
+
+    final AtomicInteger deferredBuilds = new AtomicInteger();
+    final AtomicInteger materializedBuilds = new AtomicInteger();
+
+    LoadContext(ExecutorService executor, int chunkSize, boolean trackScopes, boolean lazy) {
+      this.executor = executor;
+      this.chunkSize = chunkSize;
+      this.trackScopes = trackScopes;
+      this.outputIndex = lazy ? new ConcurrentHashMap<>() : null;
+    }
+
+    /** Drops the tables of the interner that was used to load the manifest tree. */
+    void releaseInterner() {
+      dedupedObjects += interner.dedupedObjects();
+      dedupedBytes += interner.dedupedBytes();
+      interner = outputIndex != null ? new Interner(nodes) : null;
+    }
+  }
+
+  /**
+   * Loads the given file into this scope and then starts loading its subninjas in the background.
+   * The scope is restored from {@code cached} if that is a snapshot of the same file that is still
+   * up-to-date, and otherwise parsed from scratch. If {@code in} is not null, the file is read from
+   * it instead of from disk.
+   *
+   * <p>Subninjas are only started once this scope is complete, so that they can safely read from
+   * our environment and rules while we no longer modify them.
+   */
+  private void loadFile(Path path, InputStream in, NinjaSnapshot.Scope cached)
+      throws IOException {
+    long parentHash = parent != null ? parent.scopeHash : 0;
+    if (in == null && cached != null && cached.isReusable(path, parentHash)) {
+      cached.restore(this);
+      context.restoredScopes.incrementAndGet();
+    } else {
+      parseStatements(path, in);
+      context.parsedScopes.incrementAndGet();
+      if (cached != null) {
+        cached.matchSubninjas(subninjas);
+      }
+    }
+    if (context.trackScopes) {
+      scopeHash = NinjaSnapshot.hashScope(this, parentHash);
+    }
+
+    for (Subninja subninja : subninjas) {
+      subninja.result =
+          context.executor.submit(
+              () -> {
+                subninja.ninjaFile.loadFile(subninja.path, null, subninja.cached);
+                return null;
+              });
+    }
+  }
+
+  /**
+   * Parses the statements of the given file and applies them to this scope. The file is read from
+   * {@code in} if that is not null. Files that are not regular files, like FIFOs, are streamed
+   * rather than mapped, and gzip-compressed files are decompressed on the fly.
+   */
+  private void parseStatements(Path path, InputStream in) throws IOException {
+    if (in != null) {
+      files.add(FileStamp.streamed(path));
+      parseStreamed(ManifestStream.open(path, in));
+      return;
+    }
+    FileStamp stamp = FileStamp.of(path);
+    files.add(stamp);
+    if (stamp.isStreamed()) {
+      try (InputStream fileIn = Files.newInputStream(path)) {
+        parseStreamed(ManifestStream.open(path, fileIn));
+      }
+      return;
+    }
+    ByteBuffer buffer = NinjaFileLexer.map(path);
+    if (ManifestStream.isCompressed(path, buffer)) {
+      parseStreamed(ManifestStream.decompress(path, buffer));
+      return;
+    }
+    context.readBytes.add(buffer.limit());
+    context.uncompressedBytes.add(buffer.limit());
+    if (buffer.limit() > context.chunkSize) {
+      parseChunked(buffer);
+    } else {
+      parseSequential(buffer);
+    }
+  }
+
+  private void parseSequential(ByteBuffer buffer) throws IOException {
+    try (NinjaFileParser parser =
+        new NinjaFileParser(
+            new NinjaFileLexer(buffer, 0, buffer.limit(), context.interner),
+            context.outputIndex != null)) {
+      NinjaTargetEvaluator targetEvaluator =
+          new NinjaTargetEvaluator(rules, env, context.interner);
+      for (NinjaStatement statement = parser.readStatement();
+          statement != null;
+          statement = parser.readStatement()) {
+        apply(statement, targetEvaluator);
+      }
+    }
+  }
+
+  /**
+   * Parses a large file by splitting it into chunks at statement boundaries and parsing the chunks
+   * in parallel. The parsed statements are then applied in their original order, so that variable
+   * bindings and rules take effect exactly where they would in a sequential parse. Only runs of
+   * build statements, which don't modify the scope, are evaluated in parallel.
+   *
+   * <p>If a chunk fails to parse, the statements before the error are still applied first, so the
+   * reported error is the same one that a sequential parse would report.
+   */
+  private void parseChunked(ByteBuffer buffer) throws IOException {
+    List<FutureTask<ParsedChunk>> chunks = new ArrayList<>();
+    int start = 0;
+    while (start < buffer.limit()) {
+      int end = NinjaFileLexer.findStatementStart(buffer, start + context.chunkSize);
+      chunks.add(submitChunk(buffer, start, end));
+      start = end;
+    }
+    applyChunks(chunks);
+  }
+
+  /**
+   * Parses a file that is read incrementally, because it is compressed or still being written by
+   * a generator. Small files are read completely and then parsed like any other file. Large ones
+   * are split into chunks while they are being read, and each chunk is handed to the executor as
+   * soon as it is complete. Chunks that are parsed are applied to this scope (in order) whenever we
+   * would otherwise wait for more input, so the model grows while the file is read.
+   */
+  private void parseStreamed(ManifestStream manifest) throws IOException {
+    int chunkSize = Math.min(context.chunkSize, STREAM_CHUNK_SIZE);
+    manifest.read(chunkSize + 1L);
+    if (manifest.isComplete()) {
+      parseSequential(manifest.buffer());
+      context.readBytes.add(manifest.rawSize());
+      context.uncompressedBytes.add(manifest.size());
+      return;
+    }
+
+    NinjaTargetEvaluator targetEvaluator = new NinjaTargetEvaluator(rules, env, context.interner);
+    ArrayList<BuildStatement> builds = new ArrayList<>();
+    ArrayDeque<FutureTask<ParsedChunk>> pending = new ArrayDeque<>();
+    int start = 0;
+    boolean more = true;
+    while (more || start < manifest.size()) {
+      more = manifest.read(start + chunkSize + 1L);
+      ByteBuffer buffer = manifest.buffer();
+      int from = Math.min(start + chunkSize, buffer.limit());
+      int end = NinjaFileLexer.findStatementStart(buffer, from);
+      // A statement start is only known once the line before it is complete, so we may have to
+      // read further than one chunk to find it.
+      while (end == buffer.limit() && more) {
+        more = manifest.read(buffer.limit() + (long) chunkSize);
+        buffer = manifest.buffer();
+        end = NinjaFileLexer.findStatementStart(buffer, from);
+      }
+      pending.add(submitChunk(buffer, start, end));
+      start = end;
+
+      while (!pending.isEmpty() && pending.peek().isDone()) {
+        applyChunk(await(pending.poll(), "Failed to parse " + filePath), targetEvaluator, builds);
+      }
+      evaluateBuilds(builds, targetEvaluator);
+    }
+    context.readBytes.add(manifest.rawSize());
+    context.uncompressedBytes.add(manifest.size());
+    for (ParsedChunk chunk : awaitAll(List.copyOf(pending))) {
+      applyChunk(chunk, targetEvaluator, builds);
+    }
+    evaluateBuilds(builds, targetEvaluator);
+  }
+
+  private FutureTask<ParsedChunk> submitChunk(ByteBuffer buffer, int start, int end) {
+    boolean deferBuilds = context.outputIndex != null;
+    return submit(() -> parseChunk(buffer, start, end, context.interner, deferBuilds));
+  }
+
+  /** Applies the statements of the given chunks to this scope, in the order of the chunks. */
+  private void applyChunks(List<FutureTask<ParsedChunk>> chunks) throws IOException {
+    NinjaTargetEvaluator targetEvaluator = new NinjaTargetEvaluator(rules, env, context.interner);
+    ArrayList<BuildStatement> builds = new ArrayList<>();
+    for (ParsedChunk chunk : awaitAll(chunks)) {
+      applyChunk(chunk, targetEvaluator, builds);
+    }
+    evaluateBuilds(builds, targetEvaluator);
+  }
+
+  /**
+   * Applies the statements of a chunk to this scope. Build statements are collected in {@code
+   * builds} and only evaluated once a statement that modifies the scope follows, or the caller
+   * flushes them with {@link #evaluateBuilds}.
+   */
+  private void applyChunk(
+      ParsedChunk chunk, NinjaTargetEvaluator targetEvaluator, ArrayList<BuildStatement> builds)
+      throws IOException {
+    for (NinjaStatement statement : chunk.statements()) {
+      if (statement instanceof BuildStatement build) {
+        builds.add(build);
+        continue;
+      }
+      evaluateBuilds(builds, targetEvaluator);
+      apply(statement, targetEvaluator);
+    }
+    if (chunk.error() != null) {
+      evaluateBuilds(builds, targetEvaluator);
+      chunk.rethrowError();
+    }
+  }
+
+  private static ParsedChunk parseChunk(
+      ByteBuffer buffer, int start, int end, Interner interner, boolean deferBuilds) {
+    ArrayList<NinjaStatement> statements = new ArrayList<>();
+    try (NinjaFileParser parser =
+        new NinjaFileParser(new NinjaFileLexer(buffer, start, end, interner), deferBuilds)) {
+      for (NinjaStatement statement = parser.readStatement();
+          statement != null;
+          statement = parser.readStatement()) {
+        statements.add(statement);
+      }
+    } catch (IOException | RuntimeException e) {
+      return new ParsedChunk(statements, e);
+    }
+    return new ParsedChunk(statements, null);
+  }
+
+  /** The statements of a chunk, and the error that stopped parsing it early, if any. */
+  private record ParsedChunk(List<NinjaStatement> statements, Exception error) {
+    void rethrowError() throws IOException {
+      if (error instanceof IOException ioException) {
+        throw ioException;
+      } else if (error instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+    }
+  }
+
+  /** Evaluates the given build statements into actions in parallel, then clears the list. */
+  private void evaluateBuilds(ArrayList<BuildStatement> builds, NinjaTargetEvaluator evaluator)
+      throws IOException {
+    if (builds.size() <= BUILD_BATCH_SIZE) {
+      for (BuildStatement build : builds) {
+        actions.add(evaluator.evaluate(build));
+      }
+    } else {
+      List<Callable<List<Action>>> tasks = new ArrayList<>();
+      for (int i = 0; i < builds.size(); i += BUILD_BATCH_SIZE) {
+        List<BuildStatement> batch =
+            builds.subList(i, Math.min(i + BUILD_BATCH_SIZE, builds.size()));
+        tasks.add(
+            () -> {
+              NinjaTargetEvaluator batchEvaluator =
+                  new NinjaTargetEvaluator(rules, env, context.interner);
+              ArrayList<Action> batchActions = new ArrayList<>(batch.size());
+              for (BuildStatement build : batch) {
+                batchActions.add(batchEvaluator.evaluate(build));
+              }
+              return batchActions;
+            });
+      }
+      actions.ensureCapacity(actions.size() + builds.size());
+      for (List<Action> batchActions : invokeAll(tasks)) {
+        actions.addAll(batchActions);
+      }
+    }
+    builds.clear();
+  }
+
+  /**
+   * Runs the given tasks on the executor and returns their results in order. Tasks that no worker
+   * has picked up yet are run by the calling thread, so this is safe to call from tasks that are
+   * running on the executor themselves (e.g. when a subninja is large enough to be chunked).
+   */
+  private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+    return awaitAll(tasks.stream().map(this::submit).toList());
+  }
+
+  private <T> FutureTask<T> submit(Callable<T> task) {
+    FutureTask<T> future = new FutureTask<>(task);
+    context.executor.execute(future);
+    return future;
+  }
+
+  /** Returns the results of the given tasks in order, running those no worker has picked up yet. */
+  private <T> List<T> awaitAll(List<FutureTask<T>> futures) throws IOException {
+    ArrayList<T> results = new ArrayList<>(futures.size());
+    for (FutureTask<T> future : futures) {
+      future.run();
+      results.add(await(future, "Failed to parse " + filePath));
+    }
+    return results;
+  }
+
+  private void apply(NinjaStatement statement, NinjaTargetEvaluator targetEvaluator)
+      throws IOException {
+    if (statement instanceof BuildStatement build) {
+      actions.add(targetEvaluator.evaluate(build));
+    } else if (statement instanceof DeferredBuildStatement deferred) {
+      index(deferred);
+    } else if (statement instanceof RuleStatement rule) {
+      rules.add(rule.rule());
+    } else if (statement instanceof VariableStatement variable) {
+      env.put(variable.name(), variable.value());
+    } else if (statement instanceof DefaultStatement defaultStatement) {
+      defaultTargets.addAll(
+          defaultStatement.targets().stream().map(env::evaluate).map(Path::of));
+    } else if (statement instanceof PoolStatement pool) {
+      pools.add(pool.evaluate(env));
+    } else if (statement instanceof IncludeStatement include) {
+      parseStatements(filePath.resolveSibling(include.path().evaluate(env)), null);
+    } else if (statement instanceof SubninjaStatement subninja) {
+      subninjas.add(
+          new Subninja(
+              this,
+              filePath.resolveSibling(subninja.path().evaluate(env)),
+              actions.size(),
+              defaultTargets.size(),
+              env.localSize(),
+              rules.localSize()));
+    } else {
+      throw new IllegalStateException("Unknown statement: " + statement);
+    }
+  }
+
+  /** Records the outputs of a deferred build statement in the output index. */
+  private void index(DeferredBuildStatement statement) {
+    DeferredBuild build = new DeferredBuild(rules, env, statement, context.materializedBuilds);
+    for (FormatString rawOutput : statement.outputs()) {
+      Node output = context.interner.node(env.evaluate(rawOutput));
+      DeferredBuild existing = context.outputIndex.putIfAbsent(output, build);
+      if (existing != null && existing != build) {
+        throw new IllegalArgumentException(
+            "Output " + output + " is generated by multiple actions");
+      }
+    }
+    context.deferredBuilds.incrementAndGet();
+  }
+
+  /**
+   * Returns the action that generates the given output, or null if there is none. This is only
+   * supported for manifests that were loaded with {@link #parseLazily}, and creates the action on
+   * first use.
+   */
+  public Action getGeneratingAction(Path output) throws IOException {
+    if (context.outputIndex == null) {
+      throw new IllegalStateException("Only lazily loaded manifests have an output index");
+    }
+    Node node = nodes().get(output);
+    return node != null ? getGeneratingAction(node) : null;
+  }
+
+  /** Like {@link #getGeneratingAction(Path)}, but for a node of this manifest tree. */
+  public Action getGeneratingAction(Node output) throws IOException {
+    if (context.outputIndex == null) {
+      throw new IllegalStateException("Only lazily loaded manifests have an output index");
+    }
+    DeferredBuild build = context.outputIndex.get(output);
+    return build != null ? build.materialize(context.interner) : null;
+  }
+
+  /**
+   * Waits for the subninjas of this scope and all of their subninjas to be loaded.
+   *
+   * <p>Subninjas are awaited in statement order, so if several of them fail to parse, the error of
+   * the first one is reported, no matter which one finished first.
+   */
+  private void awaitSubninjas() throws IOException {
+    for (Subninja subninja : subninjas) {
+      subninja.await();
+      subninja.ninjaFile.awaitSubninjas();
+    }
+  }
+
+  /**
+   * Freezes the variables and rules of this scope and of all subninjas, so that lookups from the
+   * actions no longer have to walk up the chain of parent scopes.
+   */
+  private void freezeScopes() {
+    env.freeze();
+    rules.freeze();
+    for (Subninja subninja : subninjas) {
+      subninja.ninjaFile.freezeScopes();
+    }
+  }
+
+  /**
+   * Merges the actions, pools and default targets of the (already loaded) subninjas into this
+   * scope, in the same order in which a sequential parse would have added them.
+   */
+  private void mergeSubninjas() {
+    if (subninjas.isEmpty()) {
+      return;
+    }
+
+    for (Subninja subninja : subninjas) {
+      subninja.ninjaFile.mergeSubninjas();
+    }
+
+    ArrayList<Action> mergedActions = new ArrayList<>();
+    ArrayList<Path> ownDefaultTargets = new ArrayList<>(defaultTargets.items());
+    defaultTargets.clear();
+    int actionIndex = 0;
+    int defaultTargetIndex = 0;
+    for (Subninja subninja : subninjas) {
+      mergedActions.addAll(actions.subList(actionIndex, subninja.actionIndex));
+      mergedActions.addAll(subninja.ninjaFile.actions());
+      actionIndex = subninja.actionIndex;
+
+      defaultTargets.addAll(
+          ownDefaultTargets.subList(defaultTargetIndex, subninja.defaultTargetIndex).stream());
+      defaultTargets.addAll(subninja.ninjaFile.defaultTargets().items().stream());
+      defaultTargetIndex = subninja.defaultTargetIndex;
+
+      pools.addAll(subninja.ninjaFile.pools());
+    }
+    mergedActions.addAll(actions.subList(actionIndex, actions.size()));
+    defaultTargets.addAll(
+        ownDefaultTargets.subList(defaultTargetIndex, ownDefaultTargets.size()).stream());
+    actions.clear();
+    actions.addAll(mergedActions);
+    subninjas.clear();
+  }
+
+  /**
+   * A subninja statement, along with the position in the parent's model where it occurred and the
+   * number of variables and rules that the parent scope had at that point.
+   */
+  static final class Subninja {
+    final NinjaFile ninjaFile;
+    final Path path;
+    final int actionIndex;
+    final int defaultTargetIndex;
+    final int variableCount;
+    final int ruleCount;
+
+    /** The snapshot of this subninja from a previous run, if there is one. */
+    NinjaSnapshot.Scope cached;
+
+    Future<?> result;
+
+    Subninja(
+        NinjaFile parent,
+        Path path,
+        int actionIndex,
+        int defaultTargetIndex,
+        int variableCount,
+        int ruleCount) {
+      this.ninjaFile = new NinjaFile(parent, variableCount, ruleCount);
+      this.path = path;
+      this.actionIndex = actionIndex;
+      this.defaultTargetIndex = defaultTargetIndex;
+      this.variableCount = variableCount;
+      this.ruleCount = ruleCount;
+    }
+
+    void await() throws IOException {
+      NinjaFile.await(result, "Failed to parse " + path);
+    }
+  }
+
+  /** Waits for the given future and rethrows the original exception if it failed. */
+  private static <T> T await(Future<T> future, String errorMessage) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(errorMessage);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException ioException) {
+        throw ioException;
+      } else if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      } else if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new IOException(errorMessage, cause);
+    }
+  }
+
+  /** Reads the statements of a Ninja file, without evaluating them. */
+  static final class NinjaFileParser implements AutoCloseable {
     private final NinjaFileLexer lexer;
     private final NinjaRuleParser ruleParser;
     private final NinjaTargetParser targetParser;
     private final NinjaPoolParser poolParser;
 
-    NinjaFileParser(Path filePath) throws IOException {
-      this.lexer = new NinjaFileLexer(filePath);
+    /** Whether build statements are only parsed up to their outputs, see {@link #parseLazily}. */
+    private final boolean deferBuilds;
+
+    NinjaFileParser(NinjaFileLexer lexer) {
+      this(lexer, false);
+    }
+
+    NinjaFileParser(NinjaFileLexer lexer, boolean deferBuilds) {
+      this.lexer = lexer;
+      this.deferBuilds = deferBuilds;
       this.ruleParser = new NinjaRuleParser(lexer);
-      this.targetParser = new NinjaTargetParser(lexer, rules(), env());
-      this.poolParser = new NinjaPoolParser(lexer, env());
+      this.targetParser = new NinjaTargetParser(lexer);
+      this.poolParser = new NinjaPoolParser(lexer, Environment.EMPTY);
     }
 
-    void parse() throws IOException {
+    /** Returns the next statement, or null once the end of the file is reached. */
+    NinjaStatement readStatement() throws IOException {
       NinjaToken token = lexer.readToken();
-      while (token.type() != Type.EOF) {
-        switch (token.type()) {
-          case NEWLINE -> {
-            /* Ignore empty lines. */
-          }
-          case RULE -> rules().add(ruleParser.parse());
-          case BUILD -> actions().add(targetParser.parse());
-          case DEFAULT -> defaultTargets().addAll(parseDefaultTargets());
-          case POOL -> pools().add(poolParser.parse());
-          case INCLUDE -> parseInclude(NinjaFile.this);
-          case SUBNINJA -> parseInclude(new NinjaFile(filePath, NinjaFile.this));
-          case VARIABLE_NAME -> env().add(parseVariableAssignment(token));
-          default -> throw new IOException("Unexpected token: " + token.type());
-        }
+      while (token.type() == Type.NEWLINE) {
+        // Ignore empty lines.
         token = lexer.readToken();
       }
+      return switch (token.type()) {
+        case EOF -> null;
+        case RULE -> new RuleStatement(ruleParser.parse());
+        case BUILD -> deferBuilds ? targetParser.parseDeferred() : targetParser.parse();
+        case DEFAULT -> new DefaultStatement(parseDefaultTargets());
+        case POOL -> poolParser.parseStatement();
+        case INCLUDE -> new IncludeStatement(lexer.readPath());
+        case SUBNINJA -> new SubninjaStatement(lexer.readPath());
+        case VARIABLE_NAME -> parseVariableAssignment(token);
+        default -> throw new IOException("Unexpected token: " + token.type());
+      };
     }
 
-    private Stream<Path> parseDefaultTargets() {
-      Stream.Builder<FormatString> defaultTargets = Stream.builder();
+    private List<FormatString> parseDefaultTargets() {
+      ArrayList<FormatString> defaultTargets = new ArrayList<>();
       FormatString defaultTarget = lexer.readPath();
       if (defaultTarget.isEmpty()) {
         throw new NinjaParserException("Expected target after 'default', but not found");
@@ -130,18 +861,10 @@ public final class NinjaFile {
         defaultTarget = lexer.readPath();
       }
       verifyNoTrailingChars();
-      return defaultTargets.build().map(env()::evaluate).map(Path::of);
-    }
-
-    private void parseInclude(NinjaFile ninjaFile) throws IOException {
-      String filename = lexer.readPath().evaluate(ninjaFile.env());
-      try (NinjaFileParser parser =
-          ninjaFile.new NinjaFileParser(filePath.resolveSibling(filename))) {
-        parser.parse();
-      }
+      return defaultTargets;
     }
 
-    private Entry<String, FormatString> parseVariableAssignment(NinjaToken token) {
+    private VariableStatement parseVariableAssignment(NinjaToken token) {
       if (token.type() != Type.VARIABLE_NAME) {
         throw new NinjaParserException("Expected variable name, but found: " + token.type());
       }
@@ -151,7 +874,7 @@ public final class NinjaFile {
       }
       FormatString value = lexer.readVarValue();
       verifyNoTrailingChars();
-      return Map.entry(key, value);
+      return new VariableStatement(key, value);
     }
 
     private void verifyNoTrailingChars() {
@@ -162,7 +885,7 @@ public final class NinjaFile {
     }
 
     @Override
-    public void close() throws IOException {
+    public void close() {
       lexer.close();
     }
   }
@@ -17,22 +17,26 @@ package de.philwo.kunoichi.ninja;
 import de.philwo.kunoichi.datamodel.FormatString;
 import de.philwo.kunoichi.datamodel.FormatString.FormatStringBuilder;
 import de.philwo.kunoichi.ninja.NinjaToken.Type;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.stream.Stream;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+/**
+ * Splits a Ninja manifest into tokens and {@link FormatString}s.
+ *
+ * <p>The lexer works directly on the UTF-8 encoded bytes of the manifest. Files are memory-mapped,
+ * so the only copying that happens is for the identifiers and text runs that end up in the
+ * resulting tokens. Bytes are only decoded into {@link String}s once a complete text run is known.
+ */
 class NinjaFileLexer implements AutoCloseable {
 
   // Returns true if the character matches [a-zA-Z0-9_].
-  private static boolean validSimpleVariableNameChar(char c) {
+  private static boolean validSimpleVariableNameChar(int c) {
     return (c >= 'a' && c <= 'z')
         || (c >= 'A' && c <= 'Z')
         || (c >= '0' && c <= '9')
@@ -41,7 +45,7 @@ class NinjaFileLexer implements AutoCloseable {
   }
 
   // Returns true if the character matches [a-zA-Z0-9_.].
-  private static boolean validVariableNameChar(char c) {
+  private static boolean validVariableNameChar(int c) {
     return validSimpleVariableNameChar(c) || c == '.';
   }
 
@@ -60,121 +64,227 @@ class NinjaFileLexer implements AutoCloseable {
   private static final NinjaToken PIPE_AT_TOKEN = new NinjaToken(Type.PIPE_AT);
   private static final NinjaToken PIPE_TOKEN = new NinjaToken(Type.PIPE);
 
-  private final BufferedReader reader;
+  private final ByteBuffer buffer;
+  private final int limit;
+  private final Interner interner;
+  private int pos;
+
+  // Scratch space for the bytes of the text run or identifier that is currently being read.
+  private byte[] text = new byte[128];
+  private int textLength;
+  private byte[] identifier = new byte[32];
+  private int identifierLength;
 
   NinjaFileLexer(Path filePath) throws IOException {
-    Charset cs = Charset.forName("UTF-8");
-    CharsetDecoder decoder =
-        cs.newDecoder()
-            .onMalformedInput(CodingErrorAction.REPLACE)
-            .onUnmappableCharacter(CodingErrorAction.REPLACE);
-    InputStream inputStream = Files.newInputStream(filePath);
-    this.reader = new BufferedReader(new InputStreamReader(inputStream, decoder));
+    this(map(filePath));
   }
 
   NinjaFileLexer(String s) {
-    this.reader = new BufferedReader(new StringReader(s));
+    this(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  NinjaFileLexer(ByteBuffer buffer) {
+    this(buffer, 0, buffer.limit());
+  }
+
+  /** Creates a lexer for the bytes in the range [start, end) of the given buffer. */
+  NinjaFileLexer(ByteBuffer buffer, int start, int end) {
+    this(buffer, start, end, new Interner());
+  }
+
+  /**
+   * Creates a lexer for the bytes in the range [start, end) of the given buffer, which shares the
+   * identifiers and format strings it reads with all other lexers that use the same interner.
+   */
+  NinjaFileLexer(ByteBuffer buffer, int start, int end, Interner interner) {
+    this.buffer = buffer;
+    this.limit = end;
+    this.pos = start;
+    this.interner = interner;
+  }
+
+  static ByteBuffer map(Path filePath) throws IOException {
+    try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Manifest is too large to be mapped: " + filePath);
+      }
+      // The mapping stays valid after the channel is closed.
+      return channel.map(MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  /**
+   * Returns the position of the first top-level statement that starts after the line containing
+   * {@code from}, or the end of the buffer if there is none.
+   *
+   * <p>A statement starts at the beginning of a line that is not indented, if the line before ended
+   * with a newline that is neither $-escaped nor part of a comment. This only looks at raw bytes,
+   * so it is conservative: lines with comments or trailing '$' never end right before a split.
+   * Lexing the buffer from the returned position yields the same statements as lexing it from the
+   * start, which allows splitting a file into chunks that can be parsed independently.
+   */
+  static int findStatementStart(ByteBuffer buffer, int from) {
+    int limit = buffer.limit();
+    int pos = from;
+    // We don't know where the line that contains `from` starts, so we can't trust its newline.
+    while (pos < limit && buffer.get(pos) != '\n') {
+      pos++;
+    }
+    boolean safe = false;
+    while (pos < limit) {
+      // `pos` points to the newline at the end of the previous line.
+      if (safe && pos + 1 < limit && validVariableNameChar(buffer.get(pos + 1))) {
+        return pos + 1;
+      }
+      safe = true;
+      int last = -1;
+      for (pos++; pos < limit; pos++) {
+        byte c = buffer.get(pos);
+        if (c == '\n') {
+          break;
+        }
+        if (c == '#' || c == '\r') {
+          safe = false;
+        }
+        last = c;
+      }
+      if (last == '$') {
+        safe = false;
+      }
+    }
+    return limit;
   }
 
   @Override
-  public void close() throws IOException {
-    reader.close();
+  public void close() {
+    // Nothing to do: the mapping is released once the buffer becomes unreachable.
   }
 
-  boolean nextLineIsIndented() throws IOException {
+  boolean nextLineIsIndented() {
     return peek() == ' ';
   }
 
-  /** Reads a single character from the stream, transparently skipping over comments. */
-  int read() throws IOException {
-    int c = reader.read();
-    if (c == '#') {
-      reader.readLine();
-      return read();
-    } else {
-      return c;
+  /** Returns the buffer that is being read. */
+  ByteBuffer buffer() {
+    return buffer;
+  }
+
+  /** Returns the position of the next byte that will be read. */
+  int position() {
+    return pos;
+  }
+
+  /**
+   * Skips the rest of the current statement, including its continuation lines and the indented
+   * lines that follow it, without decoding anything. Syntax errors in the skipped part are only
+   * detected once it is parsed for real.
+   */
+  void skipStatement() {
+    for (int c = read(); c != -1; c = read()) {
+      if (c == '$') {
+        // Skip the escaped character, which may be a newline.
+        read();
+      } else if (c == '\n' && !nextLineIsIndented()) {
+        return;
+      }
+    }
+  }
+
+  /** Reads a single byte from the input, transparently skipping over comments. */
+  private int read() {
+    while (pos < limit) {
+      byte c = buffer.get(pos++);
+      if (c != '#') {
+        return c & 0xff;
+      }
+      skipComment();
+    }
+    return -1;
+  }
+
+  /** Skips to the end of the current line, which ends at "\n", "\r" or "\r\n". */
+  private void skipComment() {
+    while (pos < limit) {
+      byte c = buffer.get(pos++);
+      if (c == '\n') {
+        return;
+      }
+      if (c == '\r') {
+        if (pos < limit && buffer.get(pos) == '\n') {
+          pos++;
+        }
+        return;
+      }
     }
   }
 
-  private int peek() throws IOException {
-    reader.mark(1);
+  private int peek() {
+    int mark = pos;
     int c = read();
-    reader.reset();
+    pos = mark;
     return c;
   }
 
   /** Skip over whitespace and $-escaped newlines. */
-  private void skipWhitespace() throws NinjaParserException {
-    try {
-      do {
-        reader.mark(2);
-        int c = read();
-        if (c == ' ') {
-          // Skip whitespace.
-        } else if (c == '$') {
-          // Skip over $-escaped newlines.
-          c = read();
-          if (c != '\n') {
-            reader.reset();
-            break;
-          }
-        } else {
-          reader.reset();
+  private void skipWhitespace() {
+    do {
+      int mark = pos;
+      int c = read();
+      if (c == ' ') {
+        // Skip whitespace.
+      } else if (c == '$') {
+        // Skip over $-escaped newlines.
+        c = read();
+        if (c != '\n') {
+          pos = mark;
           break;
         }
-      } while (true);
-    } catch (IOException e) {
-      throw new NinjaParserException("I/O error while skipping whitespace", e);
-    }
+      } else {
+        pos = mark;
+        break;
+      }
+    } while (true);
   }
 
   /** Returns the next NinjaToken. */
   NinjaToken readToken() throws NinjaParserException {
-    NinjaToken result;
-    try {
-      int c = read();
-      result =
-          switch (c) {
-            case -1 -> EOF_TOKEN;
-            case ' ' -> INDENT_TOKEN;
-            case '\n' -> NEWLINE_TOKEN;
-            case '=' -> EQUALS_TOKEN;
-            case ':' -> COLON_TOKEN;
-            case '|' -> {
-              reader.mark(1);
-              yield switch (read()) {
-                case '|' -> DOUBLE_PIPE_TOKEN;
-                case '@' -> PIPE_AT_TOKEN;
-                default -> {
-                  reader.reset();
-                  yield PIPE_TOKEN;
-                }
-              };
-            }
-            default -> {
-              if (!validVariableNameChar((char) c)) {
-                throw new NinjaParserException(
-                    "Invalid character while parsing token: " + (char) c);
+    int c = read();
+    NinjaToken result =
+        switch (c) {
+          case -1 -> EOF_TOKEN;
+          case ' ' -> INDENT_TOKEN;
+          case '\n' -> NEWLINE_TOKEN;
+          case '=' -> EQUALS_TOKEN;
+          case ':' -> COLON_TOKEN;
+          case '|' -> {
+            int mark = pos;
+            yield switch (read()) {
+              case '|' -> DOUBLE_PIPE_TOKEN;
+              case '@' -> PIPE_AT_TOKEN;
+              default -> {
+                pos = mark;
+                yield PIPE_TOKEN;
               }
-              String identifier = readIdentifier(c);
-              yield switch (identifier) {
-                case "rule" -> RULE_TOKEN;
-                case "build" -> BUILD_TOKEN;
-                case "default" -> DEFAULT_TOKEN;
-                case "pool" -> POOL_TOKEN;
-                case "include" -> INCLUDE_TOKEN;
-                case "subninja" -> SUBNINJA_TOKEN;
-                default -> new NinjaToken(Type.VARIABLE_NAME, identifier);
-              };
+            };
+          }
+          default -> {
+            if (!validVariableNameChar(c)) {
+              throw new NinjaParserException(
+                  "Invalid character while parsing token: " + describe(c));
             }
-          };
-    } catch (IOException e) {
-      throw new NinjaParserException("I/O error while reading token", e);
-    }
-
-    if (result == null) {
-      throw new NinjaParserException("Unexpected end of file");
-    }
+            String identifier = readIdentifier(c);
+            yield switch (identifier) {
+              case "rule" -> RULE_TOKEN;
+              case "build" -> BUILD_TOKEN;
+              case "default" -> DEFAULT_TOKEN;
+              case "pool" -> POOL_TOKEN;
+              case "include" -> INCLUDE_TOKEN;
+              case "subninja" -> SUBNINJA_TOKEN;
+              default -> new NinjaToken(Type.VARIABLE_NAME, identifier);
+            };
+          }
+        };
 
     // Skip over any whitespace after the token, except when the token is a newline.
     // This is necessary to be able to distinguish between a newline that is followed by an
@@ -187,28 +297,26 @@ class NinjaFileLexer implements AutoCloseable {
   }
 
   private String readIdentifier(int c) throws NinjaParserException {
-    StringBuilder sb = new StringBuilder();
+    identifierLength = 0;
     if (c != -1) {
-      sb.append((char) c);
-    }
-    try {
-      do {
-        reader.mark(1);
-        c = read();
-        if (c == -1) {
-          break;
-        }
-        if (!validVariableNameChar((char) c)) {
-          reader.reset();
-          break;
-        }
-        sb.append((char) c);
-      } while (true);
-    } catch (IOException e) {
-      throw new NinjaParserException("I/O error while reading identifier", e);
+      appendIdentifier(c);
     }
+    do {
+      int mark = pos;
+      c = read();
+      if (c == -1) {
+        break;
+      }
+      if (!validVariableNameChar(c)) {
+        pos = mark;
+        break;
+      }
+      appendIdentifier(c);
+    } while (true);
     skipWhitespace();
-    return sb.toString();
+    // Identifiers are pure ASCII, so they can be decoded without a UTF-8 decoder.
+    return interner.intern(
+        new String(identifier, 0, identifierLength, StandardCharsets.ISO_8859_1));
   }
 
   String readIdentifier() throws NinjaParserException {
@@ -223,70 +331,114 @@ class NinjaFileLexer implements AutoCloseable {
     return readEvalString(true);
   }
 
-  Stream<FormatString> readPaths() throws NinjaParserException {
-    return Stream.iterate(readPath(), path -> !path.isEmpty(), path -> readPath());
-  }
-
   private FormatString readEvalString(boolean isPath) throws NinjaParserException {
-    FormatStringBuilder sb = FormatString.builder();
+    // Most strings are plain text, so the builder is only created once we encounter a variable.
+    FormatStringBuilder sb = null;
+    textLength = 0;
 
-    try {
-      reader.mark(1);
-      int c = read();
-      readLoop:
-      while (c != -1) {
-        switch (c) {
-          case ' ', ':', '|', '\n' -> {
-            if (isPath || c == '\n') {
-              reader.reset();
-              break readLoop;
-            }
-            sb.addText((char) c);
+    int mark = pos;
+    int c = read();
+    readLoop:
+    while (c != -1) {
+      switch (c) {
+        case ' ', ':', '|', '\n' -> {
+          if (isPath || c == '\n') {
+            pos = mark;
+            break readLoop;
           }
-          case '$' -> {
-            c = read();
-            switch (c) {
-              case -1 -> throw new NinjaParserException(
-                  "Unexpected end of file while parsing $-escape");
-              case '$', ' ', ':' -> sb.addText((char) c);
-              case '\n' -> skipWhitespace();
-              case '{' -> {
-                String identifier = readIdentifier();
-                if (identifier.isEmpty()) {
-                  throw new NinjaParserException("Expected variable name after '${'");
-                }
-                if (read() != '}') {
-                  throw new NinjaParserException("Expected '}' after variable name");
-                }
-                sb.addVariable(identifier);
+          appendText(c);
+        }
+        case '$' -> {
+          c = read();
+          switch (c) {
+            case -1 -> throw new NinjaParserException(
+                "Unexpected end of file while parsing $-escape");
+            case '$', ' ', ':' -> appendText(c);
+            case '\n' -> skipWhitespace();
+            case '{' -> {
+              String identifier = readIdentifier();
+              if (identifier.isEmpty()) {
+                throw new NinjaParserException("Expected variable name after '${'");
               }
-              default -> {
-                if (!validSimpleVariableNameChar((char) c)) {
-                  throw new NinjaParserException("Invalid dollar escape: $" + (char) c);
-                }
-                StringBuilder varName = new StringBuilder();
-                do {
-                  varName.append((char) c);
-                  reader.mark(1);
-                  c = read();
-                } while (c != -1 && validSimpleVariableNameChar((char) c));
-                reader.reset();
-                sb.addVariable(varName.toString());
+              if (read() != '}') {
+                throw new NinjaParserException("Expected '}' after variable name");
+              }
+              sb = flushText(sb);
+              sb.addVariable(identifier);
+            }
+            default -> {
+              if (!validSimpleVariableNameChar(c)) {
+                throw new NinjaParserException("Invalid dollar escape: $" + describe(c));
               }
+              identifierLength = 0;
+              do {
+                appendIdentifier(c);
+                mark = pos;
+                c = read();
+              } while (c != -1 && validSimpleVariableNameChar(c));
+              pos = mark;
+              sb = flushText(sb);
+              sb.addVariable(
+                  interner.intern(
+                      new String(identifier, 0, identifierLength, StandardCharsets.ISO_8859_1)));
             }
           }
-          default -> sb.addText((char) c);
         }
-        reader.mark(1);
-        c = read();
-      }
-      if (isPath) {
-        skipWhitespace();
+        default -> appendText(c);
       }
-    } catch (IOException e) {
-      throw new NinjaParserException("I/O error while parsing string", e);
+      mark = pos;
+      c = read();
     }
+    if (isPath) {
+      skipWhitespace();
+    }
+
+    if (sb == null) {
+      return interner.text(new String(text, 0, textLength, StandardCharsets.UTF_8));
+    }
+    return interner.intern(flushText(sb).build());
+  }
 
-    return sb.build();
+  private void appendText(int c) {
+    if (textLength == text.length) {
+      text = Arrays.copyOf(text, text.length * 2);
+    }
+    text[textLength++] = (byte) c;
+  }
+
+  private FormatStringBuilder flushText(FormatStringBuilder sb) {
+    if (sb == null) {
+      sb = FormatString.builder();
+    }
+    if (textLength > 0) {
+      sb.addText(new String(text, 0, textLength, StandardCharsets.UTF_8));
+      textLength = 0;
+    }
+    return sb;
+  }
+
+  private void appendIdentifier(int c) {
+    if (identifierLength == identifier.length) {
+      identifier = Arrays.copyOf(identifier, identifier.length * 2);
+    }
+    identifier[identifierLength++] = (byte) c;
+  }
+
+  /**
+   * Returns the character starting with the byte {@code c}, which was just read, for use in error
+   * messages. Non-ASCII characters are decoded from the following bytes of the input.
+   */
+  private String describe(int c) {
+    if (c < 0x80) {
+      return String.valueOf((char) c);
+    }
+    int start = pos - 1;
+    int end = start + 1;
+    while (end < limit && end < start + 4 && (buffer.get(end) & 0xc0) == 0x80) {
+      end++;
+    }
+    byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
   }
 }
@@ -17,6 +17,7 @@ package de.philwo.kunoichi.ninja;
 import de.philwo.kunoichi.datamodel.Environment;
 import de.philwo.kunoichi.datamodel.FormatString;
 import de.philwo.kunoichi.datamodel.Pool;
+import de.philwo.kunoichi.ninja.NinjaStatement.PoolStatement;
 import de.philwo.kunoichi.ninja.NinjaToken.Type;
 import java.io.IOException;
 
@@ -31,6 +32,10 @@ class NinjaPoolParser {
   }
 
   Pool parse() throws IOException {
+    return parseStatement().evaluate(env);
+  }
+
+  PoolStatement parseStatement() throws IOException {
     String poolName = lexer.readIdentifier();
     if (poolName.isEmpty()) {
       throw new NinjaParserException("Expected pool name, but not found or invalid");
@@ -41,7 +46,7 @@ class NinjaPoolParser {
       throw new NinjaParserException("Expected newline after rule name, got: " + token.type());
     }
 
-    Integer depth = null;
+    FormatString depth = null;
     while (lexer.nextLineIsIndented()) {
       token = lexer.readToken();
       if (token.type() != Type.INDENT) {
@@ -53,7 +58,7 @@ class NinjaPoolParser {
       }
       FormatString value = lexer.readVarValue();
       switch (key) {
-        case "depth" -> depth = Integer.valueOf(value.evaluate(env));
+        case "depth" -> depth = value;
         default -> throw new NinjaParserException("Unknown pool key: " + key);
       }
     }
@@ -67,6 +72,6 @@ class NinjaPoolParser {
       throw new NinjaParserException("Unexpected trailing characters: " + token.type());
     }
 
-    return new Pool(poolName, depth);
+    return new PoolStatement(poolName, depth);
   }
 }
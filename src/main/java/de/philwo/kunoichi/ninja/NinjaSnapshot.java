@@ -0,0 +1,618 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import static de.philwo.kunoichi.datamodel.Rule.PHONY_RULE;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.Pool;
+import de.philwo.kunoichi.datamodel.Rule;
+import de.philwo.kunoichi.datamodel.Rule.Deps;
+import de.philwo.kunoichi.ninja.NinjaFile.Subninja;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A binary snapshot of a parsed manifest tree, which allows skipping the parsing of manifest files
+ * that did not change since the previous run.
+ *
+ * <p>The snapshot stores one entry per scope, i.e. for the top-level file and for every subninja.
+ * Each entry contains the evaluated model of the scope (variables, rules, pools, actions and
+ * default targets), the size and mtime of every file that was read into it, and a hash of the
+ * variables and rules of its parent scopes. A scope can be restored from the snapshot if none of
+ * its files changed and its parent scopes still hash to the same value. Otherwise, only that scope
+ * is parsed again, and its subninjas are still restored if they are unaffected.
+ *
+ * <p>All strings are stored once in a table at the start of the snapshot and referenced by their
+ * index. The body of each scope is prefixed with its length, so that scopes which have to be parsed
+ * anyway can be skipped without decoding them.
+ */
+final class NinjaSnapshot {
+
+  private static final int MAGIC = 0x4b4e5350; // "KNSP"
+  private static final int VERSION = 3;
+
+  private NinjaSnapshot() {}
+
+  /** The size and modification time of a manifest file at the time it was read. */
+  record FileStamp(Path path, long size, long lastModified) {
+    static FileStamp of(Path path) throws IOException {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        return streamed(path);
+      }
+      return new FileStamp(
+          path, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Returns the stamp of a manifest that was read from a pipe. Its contents can't be checked
+     * later, so it is never current.
+     */
+    static FileStamp streamed(Path path) {
+      return new FileStamp(path, -1, -1);
+    }
+
+    boolean isStreamed() {
+      return size < 0;
+    }
+
+    boolean isCurrent() {
+      if (isStreamed()) {
+        return false;
+      }
+      try {
+        return equals(of(path));
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Reads the snapshot at the given path. Returns the scope of the top-level file, or null if there
+   * is no usable snapshot.
+   */
+  static Scope read(Path snapshotPath) {
+    try {
+      Reader reader = new Reader(Files.readAllBytes(snapshotPath));
+      if (reader.readInt() != MAGIC || reader.readInt() != VERSION) {
+        return null;
+      }
+      reader.readStringTable();
+      return reader.readScope();
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      // A corrupt snapshot is not an error, we just have to parse everything again.
+      System.err.println("WARNING: Ignoring unreadable manifest snapshot: " + e);
+      return null;
+    }
+  }
+
+  /** Writes a snapshot of the given top-level scope and all of its (not yet merged) subninjas. */
+  static void write(Path snapshotPath, NinjaFile ninjaFile) throws IOException {
+    Writer writer = new Writer();
+    writer.writeScope(ninjaFile, 0);
+    Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writer.writeStringTable(out);
+      writer.body.writeTo(out);
+    }
+    Files.move(
+        tempPath,
+        snapshotPath,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns a hash of the variables and rules that are visible in the given scope. Subninjas of the
+   * scope are evaluated against exactly these, so they can be reused as long as the hash matches.
+   */
+  static long hashScope(NinjaFile scope, long parentHash) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(parentHash).append('\n');
+    new TreeMap<>(scope.env.variables())
+        .forEach((key, value) -> sb.append(key).append(" = ").append(value).append('\n'));
+    scope.rules.items().stream()
+        .sorted(Comparator.comparing(Rule::name))
+        .forEach(rule -> describeRule(rule, sb));
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256")
+              .digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < Long.BYTES; i++) {
+        hash = (hash << 8) | (digest[i] & 0xff);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static void describeRule(Rule rule, StringBuilder sb) {
+    sb.append("rule ").append(rule.name()).append('\n');
+    sb.append("  command = ").append(rule.command()).append('\n');
+    sb.append("  depfile = ").append(rule.depFile()).append('\n');
+    sb.append("  deps = ").append(rule.deps()).append('\n');
+    sb.append("  msvc_deps_prefix = ").append(rule.msvcDepsPrefix()).append('\n');
+    sb.append("  description = ").append(rule.description()).append('\n');
+    sb.append("  dyndep = ").append(rule.dynDep()).append('\n');
+    sb.append("  generator = ").append(rule.generator()).append('\n');
+    sb.append("  restat = ").append(rule.restat()).append('\n');
+    sb.append("  rspfile = ").append(rule.rspFile()).append('\n');
+    sb.append("  rspfile_content = ").append(rule.rspFileContent()).append('\n');
+    sb.append("  pool = ").append(rule.pool()).append('\n');
+  }
+
+  /** The snapshot of a single scope. Its body is only decoded when it is restored. */
+  static final class Scope {
+    private final Reader reader;
+    private final Path path;
+    private final long parentHash;
+    private final List<FileStamp> files;
+    private final int bodyOffset;
+    private final List<SubninjaEntry> subninjas;
+
+    private Scope(
+        Reader reader,
+        Path path,
+        long parentHash,
+        List<FileStamp> files,
+        int bodyOffset,
+        List<SubninjaEntry> subninjas) {
+      this.reader = reader;
+      this.path = path;
+      this.parentHash = parentHash;
+      this.files = files;
+      this.bodyOffset = bodyOffset;
+      this.subninjas = subninjas;
+    }
+
+    /**
+     * Returns true if this snapshot was taken from the given file with the same parent scopes, and
+     * none of the files that were read into it changed since.
+     */
+    boolean isReusable(Path path, long parentHash) {
+      return this.path.equals(path)
+          && this.parentHash == parentHash
+          && files.stream().allMatch(FileStamp::isCurrent);
+    }
+
+    /** Restores the model of this scope into the given (empty) scope. */
+    void restore(NinjaFile scope) {
+      reader.new ScopeBodyReader(bodyOffset, scope.interner()).restore(scope);
+      scope.files.addAll(files);
+      for (SubninjaEntry entry : subninjas) {
+        Subninja subninja =
+            new Subninja(
+                scope,
+                entry.path(),
+                entry.actionIndex(),
+                entry.defaultTargetIndex(),
+                entry.variableCount(),
+                entry.ruleCount());
+        subninja.cached = entry.scope();
+        scope.subninjas.add(subninja);
+      }
+    }
+
+    /**
+     * Attaches the snapshots of our subninjas to the subninjas of a freshly parsed version of this
+     * scope, so that those which are still up-to-date don't have to be parsed again. Subninjas are
+     * matched by their path (and the order of their statements, if a path occurs more than once).
+     */
+    void matchSubninjas(List<Subninja> parsedSubninjas) {
+      HashMap<Path, ArrayList<Scope>> candidates = new HashMap<>();
+      for (SubninjaEntry entry : subninjas) {
+        candidates.computeIfAbsent(entry.path(), unused -> new ArrayList<>()).add(entry.scope());
+      }
+      for (Subninja subninja : parsedSubninjas) {
+        ArrayList<Scope> scopes = candidates.get(subninja.path);
+        if (scopes != null && !scopes.isEmpty()) {
+          subninja.cached = scopes.remove(0);
+        }
+      }
+    }
+  }
+
+  private record SubninjaEntry(
+      Path path,
+      int actionIndex,
+      int defaultTargetIndex,
+      int variableCount,
+      int ruleCount,
+      Scope scope) {}
+
+  private static final class Writer {
+    private final HashMap<String, Integer> stringIndices = new HashMap<>();
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    void writeStringTable(DataOutputStream out) throws IOException {
+      writeVarInt(out, strings.size());
+      for (String s : strings) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+      }
+    }
+
+    void writeScope(NinjaFile scope, long parentHash) throws IOException {
+      DataOutputStream out = new DataOutputStream(body);
+      writeString(out, scope.files.get(0).path().toString());
+      out.writeLong(parentHash);
+      writeVarInt(out, scope.files.size());
+      for (FileStamp file : scope.files) {
+        writeString(out, file.path().toString());
+        out.writeLong(file.size());
+        out.writeLong(file.lastModified());
+      }
+
+      ByteArrayOutputStream scopeBody = new ByteArrayOutputStream();
+      writeScopeBody(new DataOutputStream(scopeBody), scope);
+      writeVarInt(out, scopeBody.size());
+      scopeBody.writeTo(out);
+
+      writeVarInt(out, scope.subninjas.size());
+      for (Subninja subninja : scope.subninjas) {
+        writeString(out, subninja.path.toString());
+        writeVarInt(out, subninja.actionIndex);
+        writeVarInt(out, subninja.defaultTargetIndex);
+        writeVarInt(out, subninja.variableCount);
+        writeVarInt(out, subninja.ruleCount);
+        writeScope(subninja.ninjaFile, scope.scopeHash);
+      }
+    }
+
+    private void writeScopeBody(DataOutputStream out, NinjaFile scope) throws IOException {
+      writeVariables(out, scope.env.variables());
+
+      List<Rule> rules = scope.rules.items().stream().filter(rule -> rule != PHONY_RULE).toList();
+      writeVarInt(out, rules.size());
+      for (Rule rule : rules) {
+        writeRule(out, rule);
+      }
+
+      List<Pool> pools = scope.pools.items();
+      writeVarInt(out, pools.size());
+      for (Pool pool : pools) {
+        writeString(out, pool.name());
+        writeVarInt(out, pool.depth());
+      }
+
+      writeVarInt(out, scope.actions.size());
+      for (Action action : scope.actions) {
+        writeString(out, action.rule().name());
+        writeVariables(out, action.env().variables());
+        writePaths(out, action.explicitOutputs());
+        writePaths(out, action.implicitOutputs());
+        writePaths(out, action.explicitInputs());
+        writePaths(out, action.implicitInputs());
+        writePaths(out, action.orderOnlyInputs());
+        writePaths(out, action.validations());
+      }
+
+      writePaths(out, scope.defaultTargets.items());
+    }
+
+    private void writeRule(DataOutputStream out, Rule rule) throws IOException {
+      writeString(out, rule.name());
+      writeFormatString(out, rule.command());
+      writeFormatString(out, rule.depFile());
+      out.writeByte(rule.deps().ordinal());
+      writeFormatString(out, rule.msvcDepsPrefix());
+      writeFormatString(out, rule.description());
+      writeFormatString(out, rule.dynDep());
+      out.writeBoolean(rule.generator());
+      out.writeBoolean(rule.restat());
+      writeFormatString(out, rule.rspFile());
+      writeFormatString(out, rule.rspFileContent());
+      writeFormatString(out, rule.pool());
+    }
+
+    private void writeVariables(DataOutputStream out, Map<String, FormatString> variables)
+        throws IOException {
+      writeVarInt(out, variables.size());
+      for (Entry<String, FormatString> variable : variables.entrySet()) {
+        writeString(out, variable.getKey());
+        writeFormatString(out, variable.getValue());
+      }
+    }
+
+    private void writeFormatString(DataOutputStream out, FormatString formatString)
+        throws IOException {
+      writeVarInt(out, formatString.variableCount());
+      for (int i = 0; i < formatString.variableCount(); i++) {
+        writeString(out, formatString.text(i));
+        writeString(out, formatString.variable(i));
+      }
+      writeString(out, formatString.text(formatString.variableCount()));
+    }
+
+    private void writePaths(DataOutputStream out, List<Path> paths) throws IOException {
+      writeVarInt(out, paths.size());
+      for (Path path : paths) {
+        writeString(out, path.toString());
+      }
+    }
+
+    private void writeString(DataOutputStream out, String s) throws IOException {
+      Integer index = stringIndices.get(s);
+      if (index == null) {
+        index = strings.size();
+        stringIndices.put(s, index);
+        strings.add(s);
+      }
+      writeVarInt(out, index);
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+  }
+
+  private static final class Reader {
+    private final byte[] bytes;
+    private int pos;
+    private String[] strings;
+    private Path[] paths;
+
+    Reader(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    void readStringTable() {
+      strings = new String[readVarInt()];
+      paths = new Path[strings.length];
+      for (int i = 0; i < strings.length; i++) {
+        int length = readVarInt();
+        strings[i] = new String(bytes, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+      }
+    }
+
+    Scope readScope() {
+      Path path = readPath();
+      long parentHash = readLong();
+      FileStamp[] files = new FileStamp[readVarInt()];
+      for (int i = 0; i < files.length; i++) {
+        files[i] = new FileStamp(readPath(), readLong(), readLong());
+      }
+      int bodyLength = readVarInt();
+      int bodyOffset = pos;
+      pos += bodyLength;
+      SubninjaEntry[] subninjas = new SubninjaEntry[readVarInt()];
+      for (int i = 0; i < subninjas.length; i++) {
+        subninjas[i] =
+            new SubninjaEntry(
+                readPath(), readVarInt(), readVarInt(), readVarInt(), readVarInt(), readScope());
+      }
+      return new Scope(
+          this, path, parentHash, Arrays.asList(files), bodyOffset, Arrays.asList(subninjas));
+    }
+
+    int readInt() {
+      int value = 0;
+      for (int i = 0; i < Integer.BYTES; i++) {
+        value = (value << 8) | (bytes[pos++] & 0xff);
+      }
+      return value;
+    }
+
+    private long readLong() {
+      long value = 0;
+      for (int i = 0; i < Long.BYTES; i++) {
+        value = (value << 8) | (bytes[pos++] & 0xff);
+      }
+      return value;
+    }
+
+    private int readVarInt() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = bytes[pos++];
+        value |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+    }
+
+    private Path readPath() {
+      return pathAt(readVarInt());
+    }
+
+    /**
+     * Decodes the body of one scope. Bodies are restored concurrently, so each one gets its own
+     * cursor into the shared bytes.
+     */
+    final class ScopeBodyReader {
+      private int pos;
+      private final Interner interner;
+
+      // The nodes of the outputs and inputs of the action that is currently being read.
+      private Node[] nodes = new Node[16];
+      private int nodeCount;
+
+      ScopeBodyReader(int pos, Interner interner) {
+        this.pos = pos;
+        this.interner = interner;
+      }
+
+      void restore(NinjaFile scope) {
+        for (Entry<String, FormatString> variable : readVariables()) {
+          scope.env.put(variable.getKey(), variable.getValue());
+        }
+
+        int ruleCount = readVarInt();
+        for (int i = 0; i < ruleCount; i++) {
+          scope.rules.add(readRule());
+        }
+
+        int poolCount = readVarInt();
+        for (int i = 0; i < poolCount; i++) {
+          scope.pools.add(new Pool(readString(), readVarInt()));
+        }
+
+        int actionCount = readVarInt();
+        scope.actions.ensureCapacity(actionCount);
+        for (int i = 0; i < actionCount; i++) {
+          Rule rule = scope.rules.get(readString());
+          List<Entry<String, FormatString>> bindings = readVariables();
+          nodeCount = 0;
+          List<Path> explicitOuts = readPaths(true);
+          List<Path> implicitOuts = readPaths(true);
+          int outputCount = nodeCount;
+          List<Path> explicitIns = readPaths(true);
+          List<Path> implicitIns = readPaths(true);
+          List<Path> orderOnlyIns = readPaths(true);
+          scope.actions.add(
+              NinjaTargetEvaluator.createAction(
+                  rule,
+                  scope.env,
+                  bindings,
+                  explicitOuts,
+                  implicitOuts,
+                  explicitIns,
+                  implicitIns,
+                  orderOnlyIns,
+                  readPaths(false),
+                  Arrays.copyOf(nodes, nodeCount),
+                  outputCount));
+        }
+
+        scope.defaultTargets.addAll(readPaths(false).stream());
+      }
+
+      private Rule readRule() {
+        return new Rule(
+            readString(),
+            readFormatString(),
+            readFormatString(),
+            Deps.values()[bytes[pos++]],
+            readFormatString(),
+            readFormatString(),
+            readFormatString(),
+            bytes[pos++] != 0,
+            bytes[pos++] != 0,
+            readFormatString(),
+            readFormatString(),
+            readFormatString());
+      }
+
+      private List<Entry<String, FormatString>> readVariables() {
+        int count = readVarInt();
+        if (count == 0) {
+          return List.of();
+        }
+        ArrayList<Entry<String, FormatString>> variables = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          variables.add(new SimpleImmutableEntry<>(readString(), readFormatString()));
+        }
+        return variables;
+      }
+
+      private FormatString readFormatString() {
+        int count = readVarInt();
+        String[] texts = new String[count + 1];
+        String[] variables = new String[count];
+        for (int i = 0; i < count; i++) {
+          texts[i] = readString();
+          variables[i] = readString();
+        }
+        texts[count] = readString();
+        return interner.intern(FormatString.compiled(texts, variables));
+      }
+
+      private List<Path> readPaths(boolean recordNodes) {
+        int count = readVarInt();
+        if (count == 0) {
+          return List.of();
+        }
+        Path[] result = new Path[count];
+        for (int i = 0; i < count; i++) {
+          // Share the nodes with scopes that were parsed instead of restored.
+          Node node = interner.node(readString());
+          result[i] = node.path();
+          if (recordNodes) {
+            if (nodeCount == nodes.length) {
+              nodes = Arrays.copyOf(nodes, nodeCount * 2);
+            }
+            nodes[nodeCount++] = node;
+          }
+        }
+        return List.of(result);
+      }
+
+      private String readString() {
+        return strings[readVarInt()];
+      }
+
+      private int readVarInt() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+          byte b = bytes[pos++];
+          value |= (b & 0x7f) << shift;
+          if (b >= 0) {
+            return value;
+          }
+        }
+      }
+    }
+
+    private Path pathAt(int index) {
+      // Racy, but harmless: concurrent readers would just create equal Path instances.
+      Path path = paths[index];
+      if (path == null) {
+        path = Path.of(strings[index]);
+        paths[index] = path;
+      }
+      return path;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Pool;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * A top-level statement of a Ninja file that has been parsed, but not evaluated yet.
+ *
+ * <p>Parsing a statement does not depend on the scope it occurs in, so statements can be parsed
+ * out of order and applied to their scope later.
+ */
+sealed interface NinjaStatement {
+
+  record RuleStatement(Rule rule) implements NinjaStatement {}
+
+  record BuildStatement(
+      List<FormatString> explicitOuts,
+      List<FormatString> implicitOuts,
+      String ruleName,
+      List<FormatString> explicitIns,
+      List<FormatString> implicitIns,
+      List<FormatString> orderOnlyIns,
+      List<FormatString> validations,
+      List<Entry<String, FormatString>> bindings)
+      implements NinjaStatement {}
+
+  /**
+   * A build statement of which only the outputs have been parsed. The rest of it is parsed from
+   * {@code buffer} at [start, end) once one of its outputs is needed.
+   */
+  record DeferredBuildStatement(List<FormatString> outputs, ByteBuffer buffer, int start, int end)
+      implements NinjaStatement {}
+
+  record DefaultStatement(List<FormatString> targets) implements NinjaStatement {}
+
+  record PoolStatement(String name, FormatString depth) implements NinjaStatement {
+    Pool evaluate(Environment env) {
+      return new Pool(name, Integer.valueOf(depth.evaluate(env)));
+    }
+  }
+
+  record IncludeStatement(FormatString path) implements NinjaStatement {}
+
+  record SubninjaStatement(FormatString path) implements NinjaStatement {}
+
+  record VariableStatement(String name, FormatString value) implements NinjaStatement {}
+}
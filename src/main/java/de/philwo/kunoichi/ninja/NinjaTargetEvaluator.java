@@ -0,0 +1,258 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.PathCanonicalizer;
+import de.philwo.kunoichi.datamodel.Rule;
+import de.philwo.kunoichi.datamodel.Rules;
+import de.philwo.kunoichi.ninja.NinjaStatement.BuildStatement;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.Supplier;
+
+/** Turns parsed build statements into {@link Action}s by evaluating them in their scope. */
+class NinjaTargetEvaluator {
+
+  private final Rules rules;
+  private final Environment env;
+  private final Interner interner;
+
+  // Scratch space that is reused across statements, so evaluating one allocates little besides the
+  // resulting action.
+  private final StringSet outputSet = new StringSet();
+  private final StringSet inputSet = new StringSet();
+  private final StringSet validationSet = new StringSet();
+  private Path[] paths = new Path[16];
+
+  // The nodes of the outputs and inputs of the current statement, outputs first.
+  private Node[] nodes = new Node[16];
+  private int nodeCount;
+
+  NinjaTargetEvaluator(Rules rules, Environment env, Interner interner) {
+    this.rules = rules;
+    this.env = env;
+    this.interner = interner;
+  }
+
+  Action evaluate(BuildStatement statement) {
+    Rule rule = rules.get(statement.ruleName());
+
+    outputSet.clear();
+    inputSet.clear();
+    validationSet.clear();
+    nodeCount = 0;
+    List<Path> explicitOuts = dedupAndNormalize(statement.explicitOuts(), outputSet, true);
+    List<Path> implicitOuts = dedupAndNormalize(statement.implicitOuts(), outputSet, true);
+    int outputCount = nodeCount;
+    List<Path> explicitIns = dedupAndNormalize(statement.explicitIns(), inputSet, true);
+    List<Path> implicitIns = dedupAndNormalize(statement.implicitIns(), inputSet, true);
+    List<Path> orderOnlyIns = dedupAndNormalize(statement.orderOnlyIns(), inputSet, true);
+    List<Path> validations = dedupAndNormalize(statement.validations(), validationSet, false);
+
+    return createAction(
+        rule,
+        this.env,
+        statement.bindings(),
+        explicitOuts,
+        implicitOuts,
+        explicitIns,
+        implicitIns,
+        orderOnlyIns,
+        validations,
+        Arrays.copyOf(nodes, nodeCount),
+        outputCount);
+  }
+
+  /**
+   * Creates an action whose paths have already been evaluated, along with its own scope that holds
+   * the given variable bindings and the implicit ${in}, ${out} etc. variables.
+   *
+   * <p>{@code nodes} are the nodes of the outputs, followed by those of the inputs. The action is
+   * recorded as the producer of the former and as a consumer of the latter. If an output already
+   * has a producer, it is left alone: such manifests are rejected once the action graph is built.
+   */
+  static Action createAction(
+      Rule rule,
+      Environment parentEnv,
+      Iterable<? extends Entry<String, FormatString>> bindings,
+      List<Path> explicitOuts,
+      List<Path> implicitOuts,
+      List<Path> explicitIns,
+      List<Path> implicitIns,
+      List<Path> orderOnlyIns,
+      List<Path> validations,
+      Node[] nodes,
+      int outputNodeCount) {
+    Environment env = new Environment(parentEnv);
+    for (Entry<String, FormatString> binding : bindings) {
+      env.put(binding.getKey(), binding.getValue());
+    }
+
+    // TODO (philwo): This is not correct. We need to escape spaces in paths.
+    env.put("in", new Memoized(() -> join(explicitIns, ' ')));
+    env.put("in_newline", new Memoized(() -> join(explicitIns, '\n')));
+    // TODO (philwo): This is not correct. We need to escape spaces in paths.
+    env.put("out", new Memoized(() -> join(explicitOuts, ' ')));
+    env.put(
+        "rspfile",
+        new Memoized(() -> PathCanonicalizer.canonicalize(env.evaluate(rule.rspFile()))));
+
+    Action action =
+        new Action(
+            rule,
+            env,
+            explicitOuts,
+            implicitOuts,
+            explicitIns,
+            implicitIns,
+            orderOnlyIns,
+            validations,
+            nodes,
+            outputNodeCount);
+    for (int i = 0; i < nodes.length; i++) {
+      if (i < outputNodeCount) {
+        nodes[i].setProducer(action);
+      } else {
+        nodes[i].addConsumer(action);
+      }
+    }
+    return action;
+  }
+
+  private static String join(List<Path> paths, char separator) {
+    if (paths.size() == 1) {
+      return paths.get(0).toString();
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Path path : paths) {
+      if (!sb.isEmpty()) {
+        sb.append(separator);
+      }
+      sb.append(path);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Computes the value of an implicit variable like ${in} on first use and then keeps it, as it is
+   * usually needed more than once (e.g. for the description and the command of an action).
+   */
+  private static final class Memoized implements Supplier<String> {
+    private final Supplier<String> supplier;
+
+    // Racy single-check idiom: concurrent callers compute equal immutable Strings.
+    private String value;
+
+    Memoized(Supplier<String> supplier) {
+      this.supplier = supplier;
+    }
+
+    @Override
+    public String get() {
+      String result = value;
+      if (result == null) {
+        result = supplier.get();
+        value = result;
+      }
+      return result;
+    }
+  }
+
+  private List<Path> dedupAndNormalize(
+      List<FormatString> rawPaths, StringSet uniques, boolean recordNodes) {
+    if (rawPaths.isEmpty()) {
+      return List.of();
+    }
+    if (paths.length < rawPaths.size()) {
+      paths = new Path[Math.max(rawPaths.size(), paths.length * 2)];
+    }
+    int count = 0;
+    for (FormatString rawPath : rawPaths) {
+      String path = env.evaluate(rawPath);
+      if (uniques.add(path)) {
+        Node node = interner.node(path);
+        paths[count++] = node.path();
+        if (recordNodes) {
+          if (nodeCount == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodeCount * 2);
+          }
+          nodes[nodeCount++] = node;
+        }
+      }
+    }
+    return count == 1 ? List.of(paths[0]) : List.of(Arrays.copyOf(paths, count));
+  }
+
+  /**
+   * A minimal open-addressing hash set of strings that can be cleared cheaply, so that one instance
+   * can be reused for every build statement. Clearing only touches the slots that were used.
+   */
+  private static final class StringSet {
+    private String[] table = new String[32];
+    private int[] usedSlots = new int[16];
+    private int size;
+
+    /** Adds the given string and returns true if it wasn't in the set yet. */
+    boolean add(String s) {
+      if (2 * (size + 1) > table.length) {
+        grow();
+      }
+      int mask = table.length - 1;
+      for (int slot = mix(s.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+        String existing = table[slot];
+        if (existing == null) {
+          table[slot] = s;
+          if (size == usedSlots.length) {
+            usedSlots = Arrays.copyOf(usedSlots, size * 2);
+          }
+          usedSlots[size++] = slot;
+          return true;
+        }
+        if (existing.equals(s)) {
+          return false;
+        }
+      }
+    }
+
+    void clear() {
+      for (int i = 0; i < size; i++) {
+        table[usedSlots[i]] = null;
+      }
+      size = 0;
+    }
+
+    private void grow() {
+      String[] entries = new String[size];
+      for (int i = 0; i < size; i++) {
+        entries[i] = table[usedSlots[i]];
+      }
+      table = new String[table.length * 2];
+      size = 0;
+      for (String entry : entries) {
+        add(entry);
+      }
+    }
+
+    private static int mix(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
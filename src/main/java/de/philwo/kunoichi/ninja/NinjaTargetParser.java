@@ -14,45 +14,44 @@
 
 package de.philwo.kunoichi.ninja;
 
-import de.philwo.kunoichi.datamodel.Action;
-import de.philwo.kunoichi.datamodel.Environment;
 import de.philwo.kunoichi.datamodel.FormatString;
-import de.philwo.kunoichi.datamodel.Rule;
-import de.philwo.kunoichi.datamodel.Rules;
+import de.philwo.kunoichi.ninja.NinjaStatement.BuildStatement;
+import de.philwo.kunoichi.ninja.NinjaStatement.DeferredBuildStatement;
 import de.philwo.kunoichi.ninja.NinjaToken.Type;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Parses the body of a build statement.
+ *
+ * <p>This runs once per build statement, so it avoids temporary collections: paths are collected
+ * in a scratch buffer that is reused across statements, and each path group is copied into a
+ * right-sized array once it is complete.
+ */
 class NinjaTargetParser {
 
   private final NinjaFileLexer lexer;
-  private final Rules rules;
-  private final Environment env;
 
   private NinjaToken token;
 
-  NinjaTargetParser(NinjaFileLexer lexer, Rules rules, Environment env) {
+  // Scratch space for the paths of the path group that is currently being read.
+  private FormatString[] paths = new FormatString[16];
+
+  NinjaTargetParser(NinjaFileLexer lexer) {
     this.lexer = lexer;
-    this.rules = rules;
-    this.env = env;
   }
 
-  Action parse() throws NinjaParserException, IOException {
+  BuildStatement parse() throws NinjaParserException, IOException {
     // Parse the explicit outputs.
-    Stream<FormatString> rawExplicitOuts = prefetchStreamAndNextToken(lexer.readPaths());
+    List<FormatString> rawExplicitOuts = readPathsAndNextToken();
 
     // Parse the implicit outputs, if present.
-    Stream<FormatString> rawImplicitOuts =
-        switch (token.type()) {
-          case PIPE -> prefetchStreamAndNextToken(lexer.readPaths());
-          default -> Stream.empty();
-        };
+    List<FormatString> rawImplicitOuts =
+        token.type() == Type.PIPE ? readPathsAndNextToken() : List.of();
 
     // After the outputs, we expect the ':' separator.
     if (token.type() != Type.COLON) {
@@ -60,39 +59,31 @@ class NinjaTargetParser {
     }
 
     // The rule name follows the ':' separator.
-    Rule rule = rules.get(lexer.readIdentifier());
+    String ruleName = lexer.readIdentifier();
 
     // The inputs follow right after the rule name without any separator.
-    Stream<FormatString> rawExplicitIns = prefetchStreamAndNextToken(lexer.readPaths());
+    List<FormatString> rawExplicitIns = readPathsAndNextToken();
 
     // Parse the implicit dependencies ("|"), if present.
-    Stream<FormatString> rawImplicitIns =
-        switch (token.type()) {
-          case PIPE -> prefetchStreamAndNextToken(lexer.readPaths());
-          default -> Stream.empty();
-        };
+    List<FormatString> rawImplicitIns =
+        token.type() == Type.PIPE ? readPathsAndNextToken() : List.of();
 
     // Parse the order-only dependencies ("||"), if present.
-    Stream<FormatString> rawOrderOnlyIns =
-        switch (token.type()) {
-          case DOUBLE_PIPE -> prefetchStreamAndNextToken(lexer.readPaths());
-          default -> Stream.empty();
-        };
+    List<FormatString> rawOrderOnlyIns =
+        token.type() == Type.DOUBLE_PIPE ? readPathsAndNextToken() : List.of();
 
     // Parse the validations ("|@"), if present.
-    Stream<FormatString> rawValidations =
-        switch (token.type()) {
-          case PIPE_AT -> prefetchStreamAndNextToken(lexer.readPaths());
-          default -> Stream.empty();
-        };
+    List<FormatString> rawValidations =
+        token.type() == Type.PIPE_AT ? readPathsAndNextToken() : List.of();
 
     if (token.type() != Type.EOF && token.type() != Type.NEWLINE) {
       throw new NinjaParserException("Unexpected trailing characters: " + token.type());
     }
 
     // Parse the environment variables, if present.
-    Environment env = new Environment(this.env);
+    List<Entry<String, FormatString>> bindings = List.of();
     if (lexer.nextLineIsIndented()) {
+      bindings = new ArrayList<>();
       while (lexer.nextLineIsIndented()) {
         token = lexer.readToken();
         if (token.type() != Type.INDENT) {
@@ -103,7 +94,7 @@ class NinjaTargetParser {
           throw new NinjaParserException("Expected '=', got: " + token);
         }
         FormatString value = lexer.readVarValue();
-        env.put(key, value);
+        bindings.add(Map.entry(key, value));
 
         token = lexer.readToken();
         if (token.type() != Type.EOF && token.type() != Type.NEWLINE) {
@@ -112,58 +103,52 @@ class NinjaTargetParser {
       }
     }
 
-    Set<String> outputSet = new HashSet<>();
-    Set<String> inputSet = new HashSet<>();
-    List<Path> explicitOuts = dedupAndNormalize(rawExplicitOuts, outputSet);
-    List<Path> implicitOuts = dedupAndNormalize(rawImplicitOuts, outputSet);
-    List<Path> explicitIns = dedupAndNormalize(rawExplicitIns, inputSet);
-    List<Path> implicitIns = dedupAndNormalize(rawImplicitIns, inputSet);
-    List<Path> orderOnlyIns = dedupAndNormalize(rawOrderOnlyIns, inputSet);
-    List<Path> validations = dedupAndNormalize(rawValidations, new HashSet<>());
-
-    env.put(
-        "in",
-        () ->
-            explicitIns.stream()
-                .map(Path::toString)
-                .collect(
-                    Collectors.joining(
-                        " "))); // TODO (philwo): This is not correct. We need to escape spaces in
-                                // paths.
-    env.put(
-        "in_newline",
-        () -> explicitIns.stream().map(Path::toString).collect(Collectors.joining("\n")));
-    env.put(
-        "out",
-        () ->
-            explicitOuts.stream()
-                .map(Path::toString)
-                .collect(
-                    Collectors.joining(
-                        " "))); // TODO (philwo): This is not correct. We need to escape spaces in
-                                // paths.
-    env.put("rspfile", () -> Paths.get(env.evaluate(rule.rspFile())).normalize().toString());
-
-    return new Action(
-        rule, env, explicitOuts, implicitOuts, explicitIns, implicitIns, orderOnlyIns, validations);
+    return new BuildStatement(
+        rawExplicitOuts,
+        rawImplicitOuts,
+        ruleName,
+        rawExplicitIns,
+        rawImplicitIns,
+        rawOrderOnlyIns,
+        rawValidations,
+        bindings);
   }
 
-  private List<Path> dedupAndNormalize(Stream<FormatString> stream, Set<String> uniques) {
-    return stream
-        .map(env::evaluate)
-        .filter(uniques::add)
-        .map(Path::of)
-        .map(Path::normalize)
-        .toList();
+  /**
+   * Parses only the outputs of a build statement and skips the rest of it, which can later be
+   * parsed by running {@link #parse()} on the recorded range of the input.
+   */
+  DeferredBuildStatement parseDeferred() throws NinjaParserException {
+    int start = lexer.position();
+    List<FormatString> outputs = readPathsAndNextToken();
+    if (token.type() == Type.PIPE) {
+      // Implicit outputs are rare, so they are simply appended to the explicit ones.
+      ArrayList<FormatString> allOuts = new ArrayList<>(outputs);
+      allOuts.addAll(readPathsAndNextToken());
+      outputs = allOuts;
+    }
+    if (token.type() != Type.COLON) {
+      throw new NinjaParserException("Expected ':', but found '" + token.text() + "'");
+    }
+    lexer.skipStatement();
+    return new DeferredBuildStatement(outputs, lexer.buffer(), start, lexer.position());
   }
 
-  private Stream<FormatString> prefetchStreamAndNextToken(Stream<FormatString> stream) {
-    try {
-      Stream.Builder<FormatString> builder = Stream.builder();
-      stream.forEach(builder::add);
-      return builder.build();
-    } finally {
-      this.token = lexer.readToken();
+  /** Reads a group of paths up to the next separator, which is then stored in {@link #token}. */
+  private List<FormatString> readPathsAndNextToken() {
+    int count = 0;
+    for (FormatString path = lexer.readPath(); !path.isEmpty(); path = lexer.readPath()) {
+      if (count == paths.length) {
+        paths = Arrays.copyOf(paths, count * 2);
+      }
+      paths[count++] = path;
     }
+    token = lexer.readToken();
+    return switch (count) {
+      case 0 -> List.of();
+      case 1 -> List.of(paths[0]);
+      // The copy is never modified, so it's safe to expose it as a fixed-size list.
+      default -> Arrays.asList(Arrays.copyOf(paths, count));
+    };
   }
 }
@@ -0,0 +1,92 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package de.philwo.kunoichi.build;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Creates actions with nodes from a fresh table, for files in a fresh temporary directory. */
+final class ActionFixture {
+
+  static final Rule CC = Rule.builder().name("cc").build();
+
+  final Path tempDir;
+  final NodeTable nodes = new NodeTable();
+
+  ActionFixture() throws IOException {
+    this.tempDir = Files.createTempDirectory("kunoichi");
+  }
+
+  /** Creates the given file with the given modification time in milliseconds. */
+  void write(String name, long mtime) throws IOException {
+    Path path = tempDir.resolve(name);
+    Files.writeString(path, name);
+    Files.setLastModifiedTime(path, FileTime.fromMillis(mtime));
+  }
+
+  Node node(String name) {
+    return nodes.intern(tempDir.resolve(name).toString());
+  }
+
+  Path path(String name) {
+    return node(name).path();
+  }
+
+  List<Path> paths(String... names) {
+    return paths(List.of(names));
+  }
+
+  Action action(Rule rule, String output, List<String> inputs, List<String> orderOnly) {
+    return action(rule, List.of(output), inputs, orderOnly, List.of());
+  }
+
+  Action action(
+      Rule rule,
+      List<String> outputs,
+      List<String> inputs,
+      List<String> orderOnly,
+      List<String> validations) {
+    Node[] actionNodes =
+        Stream.of(outputs, inputs, orderOnly)
+            .flatMap(List::stream)
+            .map(this::node)
+            .toArray(Node[]::new);
+    return new Action(
+        rule,
+        new Environment(),
+        paths(outputs),
+        List.of(),
+        paths(inputs),
+        List.of(),
+        paths(orderOnly),
+        paths(validations),
+        actionNodes,
+        outputs.size());
+  }
+
+  private List<Path> paths(List<String> names) {
+    return names.stream().map(this::path).toList();
+  }
+}
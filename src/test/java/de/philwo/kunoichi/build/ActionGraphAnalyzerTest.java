@@ -0,0 +1,149 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ActionGraphAnalyzerTest {
+
+  private ActionFixture fixture;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.fixture = new ActionFixture();
+  }
+
+  private Action action(String output, List<String> inputs) {
+    return fixture.action(ActionFixture.CC, output, inputs, List.of());
+  }
+
+  private List<Action> actionsWithErrors(boolean withDuplicateOutput) {
+    ArrayList<Action> actions = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      if (i == 300) {
+        actions.add(action("out300", List.of("src.c", "missing_a.c")));
+      } else if (i == 600) {
+        actions.add(action("out600", List.of("out600")));
+      } else if (i == 800) {
+        actions.add(action("out800", List.of("missing_b.c")));
+      } else if (withDuplicateOutput && (i == 500 || i == 900)) {
+        actions.add(action("dup", List.of("src.c")));
+      } else {
+        actions.add(action("out" + i, List.of("src.c")));
+      }
+    }
+    return actions;
+  }
+
+  @Test
+  void testReportsTheSameErrorOnEveryRun() throws IOException {
+    fixture.write("src.c", 1000);
+
+    for (int run = 0; run < 20; run++) {
+      List<Action> actions = actionsWithErrors(false);
+      IllegalArgumentException e =
+          assertThrows(
+              IllegalArgumentException.class,
+              () -> ActionGraphAnalyzer.analyze(fixture.nodes, actions));
+      assertEquals(
+          "Build target for '" + fixture.node("missing_a.c") + "' not found.", e.getMessage());
+    }
+  }
+
+  @Test
+  void testReportsDuplicateOutputsBeforeMissingInputs() throws IOException {
+    fixture.write("src.c", 1000);
+
+    for (int run = 0; run < 20; run++) {
+      List<Action> actions = actionsWithErrors(true);
+      IllegalArgumentException e =
+          assertThrows(
+              IllegalArgumentException.class,
+              () -> ActionGraphAnalyzer.analyze(fixture.nodes, actions));
+      assertEquals(
+          "Output " + fixture.node("dup") + " is generated by multiple actions", e.getMessage());
+    }
+  }
+
+  @Test
+  void testStatsEachSourceFileOnce() throws IOException {
+    fixture.write("shared.h", 1000);
+    // Not on disk, so analyzing would fail if its known mtime were not reused.
+    fixture.node("cached.h").setMtime(42);
+    ArrayList<Action> actions = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      actions.add(action("out" + i, List.of("shared.h", "cached.h")));
+    }
+    actions.add(action("app", List.of("out0", "out1")));
+
+    ActionGraphAnalyzer.analyze(fixture.nodes, actions);
+
+    long mtime = TimeUnit.MILLISECONDS.toNanos(1000);
+    assertEquals(mtime, fixture.node("shared.h").mtime());
+    assertEquals(42, fixture.node("cached.h").mtime());
+    assertEquals(Node.MTIME_UNKNOWN, fixture.node("out0").mtime());
+
+    // A file that was stat'ed once is not stat'ed again, even if it disappeared in the meantime.
+    Files.delete(fixture.tempDir.resolve("shared.h"));
+    ActionGraphAnalyzer.analyze(fixture.nodes, actions);
+    assertEquals(mtime, fixture.node("shared.h").mtime());
+  }
+
+  @Test
+  void testFilesFromTheEpochArentMissing() throws IOException {
+    fixture.write("epoch.c", 0);
+
+    ActionGraphAnalyzer.analyze(fixture.nodes, List.of(action("epoch.o", List.of("epoch.c"))));
+
+    assertEquals(1, fixture.node("epoch.c").mtime());
+  }
+
+  @Test
+  void testMergesDuplicateDependencies() throws IOException {
+    fixture.write("a.c", 1000);
+    Action generator =
+        fixture.action(
+            ActionFixture.CC, List.of("gen.h", "gen.cc"), List.of("a.c"), List.of(), List.of());
+
+    CompactActionGraph graph =
+        ActionGraphAnalyzer.analyze(
+            fixture.nodes,
+            List.of(
+                generator,
+                action("a.o", List.of("gen.h", "gen.cc", "gen.h", "a.c")),
+                action("app", List.of("a.o", "a.o"))));
+
+    assertEquals(0, graph.dependencyCount(0));
+    assertEquals(1, graph.dependencyCount(1));
+    assertEquals(0, graph.dependency(1, 0));
+    assertEquals(1, graph.dependencyCount(2));
+    assertEquals(1, graph.dependency(2, 0));
+    assertEquals(1, graph.dependentCount(0));
+    assertEquals(1, graph.dependentCount(1));
+  }
+}
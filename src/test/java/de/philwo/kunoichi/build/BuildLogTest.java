@@ -0,0 +1,120 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BuildLogTest {
+
+  private Path tempDir;
+  private Path logFile;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.tempDir = Files.createTempDirectory("kunoichi");
+    this.logFile = tempDir.resolve(BuildLog.FILE_NAME);
+  }
+
+  @Test
+  void testHashCommandMatchesNinja() {
+    // Computed with Ninja's MurmurHash64A.
+    assertEquals(0x87c2bc0beaf1d91dL, BuildLog.hashCommand(""));
+    assertEquals(0xc34ad9619fad4845L, BuildLog.hashCommand("command"));
+    assertEquals(0xb77a39815731e547L, BuildLog.hashCommand("clang -O2 -c foo.c -o foo.o"));
+  }
+
+  @Test
+  void testRecordedEntriesAreReadBack() throws IOException {
+    Path output = tempDir.resolve("foo.o");
+    Files.writeString(output, "");
+    Files.setLastModifiedTime(output, FileTime.fromMillis(1234));
+    Rule rule = Rule.builder().name("cc").command(FormatString.fromPlainText("cc foo.c")).build();
+    Action action =
+        new Action(
+            rule,
+            new Environment(),
+            List.of(output),
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of());
+
+    try (BuildLog buildLog = BuildLog.open(logFile)) {
+      assertNull(buildLog.lookup(output));
+      long now = System.nanoTime();
+      buildLog.record(action, now, now);
+    }
+
+    try (BuildLog buildLog = BuildLog.open(logFile)) {
+      BuildLog.Entry entry = buildLog.lookup(output);
+      assertEquals(1_234_000_000L, entry.mtime());
+      assertEquals(BuildLog.hashCommand("cc foo.c"), entry.commandHash());
+    }
+    assertEquals("# ninja log v5", Files.readAllLines(logFile).get(0));
+  }
+
+  @Test
+  void testRecompactsLogWithMostlySupersededEntries() throws IOException {
+    StringBuilder log = new StringBuilder("# ninja log v5\n");
+    for (int i = 0; i < 200; i++) {
+      log.append("0\t1\t").append(i).append("\tout").append(i % 10).append("\tabc\n");
+    }
+    Files.writeString(logFile, log);
+
+    try (BuildLog buildLog = BuildLog.open(logFile)) {
+      assertEquals(10, buildLog.size());
+      assertEquals(199, buildLog.lookup(Path.of("out9")).mtime());
+    }
+    assertEquals(11, Files.readAllLines(logFile).size());
+  }
+
+  @Test
+  void testLoadLeavesLogUntouched() throws IOException {
+    StringBuilder log = new StringBuilder("# ninja log v5\n");
+    for (int i = 0; i < 200; i++) {
+      log.append("0\t1\t").append(i).append("\tout").append(i % 10).append("\tabc\n");
+    }
+    Files.writeString(logFile, log);
+
+    try (BuildLog buildLog = BuildLog.load(logFile)) {
+      assertEquals(10, buildLog.size());
+      assertEquals(199, buildLog.lookup(Path.of("out9")).mtime());
+    }
+    assertEquals(log.toString(), Files.readString(logFile));
+  }
+
+  @Test
+  void testIgnoresLogOfOtherVersion() throws IOException {
+    Files.writeString(logFile, "# ninja log v4\n0\t1\t2\tout\tabc\n");
+
+    try (BuildLog buildLog = BuildLog.open(logFile)) {
+      assertEquals(0, buildLog.size());
+    }
+  }
+}
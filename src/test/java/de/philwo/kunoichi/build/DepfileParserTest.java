@@ -0,0 +1,56 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DepfileParserTest {
+
+  @Test
+  void testParsesInputsAcrossContinuedLines() {
+    assertEquals(
+        List.of("foo.c", "foo.h", "bar.h"),
+        DepfileParser.parse("foo.o: foo.c foo.h \\\n  bar.h\n"));
+  }
+
+  @Test
+  void testParsesWindowsLineEndings() {
+    assertEquals(
+        List.of("foo.c", "foo.h"), DepfileParser.parse("foo.o: foo.c \\\r\n  foo.h\r\n"));
+  }
+
+  @Test
+  void testUnescapesSpecialCharacters() {
+    assertEquals(
+        List.of("my file.h", "#hash.h", "$dollar.h", "back\\slash.h"),
+        DepfileParser.parse("foo.o: my\\ file.h \\#hash.h $$dollar.h back\\slash.h"));
+  }
+
+  @Test
+  void testMergesRulesAndSkipsDuplicates() {
+    // GCC's -MP adds an empty rule for each header.
+    assertEquals(
+        List.of("foo.c", "foo.h", "bar.h"),
+        DepfileParser.parse("foo.o foo.d: foo.c foo.h\nfoo.o: bar.h foo.h\nfoo.h:\nbar.h:\n"));
+  }
+
+  @Test
+  void testKeepsColonsInsidePaths() {
+    assertEquals(List.of("c:/include/foo.h"), DepfileParser.parse("c:/foo.o: c:/include/foo.h"));
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DepsLogTest {
+
+  private Path logFile;
+  private NodeTable nodes;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.logFile = Files.createTempDirectory("kunoichi").resolve(DepsLog.FILE_NAME);
+    this.nodes = new NodeTable();
+  }
+
+  private Action action(String output) {
+    Node node = nodes.intern(output);
+    return new Action(
+        Rule.builder().name("cc").build(),
+        new Environment(),
+        List.of(node.path()),
+        List.of(),
+        List.of(),
+        List.of(),
+        List.of(),
+        List.of(),
+        new Node[] {node},
+        1);
+  }
+
+  @Test
+  void testRecordedDepsAreReadBack() throws IOException {
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      depsLog.record(action("foo.o"), 42, List.of("foo.c", "./foo.h"));
+      depsLog.record(action("bar.o"), 43, List.of("bar.c", "foo.h"));
+      depsLog.record(action("foo.o"), 44, List.of("foo.c", "bar.h"));
+    }
+
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      DepsLog.Deps foo = depsLog.lookup(nodes.intern("foo.o"));
+      assertEquals(44, foo.mtime());
+      assertArrayEquals(new Node[] {nodes.intern("foo.c"), nodes.intern("bar.h")}, foo.inputs());
+      DepsLog.Deps bar = depsLog.lookup(nodes.intern("bar.o"));
+      assertEquals(43, bar.mtime());
+      assertArrayEquals(new Node[] {nodes.intern("bar.c"), nodes.intern("foo.h")}, bar.inputs());
+      assertNull(depsLog.lookup(nodes.intern("foo.c")));
+    }
+  }
+
+  @Test
+  void testWritesNinjaFormat() throws IOException {
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      depsLog.record(action("out"), 7, List.of("in"));
+    }
+
+    ByteBuffer expected = ByteBuffer.allocate(60).order(ByteOrder.LITTLE_ENDIAN);
+    expected.put("# ninjadeps\n".getBytes(StandardCharsets.US_ASCII)).putInt(4);
+    // Path records are padded to four bytes and end with the complement of their ID.
+    expected.putInt(8).put("in\0\0".getBytes(StandardCharsets.US_ASCII)).putInt(~0);
+    expected.putInt(8).put("out\0".getBytes(StandardCharsets.US_ASCII)).putInt(~1);
+    expected.putInt(16 | 0x80000000).putInt(1).putLong(7).putInt(0);
+    assertArrayEquals(expected.array(), Files.readAllBytes(logFile));
+  }
+
+  @Test
+  void testDropsTruncatedRecord() throws IOException {
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      depsLog.record(action("foo.o"), 1, List.of("foo.h"));
+      depsLog.record(action("bar.o"), 2, List.of("bar.h"));
+    }
+    byte[] bytes = Files.readAllBytes(logFile);
+    Files.write(logFile, Arrays.copyOf(bytes, bytes.length - 3));
+
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      assertEquals(1, depsLog.lookup(nodes.intern("foo.o")).mtime());
+      assertNull(depsLog.lookup(nodes.intern("bar.o")));
+      depsLog.record(action("baz.o"), 3, List.of("foo.h"));
+    }
+
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      assertEquals(3, depsLog.lookup(nodes.intern("baz.o")).mtime());
+    }
+  }
+
+  @Test
+  void testLoadLeavesLogUntouched() throws IOException {
+    try (DepsLog depsLog = DepsLog.open(logFile, nodes)) {
+      // Enough superseded records that opening the log would recompact it.
+      for (int i = 0; i < 2000; i++) {
+        depsLog.record(action("foo.o"), i, List.of("foo.h"));
+      }
+    }
+    byte[] bytes = Files.readAllBytes(logFile);
+    bytes = Arrays.copyOf(bytes, bytes.length - 3);
+    Files.write(logFile, bytes);
+
+    try (DepsLog depsLog = DepsLog.load(logFile, nodes)) {
+      assertEquals(1998, depsLog.lookup(nodes.intern("foo.o")).mtime());
+    }
+    assertArrayEquals(bytes, Files.readAllBytes(logFile));
+  }
+}
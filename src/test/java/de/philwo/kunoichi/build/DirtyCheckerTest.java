@@ -0,0 +1,187 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class DirtyCheckerTest {
+
+  private static final Rule CC = ActionFixture.CC;
+  private static final Rule GEN = Rule.builder().name("gen").restat(true).build();
+
+  private ActionFixture fixture;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.fixture = new ActionFixture();
+  }
+
+  private String logLine(String output, long mtimeMillis, long commandHash) {
+    return "0\t0\t%d\t%s\t%x"
+        .formatted(mtimeMillis * 1_000_000, fixture.node(output).path(), commandHash);
+  }
+
+  /** Returns which actions of "-> stamp", "a.c || stamp -> a.o" and "a.o -> app" are dirty. */
+  private boolean[] check() {
+    return check(null);
+  }
+
+  private boolean[] check(BuildLog buildLog) {
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {
+              fixture.action(CC, "stamp", List.of(), List.of()),
+              fixture.action(CC, "a.o", List.of("a.c"), List.of("stamp")),
+              fixture.action(CC, "app", List.of("a.o"), List.of()),
+            },
+            new int[][] {{}, {0}, {1}});
+    return new DirtyChecker(graph, buildLog, null).check(ExecutionPlan.of(graph, new int[] {2}));
+  }
+
+  @Test
+  void testNothingIsDirtyIfOutputsAreNewer() throws IOException {
+    fixture.write("stamp", 1000);
+    fixture.write("a.c", 1000);
+    fixture.write("a.o", 2000);
+    fixture.write("app", 3000);
+
+    assertArrayEquals(new boolean[] {false, false, false}, check());
+  }
+
+  @Test
+  void testFilesFromTheEpochAreUpToDate() throws IOException {
+    for (String name : List.of("stamp", "a.c", "a.o", "app")) {
+      fixture.write(name, 0);
+    }
+
+    assertArrayEquals(new boolean[] {false, false, false}, check());
+  }
+
+  @Test
+  void testNewerInputDirtiesDependents() throws IOException {
+    fixture.write("stamp", 1000);
+    fixture.write("a.c", 2500);
+    fixture.write("a.o", 2000);
+    fixture.write("app", 3000);
+
+    assertArrayEquals(new boolean[] {false, true, true}, check());
+  }
+
+  @Test
+  void testNewerOrderOnlyInputDoesntDirty() throws IOException {
+    fixture.write("stamp", 5000);
+    fixture.write("a.c", 1000);
+    fixture.write("a.o", 2000);
+    fixture.write("app", 3000);
+
+    assertArrayEquals(new boolean[] {false, false, false}, check());
+  }
+
+  @Test
+  void testChangedCommandIsDirty() throws IOException {
+    fixture.write("stamp", 1000);
+    fixture.write("a.c", 1000);
+    fixture.write("a.o", 2000);
+    fixture.write("app", 3000);
+    long emptyCommand = BuildLog.hashCommand("");
+    Files.writeString(
+        fixture.tempDir.resolve(BuildLog.FILE_NAME),
+        String.join(
+            "\n",
+            "# ninja log v5",
+            logLine("stamp", 1000, emptyCommand),
+            logLine("a.o", 2000, emptyCommand),
+            logLine("app", 3000, BuildLog.hashCommand("an older command")),
+            ""));
+
+    try (BuildLog buildLog = BuildLog.open(fixture.tempDir.resolve(BuildLog.FILE_NAME))) {
+      assertArrayEquals(new boolean[] {false, false, true}, check(buildLog));
+    }
+  }
+
+  /** Returns the graph of the restat action "in.proto -> gen.h" and "gen.h -> a.o". */
+  private CompactActionGraph restatGraph() {
+    return CompactActionGraph.of(
+        new Action[] {
+          fixture.action(GEN, "gen.h", List.of("in.proto"), List.of()),
+          fixture.action(CC, "a.o", List.of("gen.h"), List.of()),
+        },
+        new int[][] {{}, {0}});
+  }
+
+  @Test
+  void testRestatOutputIsUpToDateUntilLoggedTime() throws IOException {
+    fixture.write("in.proto", 3000);
+    fixture.write("gen.h", 1000);
+    fixture.write("a.o", 2000);
+    long emptyCommand = BuildLog.hashCommand("");
+    Files.writeString(
+        fixture.tempDir.resolve(BuildLog.FILE_NAME),
+        String.join(
+            "\n",
+            "# ninja log v5",
+            logLine("gen.h", 3500, emptyCommand),
+            logLine("a.o", 2000, emptyCommand),
+            ""));
+
+    CompactActionGraph graph = restatGraph();
+    ExecutionPlan plan = ExecutionPlan.of(graph, new int[] {1});
+    try (BuildLog buildLog = BuildLog.open(fixture.tempDir.resolve(BuildLog.FILE_NAME))) {
+      assertArrayEquals(
+          new boolean[] {false, false}, new DirtyChecker(graph, buildLog, null).check(plan));
+    }
+    fixture.write("in.proto", 4000);
+    fixture.node("in.proto").setMtime(Node.MTIME_UNKNOWN);
+    try (BuildLog buildLog = BuildLog.open(fixture.tempDir.resolve(BuildLog.FILE_NAME))) {
+      assertArrayEquals(
+          new boolean[] {true, true}, new DirtyChecker(graph, buildLog, null).check(plan));
+    }
+  }
+
+  @Test
+  void testDependentsAreCleanIfRestatActionIsClean() throws IOException {
+    fixture.write("in.proto", 3000);
+    fixture.write("gen.h", 1000);
+    fixture.write("a.o", 2000);
+
+    CompactActionGraph graph = restatGraph();
+    DirtyChecker dirtyChecker = new DirtyChecker(graph, null, null);
+    assertArrayEquals(
+        new boolean[] {true, true}, dirtyChecker.check(ExecutionPlan.of(graph, new int[] {1})));
+    dirtyChecker.markClean(0);
+    assertFalse(dirtyChecker.recheck(1));
+  }
+
+  @Test
+  void testMissingOutputIsDirty() throws IOException {
+    fixture.write("a.c", 1000);
+    fixture.write("a.o", 2000);
+    fixture.write("app", 3000);
+
+    // "stamp" is missing, but a.o only needs it to be built first.
+    assertArrayEquals(new boolean[] {true, false, false}, check());
+  }
+}
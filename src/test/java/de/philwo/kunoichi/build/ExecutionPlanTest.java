@@ -0,0 +1,119 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ExecutionPlanTest {
+
+  private static CompactActionGraph graph(int[][] dependencies) {
+    Action[] actions = new Action[dependencies.length];
+    for (int i = 0; i < actions.length; i++) {
+      actions[i] =
+          new Action(
+              Rule.PHONY_RULE,
+              new Environment(),
+              List.of(Path.of("out" + i)),
+              List.of(),
+              List.of(),
+              List.of(),
+              List.of(),
+              List.of());
+    }
+    return CompactActionGraph.of(actions, dependencies);
+  }
+
+  @Test
+  void testOrdersDependenciesFirstAndSkipsUnneededActions() {
+    // 0 -> {1, 2}, 1 -> 3, 2 -> 3, and 4 isn't needed.
+    CompactActionGraph graph = graph(new int[][] {{1, 2}, {3}, {3}, {}, {0}});
+
+    ExecutionPlan plan = ExecutionPlan.of(graph, new int[] {0});
+
+    assertArrayEquals(new int[] {3, 1, 2, 0}, plan.order());
+    assertEquals(2, plan.dependencyCount(0));
+    assertEquals(0, plan.dependencyCount(3));
+    assertEquals(-1, plan.dependencyCount(4));
+  }
+
+  @Test
+  void testLongChainsDontOverflowTheStack() {
+    int[][] dependencies = new int[1_000_000][];
+    for (int i = 0; i < dependencies.length; i++) {
+      dependencies[i] = i + 1 < dependencies.length ? new int[] {i + 1} : new int[0];
+    }
+
+    ExecutionPlan plan = ExecutionPlan.of(graph(dependencies), new int[] {0});
+
+    assertEquals(dependencies.length, plan.size());
+    assertEquals(dependencies.length - 1, plan.order()[0]);
+  }
+
+  private static int[] dependents(ExecutionPlan plan, int action) {
+    int[] dependents = new int[plan.dependentCount(action)];
+    for (int i = 0; i < dependents.length; i++) {
+      dependents[i] = plan.dependent(action, i);
+    }
+    return dependents;
+  }
+
+  @Test
+  void testRetainedActionsWaitForSelectedActionsBehindUnselectedOnes() {
+    // 0 -> 1 -> 2, where only 0 and 2 are selected, e.g. because 1 is clean and only depends on 2
+    // through an order-only input. 0 has no edge to 2 of its own, e.g. because it was redundant.
+    CompactActionGraph graph = graph(new int[][] {{1}, {2}, {}});
+    ExecutionPlan plan = ExecutionPlan.of(graph, new int[] {0});
+
+    ExecutionPlan retained = plan.retain(new boolean[] {true, false, true});
+
+    assertArrayEquals(new int[] {2, 0}, retained.order());
+    assertEquals(1, retained.dependencyCount(0));
+    assertEquals(-1, retained.dependencyCount(1));
+    assertEquals(0, retained.dependencyCount(2));
+    assertArrayEquals(new int[] {0}, dependents(retained, 2));
+  }
+
+  @Test
+  void testRetainedActionsWaitForEachSelectedActionOnce() {
+    // 0 -> {1, 2}, 1 -> 3, 2 -> 3, and 0 -> 3, where 1 and 2 are unselected.
+    CompactActionGraph graph = graph(new int[][] {{1, 2, 3}, {3}, {3}, {}});
+    ExecutionPlan plan = ExecutionPlan.of(graph, new int[] {0});
+
+    ExecutionPlan retained = plan.retain(new boolean[] {true, false, false, true});
+
+    assertEquals(1, retained.dependencyCount(0));
+    assertArrayEquals(new int[] {0}, dependents(retained, 3));
+  }
+
+  @Test
+  void testReportsCyclePath() {
+    // 0 -> 1 -> 2 -> 3 -> 1, and 3 -> 4.
+    CompactActionGraph graph = graph(new int[][] {{1}, {2}, {3}, {1, 4}, {}});
+
+    IllegalArgumentException e =
+        assertThrows(IllegalArgumentException.class, () -> ExecutionPlan.of(graph, new int[] {0}));
+    assertEquals("Cycle detected in build graph: out1 -> out2 -> out3 -> out1", e.getMessage());
+  }
+}
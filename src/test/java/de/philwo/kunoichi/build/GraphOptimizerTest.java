@@ -0,0 +1,126 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class GraphOptimizerTest {
+
+  private static final Rule CC = Rule.builder().name("cc").build();
+
+  private static Action action(
+      Rule rule, String output, List<String> inputs, List<String> orderOnly) {
+    return new Action(
+        rule,
+        new Environment(),
+        List.of(Path.of(output)),
+        List.of(),
+        inputs.stream().map(Path::of).toList(),
+        List.of(),
+        orderOnly.stream().map(Path::of).toList(),
+        List.of());
+  }
+
+  private static int[] dependencies(CompactActionGraph graph, int action) {
+    int[] dependencies = new int[graph.dependencyCount(action)];
+    for (int i = 0; i < dependencies.length; i++) {
+      dependencies[i] = graph.dependency(action, i);
+    }
+    return dependencies;
+  }
+
+  @Test
+  void testSplicesPhonyActions() {
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {
+              action(CC, "a.o", List.of("a.c"), List.of()),
+              action(CC, "b.o", List.of("b.c"), List.of()),
+              action(Rule.PHONY_RULE, "objs", List.of("a.o", "b.o"), List.of()),
+              action(CC, "app", List.of("objs"), List.of()),
+              action(Rule.PHONY_RULE, "all", List.of("app"), List.of()),
+            },
+            new int[][] {{}, {}, {0, 1}, {2}, {3}});
+
+    GraphOptimizer.Result result = GraphOptimizer.optimize(graph, new int[] {4}, false);
+
+    CompactActionGraph optimized = result.graph();
+    assertEquals(3, optimized.size());
+    assertEquals(2, result.removedActions());
+    assertEquals(2, result.removedEdges());
+    int app = optimized.getGeneratingAction(Path.of("app"));
+    assertArrayEquals(new int[] {app}, result.roots());
+    assertArrayEquals(
+        new int[] {
+          optimized.getGeneratingAction(Path.of("a.o")),
+          optimized.getGeneratingAction(Path.of("b.o"))
+        },
+        dependencies(optimized, app));
+  }
+
+  @Test
+  void testKeepsPhonyGroupsWithManyDependents() {
+    // Splicing "objs" would replace 3 + 3 edges with 3 * 3.
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {
+              action(CC, "a.o", List.of(), List.of()),
+              action(CC, "b.o", List.of(), List.of()),
+              action(CC, "c.o", List.of(), List.of()),
+              action(Rule.PHONY_RULE, "objs", List.of("a.o", "b.o", "c.o"), List.of()),
+              action(CC, "x", List.of("objs"), List.of()),
+              action(CC, "y", List.of("objs"), List.of()),
+              action(CC, "z", List.of("objs"), List.of()),
+            },
+            new int[][] {{}, {}, {}, {0, 1, 2}, {3}, {3}, {3}});
+
+    GraphOptimizer.Result result = GraphOptimizer.optimize(graph, new int[] {4, 5, 6}, false);
+
+    assertEquals(7, result.graph().size());
+    assertEquals(0, result.removedActions());
+    assertEquals(0, result.removedEdges());
+  }
+
+  @Test
+  void testRemovesRedundantOrderOnlyEdges() {
+    // "a.o" depends on "stamp" through "gen.h" already.
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {
+              action(CC, "stamp", List.of(), List.of()),
+              action(CC, "gen.h", List.of("stamp"), List.of()),
+              action(CC, "a.o", List.of("gen.h"), List.of("stamp")),
+            },
+            new int[][] {{}, {0}, {0, 1}});
+
+    GraphOptimizer.Result kept = GraphOptimizer.optimize(graph, new int[] {2}, false);
+    GraphOptimizer.Result reduced = GraphOptimizer.optimize(graph, new int[] {2}, true);
+
+    assertEquals(2, kept.graph().dependencyCount(2));
+    assertEquals(0, kept.redundantOrderOnlyEdges());
+    assertArrayEquals(new int[] {1}, dependencies(reduced.graph(), 2));
+    assertEquals(1, reduced.redundantOrderOnlyEdges());
+    assertEquals(1, reduced.removedEdges());
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Rule;
+import de.philwo.kunoichi.ninja.NinjaFile;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class GraphStatsTest {
+
+  private static Action action(Rule rule, String output) {
+    return new Action(
+        rule,
+        new Environment(),
+        List.of(Path.of(output)),
+        List.of(),
+        List.of(),
+        List.of(),
+        List.of(),
+        List.of());
+  }
+
+  @Test
+  void testComputesShapeOfGraph() {
+    Rule cc = Rule.builder().name("cc").build();
+    Rule link = Rule.builder().name("link").pool(FormatString.fromPlainText("heavy")).build();
+    // Three objects are linked into a library, which is linked into a binary with a fourth one.
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {
+              action(cc, "a.o"),
+              action(cc, "b.o"),
+              action(cc, "c.o"),
+              action(cc, "d.o"),
+              action(link, "lib.so"),
+              action(link, "app"),
+            },
+            new int[][] {{}, {}, {}, {}, {0, 1, 2}, {3, 4}});
+
+    GraphStats stats = GraphStats.of(graph, 10);
+
+    assertEquals(3, stats.longestChain());
+    assertArrayEquals(new int[] {4, 1, 1}, stats.widths());
+    assertEquals(4, stats.maxWidth());
+    // Fan-in: four actions without dependencies, one with 2 and one with 3.
+    assertEquals(4, stats.fanInHistogram()[0]);
+    assertEquals(2, stats.fanInHistogram()[2]);
+    // Fan-out: "app" has no dependents, and all other actions have one.
+    assertEquals(1, stats.fanOutHistogram()[0]);
+    assertEquals(5, stats.fanOutHistogram()[1]);
+    assertEquals(Map.of("cc", 4, "link", 2), stats.ruleCounts());
+    assertEquals(Map.of("", 4, "heavy", 2), stats.poolCounts());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stats.print(new PrintStream(out, true));
+    String report = out.toString();
+    assertTrue(report.contains("Files: 10 (6 generated, 4 source)"), report);
+    assertTrue(report.contains("Longest dependency chain: 3 actions"), report);
+  }
+
+  @Test
+  void testLinksActionsWithoutLookingAtFiles() throws IOException {
+    Path tempDir = Files.createTempDirectory("kunoichi");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        rule cc
+          command = cc $in -o $out
+        build a.o: cc missing.c
+        build app: cc a.o a.o missing.o
+        """);
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+
+    CompactActionGraph graph = GraphStats.link(ninjaFile.actions());
+
+    assertEquals(2, graph.size());
+    assertEquals(0, graph.dependencyCount(0));
+    assertEquals(1, graph.dependencyCount(1));
+    assertEquals(0, graph.dependency(1, 0));
+    assertEquals(2, GraphStats.of(graph, ninjaFile.nodes().size()).longestChain());
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.FormatString;
+import de.philwo.kunoichi.datamodel.Rule;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SchedulerTest {
+
+  private ActionFixture fixture;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.fixture = new ActionFixture();
+  }
+
+  private Action action(String output, String command, List<String> inputs) {
+    Rule rule = Rule.builder().name(output).command(FormatString.fromPlainText(command)).build();
+    return fixture.action(rule, output, inputs, List.of());
+  }
+
+  @Test
+  void testActionWithDepsButWithoutOutputsSucceeds() throws Exception {
+    Rule rule =
+        Rule.builder()
+            .name("check")
+            .command(FormatString.fromPlainText("true"))
+            .deps(Rule.Deps.MSVC)
+            .build();
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {fixture.action(rule, List.of(), List.of(), List.of(), List.of())},
+            new int[][] {{}});
+    try (BuildLog buildLog = BuildLog.open(fixture.tempDir.resolve(BuildLog.FILE_NAME));
+        DepsLog depsLog = DepsLog.open(fixture.tempDir.resolve(DepsLog.FILE_NAME), fixture.nodes)) {
+      Scheduler.run(
+          graph,
+          ExecutionPlan.of(graph, new int[] {0}),
+          new LocalSpawnStrategy(),
+          buildLog,
+          depsLog,
+          new DirtyChecker(graph, buildLog, depsLog),
+          1);
+    }
+  }
+
+  @Test
+  void testFailureWhileAnotherActionRunsDoesntStartItsDependents() throws Exception {
+    CompactActionGraph graph =
+        CompactActionGraph.of(
+            new Action[] {
+              action("failed", "exit 1", List.of()),
+              action("slow", "sleep 1 && touch " + fixture.path("slow"), List.of()),
+              action("after", "touch " + fixture.path("after"), List.of("slow")),
+            },
+            new int[][] {{}, {}, {1}});
+    ExecutionPlan plan = ExecutionPlan.of(graph, new int[] {0, 2});
+    List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<>());
+    Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler((thread, e) -> uncaught.add(e));
+    try (BuildLog buildLog = BuildLog.open(fixture.tempDir.resolve(BuildLog.FILE_NAME))) {
+      assertThrows(
+          ExecutionException.class,
+          () ->
+              Scheduler.run(
+                  graph,
+                  plan,
+                  new LocalSpawnStrategy(),
+                  buildLog,
+                  null,
+                  new DirtyChecker(graph, buildLog, null),
+                  2));
+      // Exceptions that escape a task are reported after the executor terminated.
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().startsWith("pool-")) {
+          thread.join(5000);
+        }
+      }
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(handler);
+    }
+
+    assertTrue(Files.exists(fixture.path("slow")));
+    assertFalse(Files.exists(fixture.path("after")));
+    assertEquals(List.of(), uncaught);
+  }
+}
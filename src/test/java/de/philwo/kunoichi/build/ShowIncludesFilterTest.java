@@ -0,0 +1,93 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ShowIncludesFilterTest {
+
+  private static final String PREFIX = "Note: including file: ";
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final ShowIncludesFilter filter = new ShowIncludesFilter(out, PREFIX);
+
+  @Test
+  void testRemovesIncludeLines() throws IOException {
+    try (filter) {
+      filter.write(
+          ("foo.c\n"
+                  + "Note: including file: /src/foo.h\n"
+                  + "Note: including file:  /src/bar baz.h\r\n"
+                  + "Note: including /src/other.h\n"
+                  + "warning: unused variable\n"
+                  + "Note: including file: /src/foo.h\n"
+                  + "Note: including file: /src/last.h")
+              .getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals(
+        "foo.c\nNote: including /src/other.h\nwarning: unused variable\n",
+        out.toString(StandardCharsets.UTF_8));
+    assertEquals(List.of("/src/foo.h", "/src/bar baz.h", "/src/last.h"), filter.includes());
+  }
+
+  @Test
+  void testHandlesLinesSplitAcrossWrites() throws IOException {
+    String output = "Note: incl\nNote: including file: a.h\nNote: inc";
+    try (filter) {
+      for (byte b : output.getBytes(StandardCharsets.UTF_8)) {
+        filter.write(new byte[] {b});
+      }
+    }
+    assertEquals("Note: incl\nNote: inc", out.toString(StandardCharsets.UTF_8));
+    assertEquals(List.of("a.h"), filter.includes());
+  }
+
+  @Test
+  void testWritesEachLineWhole() throws IOException {
+    ArrayList<String> writes = new ArrayList<>();
+    OutputStream recorder =
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            writes.add(String.valueOf((char) b));
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            writes.add(new String(b, off, len, StandardCharsets.UTF_8));
+          }
+        };
+    try (ShowIncludesFilter lineFilter = new ShowIncludesFilter(recorder, PREFIX)) {
+      for (String chunk : List.of("war", "ning: a\nNote: including file: a.h\nerr", "or: b\nend")) {
+        lineFilter.write(chunk.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    assertEquals(List.of("warning: a\n", "error: b\n", "end"), writes);
+  }
+
+  @Test
+  void testRejectsEmptyPrefix() {
+    assertThrows(IllegalArgumentException.class, () -> new ShowIncludesFilter(out, ""));
+  }
+}
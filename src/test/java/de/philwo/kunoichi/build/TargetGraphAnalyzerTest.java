@@ -0,0 +1,141 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package de.philwo.kunoichi.build;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.datamodel.CompactActionGraph;
+import de.philwo.kunoichi.datamodel.Node;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TargetGraphAnalyzerTest {
+
+  private ActionFixture fixture;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.fixture = new ActionFixture();
+  }
+
+  private Action newAction(String output, List<String> inputs, List<String> validations) {
+    return fixture.action(ActionFixture.CC, List.of(output), inputs, List.of(), validations);
+  }
+
+  /** Creates an action and registers it as the producer of its output. */
+  private Action action(String output, List<String> inputs, List<String> validations) {
+    Action action = newAction(output, inputs, validations);
+    fixture.node(output).setProducer(action);
+    return action;
+  }
+
+  @Test
+  void testAddsValidationsOfTheClosure() throws IOException {
+    fixture.write("a.c", 1000);
+    action("a.o", List.of("a.c"), List.of("lint.stamp"));
+    action("app", List.of("a.o"), List.of());
+    action("lint.stamp", List.of("a.c"), List.of());
+    action("unrelated", List.of("a.c"), List.of());
+
+    TargetGraphAnalyzer.Result result =
+        TargetGraphAnalyzer.analyze(fixture.nodes, fixture.paths("app"));
+
+    CompactActionGraph graph = result.graph();
+    assertEquals(3, graph.size());
+    assertEquals(-1, graph.getGeneratingAction(fixture.path("unrelated")));
+    assertEquals(List.of(fixture.path("lint.stamp")), result.validations());
+  }
+
+  @Test
+  void testReportsFirstMissingTarget() throws IOException {
+    fixture.write("a.c", 1000);
+    action("app", List.of("a.c"), List.of());
+    fixture.node("gone1.c");
+    fixture.node("gone2.c");
+
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () ->
+                TargetGraphAnalyzer.analyze(
+                    fixture.nodes, fixture.paths("app", "gone1.c", "gone2.c")));
+    assertEquals("Build target for '" + fixture.node("gone1.c") + "' not found.", e.getMessage());
+
+    Path unknown = fixture.tempDir.resolve("unknown");
+    e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () ->
+                TargetGraphAnalyzer.analyze(
+                    fixture.nodes, List.of(fixture.path("app"), unknown)));
+    assertEquals("Build target for '" + unknown + "' not found.", e.getMessage());
+  }
+
+  @Test
+  void testReportsOutputWithMultipleProducers() throws IOException {
+    fixture.write("a.c", 1000);
+    fixture.write("b.c", 1000);
+    action("dup", List.of("a.c"), List.of());
+    action("dup", List.of("b.c"), List.of());
+    action("app", List.of("dup"), List.of());
+
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> TargetGraphAnalyzer.analyze(fixture.nodes, fixture.paths("app")));
+    assertEquals(
+        "Output " + fixture.node("dup") + " is generated by multiple actions", e.getMessage());
+  }
+
+  @Test
+  void testAcceptsSourceFilesAsTargets() throws IOException {
+    fixture.write("a.c", 1000);
+    action("a.o", List.of("a.c"), List.of());
+
+    TargetGraphAnalyzer.Result result =
+        TargetGraphAnalyzer.analyze(fixture.nodes, fixture.paths("a.c", "a.o"));
+
+    assertEquals(1, result.graph().size());
+    assertEquals(0, result.graph().getGeneratingAction(fixture.path("a.o")));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), fixture.node("a.c").mtime());
+  }
+
+  @Test
+  void testLooksUpProducersThroughTheGivenFunction() throws IOException {
+    fixture.write("a.c", 1000);
+    // Like in a lazily loaded manifest, the nodes don't know their producers yet.
+    HashMap<Node, Action> producers = new HashMap<>();
+    producers.put(fixture.node("a.o"), newAction("a.o", List.of("a.c"), List.of()));
+    producers.put(fixture.node("app"), newAction("app", List.of("a.o"), List.of()));
+    newAction("unrelated", List.of("a.c"), List.of());
+
+    TargetGraphAnalyzer.Result result =
+        TargetGraphAnalyzer.analyze(fixture.nodes, fixture.paths("app"), producers::get);
+
+    CompactActionGraph graph = result.graph();
+    assertEquals(2, graph.size());
+    int app = graph.getGeneratingAction(fixture.path("app"));
+    assertEquals(1, graph.dependencyCount(app));
+    assertEquals(graph.getGeneratingAction(fixture.path("a.o")), graph.dependency(app, 0));
+  }
+}
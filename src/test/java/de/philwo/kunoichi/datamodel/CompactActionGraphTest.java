@@ -0,0 +1,122 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CompactActionGraphTest {
+
+  private static Action action(String... outputs) {
+    return new Action(
+        Rule.PHONY_RULE,
+        new Environment(),
+        List.of(outputs).stream().map(Path::of).toList(),
+        List.of(),
+        List.of(),
+        List.of(),
+        List.of(),
+        List.of());
+  }
+
+  private static List<Integer> dependencies(CompactActionGraph graph, int id) {
+    ArrayList<Integer> dependencies = new ArrayList<>();
+    for (int i = 0; i < graph.dependencyCount(id); i++) {
+      dependencies.add(graph.dependency(id, i));
+    }
+    return dependencies;
+  }
+
+  private static List<Integer> dependents(CompactActionGraph graph, int id) {
+    ArrayList<Integer> dependents = new ArrayList<>();
+    for (int i = 0; i < graph.dependentCount(id); i++) {
+      dependents.add(graph.dependent(id, i));
+    }
+    return dependents;
+  }
+
+  @Test
+  void testEdgesAreSortedAndDeduplicated() {
+    CompactActionGraph.Builder builder = CompactActionGraph.builder(2);
+    Action link = action("app");
+    assertEquals(0, builder.addAction(link));
+    assertEquals(1, builder.addAction(action("a.o")));
+    assertEquals(2, builder.addAction(action("b.o", "b.d")));
+    assertEquals(3, builder.addAction(action("c.o")));
+    builder.putEdge(0, 3);
+    builder.putEdge(0, 1);
+    builder.putEdge(0, 3);
+    builder.putEdge(0, 2);
+    builder.putEdge(2, 1);
+    builder.putEdge(0, 1);
+
+    CompactActionGraph graph = builder.build();
+
+    assertEquals(4, graph.size());
+    assertEquals(4, graph.edgeCount());
+    assertSame(link, graph.action(0));
+    assertEquals(List.of(1, 2, 3), dependencies(graph, 0));
+    assertEquals(List.of(1), dependencies(graph, 2));
+    assertEquals(List.of(), dependencies(graph, 3));
+    assertEquals(List.of(), dependents(graph, 0));
+    assertEquals(List.of(0, 2), dependents(graph, 1));
+    assertEquals(List.of(0), dependents(graph, 3));
+  }
+
+  @Test
+  void testOfResolvedDependencies() {
+    Action[] actions = {action("app"), action("a.o"), action("b.o")};
+    CompactActionGraph graph = CompactActionGraph.of(actions, new int[][] {{2, 1, 2}, {}, {1}});
+
+    assertEquals(3, graph.edgeCount());
+    assertEquals(List.of(1, 2), dependencies(graph, 0));
+    assertEquals(List.of(0, 2), dependents(graph, 1));
+    assertEquals(2, graph.getGeneratingAction(Path.of("b.o")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> CompactActionGraph.of(actions, new int[][] {{0}, {}, {}}));
+  }
+
+  @Test
+  void testGetGeneratingAction() {
+    CompactActionGraph.Builder builder = CompactActionGraph.builder(0);
+    for (int i = 0; i < 1000; i++) {
+      builder.addAction(action("out" + i, "out" + i + ".d"));
+    }
+    CompactActionGraph graph = builder.build();
+
+    assertEquals(0, graph.getGeneratingAction(Path.of("out0")));
+    assertEquals(999, graph.getGeneratingAction(Path.of("out999.d")));
+    assertEquals(-1, graph.getGeneratingAction(Path.of("out1000")));
+  }
+
+  @Test
+  void testRejectsDuplicateOutputsAndSelfEdges() {
+    CompactActionGraph.Builder builder = CompactActionGraph.builder(2);
+    builder.addAction(action("out"));
+
+    IllegalArgumentException e =
+        assertThrows(IllegalArgumentException.class, () -> builder.addAction(action("out")));
+    assertEquals("Output out is generated by multiple actions", e.getMessage());
+    assertThrows(IllegalArgumentException.class, () -> builder.putEdge(0, 0));
+    assertThrows(IllegalArgumentException.class, () -> builder.putEdge(0, 1));
+  }
+}
@@ -15,10 +15,15 @@
 package de.philwo.kunoichi.datamodel;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.Test;
 
 class EnvironmentTest {
@@ -64,4 +69,103 @@ class EnvironmentTest {
     env.put("foo", FormatString.fromPlainText("baz"));
     assertEquals("baz", env.get("foo"));
   }
+
+  @Test
+  void testFrozenScopeEvaluatesVariablesWhereTheyAreDefined() {
+    Environment root = new Environment();
+    root.put("cflags", FormatString.builder().addText("-O2 ").addVariable("extra").build());
+    root.put("extra", FormatString.fromPlainText("-g"));
+    Environment sub = new Environment(root);
+    sub.put("extra", FormatString.fromPlainText("-Wall"));
+    sub.put("cc", FormatString.fromPlainText("clang"));
+    Environment nested = new Environment(sub);
+    nested.freeze();
+
+    assertTrue(root.isFrozen());
+    assertTrue(sub.isFrozen());
+    assertEquals("clang", nested.get("cc"));
+    assertEquals("-Wall", nested.get("extra"));
+    // ${cflags} is defined in the root scope, so it sees the root's ${extra}.
+    assertEquals("-O2 -g", nested.get("cflags"));
+    assertEquals("", nested.get("unknown"));
+  }
+
+  @Test
+  void testFrozenScopeCanBeParentButNotModified() {
+    Environment scope = new Environment();
+    scope.put("foo", FormatString.fromPlainText("bar"));
+    scope.freeze();
+    assertThrows(
+        IllegalStateException.class, () -> scope.put("baz", FormatString.fromPlainText("qux")));
+
+    Environment action = new Environment(scope);
+    action.put("out", () -> "foo.o");
+    FormatString command =
+        FormatString.builder().addVariable("foo").addText(" ").addVariable("out").build();
+    assertEquals("bar foo.o", action.evaluate(command));
+  }
+
+  @Test
+  void testFrozenScopeEvaluatesEachVariableOnce() throws InterruptedException {
+    AtomicInteger evaluations = new AtomicInteger();
+    Environment scope = new Environment();
+    scope.put("common", () -> "-O2 #" + evaluations.incrementAndGet());
+    scope.put("cflags", FormatString.builder().addVariable("common").addText(" -g").build());
+    scope.freeze();
+
+    Thread[] threads = new Thread[4];
+    String[] results = new String[threads.length];
+    for (int i = 0; i < threads.length; i++) {
+      int index = i;
+      Environment action = new Environment(scope);
+      threads[i] = new Thread(() -> results[index] = action.get("cflags"));
+    }
+    assertEquals("-O2 #1 -g", new Environment(scope).get("cflags"));
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (String result : results) {
+      assertEquals("-O2 #1 -g", result);
+    }
+    assertEquals(1, evaluations.get());
+  }
+
+  @Test
+  void testHiddenParentVariablesAreVisibleOnceFrozen() {
+    AtomicInteger evaluations = new AtomicInteger();
+    Environment parent = new Environment();
+    parent.put("early", FormatString.fromPlainText("a"));
+    parent.put("late", () -> "b #" + evaluations.incrementAndGet());
+    Environment child = new Environment(parent, 1);
+
+    assertEquals("a", child.get("early"));
+    assertFalse(child.has("late"));
+
+    parent.freeze();
+    child.freeze();
+    assertEquals("b #1", child.get("late"));
+    assertEquals("b #1", parent.get("late"));
+    assertEquals(1, evaluations.get());
+  }
+
+  @Test
+  void testUnknownVariableWarnsOnce() {
+    PrintStream originalErr = System.err;
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+    try {
+      Environment env = new Environment();
+      for (int i = 0; i < 3; i++) {
+        assertEquals("", env.get("testUnknownVariableWarnsOnce"));
+      }
+    } finally {
+      System.setErr(originalErr);
+    }
+    assertEquals(
+        "WARNING: Unknown variable ${testUnknownVariableWarnsOnce}" + System.lineSeparator(),
+        err.toString(StandardCharsets.UTF_8));
+  }
 }
@@ -0,0 +1,90 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package de.philwo.kunoichi.datamodel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.philwo.kunoichi.datamodel.FormatString.Chunk;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FormatStringTest {
+
+  @Test
+  void testEvaluate() {
+    Environment env = new Environment();
+    env.put("cc", FormatString.fromPlainText("clang"));
+    env.put("in", () -> "foo.c");
+    FormatString formatString =
+        FormatString.builder()
+            .addVariable("cc")
+            .addText(" -c ")
+            .addVariable("in")
+            .addVariable("in")
+            .addText(" -o foo.o")
+            .build();
+    assertEquals(3, formatString.variableCount());
+    assertEquals("clang -c foo.cfoo.c -o foo.o", formatString.evaluate(env));
+    // The second evaluation uses a presized builder, which must not change the result.
+    assertEquals("clang -c foo.cfoo.c -o foo.o", formatString.evaluate(env));
+  }
+
+  @Test
+  void testEvaluateMergesAdjacentText() {
+    FormatString formatString =
+        new FormatString(
+            List.of(
+                new Chunk(Chunk.Kind.TEXT, "a"),
+                new Chunk(Chunk.Kind.TEXT, "b"),
+                new Chunk(Chunk.Kind.VARIABLE, "x"),
+                new Chunk(Chunk.Kind.TEXT, "c"),
+                new Chunk(Chunk.Kind.TEXT, "d")));
+    Environment env = new Environment();
+    env.put("x", FormatString.fromPlainText("-"));
+    assertEquals(1, formatString.variableCount());
+    assertEquals("ab-cd", formatString.evaluate(env));
+    assertEquals("ab${x}cd", formatString.toString());
+  }
+
+  @Test
+  void testEvaluatePlainTextReturnsSameString() {
+    FormatString formatString = FormatString.fromPlainText("no variables");
+    assertEquals(0, formatString.variableCount());
+    assertSame(formatString.evaluate(Environment.EMPTY), formatString.evaluate(Environment.EMPTY));
+    assertEquals("", FormatString.builder().build().evaluate(Environment.EMPTY));
+  }
+
+  @Test
+  void testEqualsComparesChunks() {
+    FormatString a = FormatString.builder().addText("x").addVariable("y").build();
+    FormatString b = FormatString.builder().addText("x").addVariable("y").build();
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+  }
+
+  @Test
+  void testCompiledEqualsBuilt() {
+    FormatString built = FormatString.builder().addText("x").addVariable("y").build();
+    FormatString compiled = FormatString.compiled(new String[] {"x", ""}, new String[] {"y"});
+    assertEquals(built, compiled);
+    assertEquals(built.hashCode(), compiled.hashCode());
+    assertEquals(built.chunks(), compiled.chunks());
+    assertEquals("x${y}", compiled.toString());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> FormatString.compiled(new String[] {"x"}, new String[] {"y"}));
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.datamodel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class NodeTableTest {
+
+  @Test
+  void testCanonicalizeMatchesPathNormalize() {
+    List<String> names =
+        List.of(
+            "",
+            ".",
+            "..",
+            "/",
+            "//",
+            "foo",
+            "foo/",
+            "./foo",
+            "foo/./bar",
+            "foo//bar",
+            "foo/../bar",
+            "foo/bar/../..",
+            "foo/bar/../../..",
+            "../foo",
+            "../../foo/./../bar",
+            "/..",
+            "/../foo",
+            "/foo/../../bar/",
+            "out/obj/../gen/./x.h",
+            "a/b/c/../../d/./e//f/..");
+    for (String name : names) {
+      assertEquals(
+          Path.of(name).normalize().toString(), PathCanonicalizer.canonicalize(name), name);
+    }
+
+    // Random combinations of the interesting components.
+    String[] components = {"", ".", "..", "a", "bc", "..."};
+    Random random = new Random(1);
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder name = new StringBuilder(random.nextBoolean() ? "/" : "");
+      for (int j = random.nextInt(6); j >= 0; j--) {
+        name.append(components[random.nextInt(components.length)]);
+        if (j > 0 || random.nextBoolean()) {
+          name.append('/');
+        }
+      }
+      assertEquals(
+          Path.of(name.toString()).normalize().toString(),
+          PathCanonicalizer.canonicalize(name.toString()),
+          name.toString());
+    }
+  }
+
+  @Test
+  void testCanonicalNamesAreReturnedAsIs() {
+    String name = "out/obj/foo.o";
+    assertSame(name, PathCanonicalizer.canonicalize(name));
+  }
+
+  @Test
+  void testSpellingsOfTheSamePathShareANode() {
+    NodeTable nodes = new NodeTable();
+    Node header = nodes.intern("include/foo.h");
+    Node other = nodes.intern("out/foo.o");
+
+    assertSame(header, nodes.intern("./include//foo.h"));
+    assertSame(header, nodes.intern("out/../include/foo.h"));
+    assertSame(header, nodes.get(Path.of("include/foo.h")));
+    assertNull(nodes.get("include/bar.h"));
+
+    assertEquals(2, nodes.size());
+    assertEquals(0, header.id());
+    assertEquals(1, other.id());
+    assertSame(other, nodes.node(1));
+    assertEquals(Path.of("include/foo.h"), header.path());
+    assertEquals(Node.MTIME_UNKNOWN, header.mtime());
+  }
+
+  @Test
+  void testProducerIsRecordedOnce() {
+    Node node = new NodeTable().intern("out/foo.o");
+    Action first =
+        new Action(
+            Rule.PHONY_RULE,
+            new Environment(),
+            List.of(node.path()),
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of());
+    Action second =
+        new Action(
+            Rule.PHONY_RULE,
+            new Environment(),
+            List.of(node.path()),
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of(),
+            List.of());
+
+    assertNull(node.setProducer(first));
+    assertSame(first, node.setProducer(second));
+    assertSame(first, node.producer());
+
+    node.addConsumer(second);
+    node.addConsumer(first);
+    assertEquals(List.of(second, first), node.consumers());
+  }
+}
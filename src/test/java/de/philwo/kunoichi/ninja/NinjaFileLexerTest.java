@@ -21,6 +21,10 @@ import de.philwo.kunoichi.datamodel.FormatString;
 import de.philwo.kunoichi.datamodel.FormatString.Chunk.Kind;
 import de.philwo.kunoichi.ninja.NinjaToken.Type;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -286,4 +290,49 @@ public class NinjaFileLexerTest {
 
     assertEquals(Type.EOF, lexer.readToken().type());
   }
+
+  @Test
+  void findStatementStartSkipsContinuationsAndComments() {
+    String input =
+        """
+        rule cc
+          command = cc $
+        in
+        # comment
+        build a: cc$
+         b
+        build c: cc
+        """;
+    ByteBuffer buffer = ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8));
+    assertEquals(input.indexOf("build c"), NinjaFileLexer.findStatementStart(buffer, 1));
+    assertEquals(input.length(), NinjaFileLexer.findStatementStart(buffer, input.indexOf("c:")));
+  }
+
+  @Test
+  void readsUtf8FromMappedFile() throws IOException {
+    Path file = Files.createTempFile("kunoichi", ".ninja");
+    try {
+      Files.writeString(file, "greeting = Gr\u00fc\u00dfe, $name! \u2603\n");
+      try (NinjaFileLexer lexer = new NinjaFileLexer(file)) {
+        NinjaToken token = lexer.readToken();
+        assertEquals(Type.VARIABLE_NAME, token.type());
+        assertEquals("greeting", token.text());
+        assertEquals(Type.EQUALS, lexer.readToken().type());
+        FormatString value = lexer.readVarValue();
+        assertEquals("Gr\u00fc\u00dfe, ${name}! \u2603", value.toString());
+        assertEquals(Type.NEWLINE, lexer.readToken().type());
+        assertEquals(Type.EOF, lexer.readToken().type());
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void catchesInvalidNonAsciiCharacter() {
+    NinjaFileLexer lexer = new NinjaFileLexer("rule \u00fc");
+    assertEquals(Type.RULE, lexer.readToken().type());
+    NinjaParserException e = Assertions.assertThrows(NinjaParserException.class, lexer::readToken);
+    assertEquals("Invalid character while parsing token: \u00fc", e.getMessage());
+  }
 }
@@ -15,16 +15,28 @@
 package de.philwo.kunoichi.ninja;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import de.philwo.kunoichi.datamodel.Action;
 import de.philwo.kunoichi.datamodel.Environment;
+import de.philwo.kunoichi.datamodel.Node;
+import de.philwo.kunoichi.datamodel.NodeTable;
 import de.philwo.kunoichi.datamodel.Rules;
+import de.philwo.kunoichi.ninja.NinjaFile.LoadStatistics;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -83,6 +95,59 @@ public class NinjaFileParserTest {
     assertEquals(List.of(Path.of("foo.o")), buildFooO.outputs().toList());
   }
 
+  @Test
+  void testParseSharesIdenticalPathsAndStrings() throws IOException {
+    Files.writeString(tempDir.resolve("sub.ninja"), "build b.o: cc b.c | ./common.h\n");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        rule cc
+          command = clang -c $in -o $out
+        build a.o: cc a.c | common.h
+          flags = -O2
+        build c.o: cc c.c | common.h
+          flags = -O2
+        subninja %s
+        """
+            .formatted(tempDir.resolve("sub.ninja")));
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+
+    List<Action> actions = ninjaFile.actions();
+    Path commonH = actions.get(0).implicitInputs().get(0);
+    assertSame(commonH, actions.get(1).implicitInputs().get(0));
+    assertSame(commonH, actions.get(2).implicitInputs().get(0));
+    assertSame(
+        actions.get(0).env().variables().get("flags"),
+        actions.get(1).env().variables().get("flags"));
+    assertTrue(ninjaFile.loadStatistics().dedupedObjects() > 0);
+  }
+
+  @Test
+  void testParseLinksNodesToActions() throws IOException {
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        rule cc
+          command = clang -c $in -o $out
+        build out/a.o: cc a.c | ./common.h
+        build out/b.o: cc b.c | common.h |@ out/a.o
+        build app: cc out/./a.o out/b.o
+        """);
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+
+    List<Action> actions = ninjaFile.actions();
+    NodeTable nodes = ninjaFile.nodes();
+    Node aO = nodes.get("out/a.o");
+    assertSame(actions.get(0), aO.producer());
+    // Validations are not inputs, so only the link step consumes a.o.
+    assertEquals(List.of(actions.get(2)), aO.consumers());
+    assertSame(aO.path(), actions.get(2).explicitInputs().get(0));
+    assertSame(aO, actions.get(2).inputNode(0));
+    assertSame(aO, actions.get(0).outputNode(0));
+    assertNull(nodes.get("common.h").producer());
+    assertEquals(List.of(actions.get(0), actions.get(1)), nodes.get("common.h").consumers());
+  }
+
   @Test
   void testParseDefaultTarget() throws IOException {
     Files.writeString(
@@ -209,4 +274,416 @@ public class NinjaFileParserTest {
         List.of(Path.of("foobar"), Path.of("foobar_turbo"), Path.of("baz")),
         ninjaFile.defaultTargets().items());
   }
+
+  @Test
+  void testParseManySubninjasKeepsStatementOrder() throws IOException {
+    StringBuilder root = new StringBuilder("rule touch\n  command = touch $out\n");
+    List<Path> expectedOutputs = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      Files.writeString(
+          tempDir.resolve("sub" + i + ".ninja"),
+          """
+          build sub%d.a: touch
+          subninja nested%d.ninja
+          build sub%d.b: touch
+          default sub%d.b
+          """
+              .formatted(i, i, i, i));
+      Files.writeString(
+          tempDir.resolve("nested" + i + ".ninja"), "build nested%d: touch\n".formatted(i));
+      root.append("build before%d: touch\n".formatted(i));
+      root.append("subninja sub%d.ninja\n".formatted(i));
+      expectedOutputs.addAll(
+          List.of(
+              Path.of("before" + i),
+              Path.of("sub" + i + ".a"),
+              Path.of("nested" + i),
+              Path.of("sub" + i + ".b")));
+    }
+    root.append("build last: touch\ndefault last\n");
+    expectedOutputs.add(Path.of("last"));
+    Files.writeString(tempDir.resolve("build.ninja"), root);
+
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+
+    assertEquals(expectedOutputs, ninjaFile.actions().stream().flatMap(Action::outputs).toList());
+    assertEquals(51, ninjaFile.defaultTargets().size());
+    assertEquals(Path.of("sub0.b"), ninjaFile.defaultTargets().items().get(0));
+    assertEquals(Path.of("last"), ninjaFile.defaultTargets().items().get(50));
+  }
+
+  @Test
+  void testParseSubninjaReportsFirstErrorInStatementOrder() throws IOException {
+    Files.writeString(tempDir.resolve("a.ninja"), "build a: unknown_a\n");
+    Files.writeString(tempDir.resolve("b.ninja"), "build b: unknown_b\n");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        subninja a.ninja
+        subninja b.ninja
+        """);
+    for (int i = 0; i < 10; i++) {
+      IllegalArgumentException e =
+          assertThrows(
+              IllegalArgumentException.class,
+              () -> NinjaFile.parse(tempDir.resolve("build.ninja")));
+      assertEquals("Unknown rule: ${unknown_a}", e.getMessage());
+    }
+  }
+
+  @Test
+  void testParseSubninjaOnlySeesEarlierRules() throws IOException {
+    Files.writeString(tempDir.resolve("sub.ninja"), "build a.o: cc a.c\n");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        subninja sub.ninja
+        rule cc
+          command = clang -c $in -o $out
+        """);
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class, () -> NinjaFile.parse(tempDir.resolve("build.ninja")));
+    assertEquals("Unknown rule: ${cc}", e.getMessage());
+  }
+
+  @Test
+  void testParseSubninjaOnlySeesEarlierVariables() throws IOException {
+    Files.writeString(tempDir.resolve("sub.ninja"), "build $dir/a$ext: cc a.c\n");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        dir = out
+        rule cc
+          command = clang -c $in -o $out
+        subninja sub.ninja
+        ext = .o
+        """);
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    assertEquals(List.of(Path.of("out/a")), ninjaFile.actions().get(0).outputs().toList());
+  }
+
+  @Test
+  void testParseSubninjaCommandSeesLaterVariables() throws IOException {
+    Files.writeString(
+        tempDir.resolve("sub.ninja"),
+        """
+        rule cc
+          command = clang $cflags -c $in -o $out
+        build a.o: cc a.c
+        """);
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        subninja sub.ninja
+        cflags = -O2
+        """);
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    assertEquals("clang -O2 -c a.c -o a.o", ninjaFile.actions().get(0).command());
+  }
+
+  @Test
+  void testChunkedParseMatchesSequentialParse() throws IOException {
+    Files.writeString(tempDir.resolve("toolchain.ninja"), "cc = clang\n");
+    StringBuilder manifest =
+        new StringBuilder(
+            """
+            include toolchain.ninja
+            pool link_pool
+              depth = 1
+            rule cc
+              command = $cc $cflags -c $in -o $out
+            """);
+    for (int i = 0; i < 10000; i++) {
+      if (i % 5000 == 0) {
+        manifest.append("dir%d = obj/%d\n".formatted(i, i));
+        manifest.append("# Comment before a statement $\n");
+      }
+      int dir = i - i % 5000;
+      manifest.append("build $dir%d/f%d.o: cc src/f$\n    %d.c | hdr.h\n".formatted(dir, i, i));
+      if (i % 7 == 0) {
+        manifest.append("  cflags = -O2 $$HOME\n");
+      }
+    }
+    manifest.append("default obj/0/f0.o\n");
+    Files.writeString(tempDir.resolve("build.ninja"), manifest);
+
+    NinjaFile sequential = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    NinjaFile chunked = NinjaFile.parse(tempDir.resolve("build.ninja"), 1024);
+
+    assertEquals(10000, chunked.actions().size());
+    for (int i = 0; i < 10000; i++) {
+      Action expected = sequential.actions().get(i);
+      Action actual = chunked.actions().get(i);
+      assertEquals(expected.outputs().toList(), actual.outputs().toList());
+      assertEquals(expected.inputs().toList(), actual.inputs().toList());
+      assertEquals(expected.command(), actual.command());
+    }
+    assertEquals(
+        "clang -O2 $HOME -c src/f7.c -o obj/0/f7.o", chunked.actions().get(7).command());
+    assertEquals(sequential.defaultTargets().items(), chunked.defaultTargets().items());
+  }
+
+  @Test
+  void testChunkedParseReportsFirstError() throws IOException {
+    StringBuilder manifest = new StringBuilder("rule touch\n  command = touch $out\n");
+    for (int i = 0; i < 1000; i++) {
+      manifest.append("build out%d: touch\n".formatted(i));
+    }
+    manifest.append("build broken: unknown_rule\n");
+    for (int i = 0; i < 1000; i++) {
+      manifest.append("build more%d: touch\n".formatted(i));
+    }
+    manifest.append("build : touch\n");
+    Files.writeString(tempDir.resolve("build.ninja"), manifest);
+
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> NinjaFile.parse(tempDir.resolve("build.ninja"), 512));
+    assertEquals("Unknown rule: ${unknown_rule}", e.getMessage());
+  }
+
+  @Test
+  void testParseCompressedManifests() throws IOException {
+    String toolchain = "cc = clang\n";
+    String sub = "build sub.o: cc sub.c\n";
+    String root =
+        """
+        include toolchain.ninja.gz
+        rule cc
+          command = $cc -c $in -o $out
+        build main.o: cc main.c
+        subninja sub.ninja
+        """;
+    writeCompressed(tempDir.resolve("toolchain.ninja.gz"), toolchain);
+    // Compressed files are detected by their contents, not only by their name.
+    writeCompressed(tempDir.resolve("sub.ninja"), sub);
+    writeCompressed(tempDir.resolve("build.ninja.gz"), root);
+
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja.gz"));
+
+    assertEquals(
+        List.of("clang -c main.c -o main.o", "clang -c sub.c -o sub.o"),
+        ninjaFile.actions().stream().map(Action::command).toList());
+    LoadStatistics stats = ninjaFile.loadStatistics();
+    assertEquals(
+        Files.size(tempDir.resolve("toolchain.ninja.gz"))
+            + Files.size(tempDir.resolve("sub.ninja"))
+            + Files.size(tempDir.resolve("build.ninja.gz")),
+        stats.readBytes());
+    assertEquals(
+        toolchain.length() + sub.length() + root.length(), stats.uncompressedBytes());
+  }
+
+  @Test
+  void testChunkedParseOfCompressedManifestMatchesUncompressed() throws IOException {
+    StringBuilder manifest = new StringBuilder("rule cc\n  command = cc -c $in -o $out\n");
+    for (int i = 0; i < 5000; i++) {
+      manifest.append("build obj/f%d.o: cc src/f$\n    %d.c | hdr.h\n".formatted(i, i));
+      if (i % 7 == 0) {
+        manifest.append("# Comment $\n  description = CC $out\n");
+      }
+    }
+    Files.writeString(tempDir.resolve("build.ninja"), manifest);
+    writeCompressed(tempDir.resolve("build.ninja.gz"), manifest.toString());
+
+    NinjaFile uncompressed = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    NinjaFile compressed = NinjaFile.parse(tempDir.resolve("build.ninja.gz"), 1024);
+
+    assertEquals(5000, compressed.actions().size());
+    for (int i = 0; i < 5000; i++) {
+      Action expected = uncompressed.actions().get(i);
+      Action actual = compressed.actions().get(i);
+      assertEquals(expected.outputs().toList(), actual.outputs().toList());
+      assertEquals(expected.inputs().toList(), actual.inputs().toList());
+      assertEquals(expected.command(), actual.command());
+    }
+    assertEquals(manifest.length(), compressed.loadStatistics().uncompressedBytes());
+  }
+
+  @Test
+  void testParseFromStreamMatchesParseFromFile() throws IOException {
+    Files.writeString(tempDir.resolve("toolchain.ninja"), "cc = clang\n");
+    Files.writeString(tempDir.resolve("sub.ninja"), "build sub.o: cc sub.c\n");
+    StringBuilder manifest =
+        new StringBuilder("include toolchain.ninja\nrule cc\n  command = $cc -c $in -o $out\n");
+    for (int i = 0; i < 2000; i++) {
+      manifest.append("build obj/f%d.o: cc src/f$\n    %d.c\n".formatted(i, i));
+      if (i == 1000) {
+        manifest.append("subninja sub.ninja\n");
+      }
+    }
+    Files.writeString(tempDir.resolve("build.ninja"), manifest);
+    byte[] bytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+
+    NinjaFile expected = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    NinjaFile streamed =
+        NinjaFile.parse(tempDir.resolve("build.ninja"), new TricklingInputStream(bytes), 1024);
+
+    assertEquals(
+        expected.actions().stream().map(Action::command).toList(),
+        streamed.actions().stream().map(Action::command).toList());
+    assertEquals("clang -c src/f1000.c -o obj/f1000.o", streamed.actions().get(1000).command());
+    assertEquals("clang -c sub.c -o sub.o", streamed.actions().get(1001).command());
+    assertEquals(bytes.length + 11 + 22, streamed.loadStatistics().uncompressedBytes());
+  }
+
+  @Test
+  void testParseFromCompressedStream() throws IOException {
+    StringBuilder manifest = new StringBuilder("rule touch\n  command = touch $out\n");
+    for (int i = 0; i < 1000; i++) {
+      manifest.append("build out%d: touch\n".formatted(i));
+    }
+    writeCompressed(tempDir.resolve("build.ninja.gz"), manifest.toString());
+    byte[] compressed = Files.readAllBytes(tempDir.resolve("build.ninja.gz"));
+
+    NinjaFile ninjaFile =
+        NinjaFile.parse(
+            tempDir.resolve("build.ninja"), new TricklingInputStream(compressed), 512);
+
+    assertEquals(1000, ninjaFile.actions().size());
+    assertEquals("touch out999", ninjaFile.actions().get(999).command());
+    assertEquals(compressed.length, ninjaFile.loadStatistics().readBytes());
+    assertEquals(manifest.length(), ninjaFile.loadStatistics().uncompressedBytes());
+  }
+
+  @Test
+  void testLazyParseMatchesEagerParse() throws IOException {
+    Files.writeString(tempDir.resolve("sub.ninja"), "build sub.o | sub.d: cc sub.c\n");
+    StringBuilder manifest =
+        new StringBuilder(
+            """
+            cc = clang
+            rule cc
+              command = $cc $cflags -c $in -o $out
+            subninja sub.ninja
+            """);
+    for (int i = 0; i < 2000; i++) {
+      manifest.append("build obj/f%d.o: cc src/f$\n    %d.c | hdr$ %d.h\n".formatted(i, i, i));
+      if (i % 7 == 0) {
+        manifest.append("  # Comment $\n  cflags = -O2 $$HOME\n");
+      }
+      if (i % 500 == 0) {
+        manifest.append("# Comment\n\n");
+      }
+    }
+    Files.writeString(tempDir.resolve("build.ninja"), manifest);
+
+    NinjaFile eager = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    NinjaFile lazy = NinjaFile.parseLazily(tempDir.resolve("build.ninja"), 1024);
+
+    assertTrue(lazy.actions().isEmpty());
+    assertEquals(2001, lazy.loadStatistics().deferredBuilds());
+    for (Action expected : eager.actions()) {
+      for (Path output : expected.outputs().toList()) {
+        Action actual = lazy.getGeneratingAction(output);
+        assertEquals(expected.outputs().toList(), actual.outputs().toList());
+        assertEquals(expected.inputs().toList(), actual.inputs().toList());
+        assertEquals(expected.command(), actual.command());
+      }
+    }
+    assertEquals(2001, lazy.loadStatistics().materializedBuilds());
+  }
+
+  @Test
+  void testLazyParseOnlyMaterializesRequestedActions() throws IOException {
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        rule cc
+          command = cc -c $in -o $out
+        build a.o: cc a.c
+        build b.o: cc b.c
+        # Rules are only resolved once the statement is needed.
+        build broken.o: unknown_rule broken.c
+        """);
+
+    NinjaFile ninjaFile = NinjaFile.parseLazily(tempDir.resolve("build.ninja"));
+    Action action = ninjaFile.getGeneratingAction(Path.of("b.o"));
+
+    assertEquals("cc -c b.c -o b.o", action.command());
+    assertSame(action, ninjaFile.getGeneratingAction(Path.of("b.o")));
+    assertEquals(null, ninjaFile.getGeneratingAction(Path.of("b.c")));
+    assertEquals(3, ninjaFile.loadStatistics().deferredBuilds());
+    assertEquals(1, ninjaFile.loadStatistics().materializedBuilds());
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ninjaFile.getGeneratingAction(Path.of("broken.o")));
+    assertEquals("Unknown rule: ${unknown_rule}", e.getMessage());
+  }
+
+  @Test
+  void testLazyParseDetectsDuplicateOutputs() throws IOException {
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        rule touch
+          command = touch $out
+        build out: touch
+        build ./out: touch
+        """);
+
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> NinjaFile.parseLazily(tempDir.resolve("build.ninja")));
+    assertEquals("Output out is generated by multiple actions", e.getMessage());
+  }
+
+  @Test
+  void testParseCorruptCompressedManifestFails() throws IOException {
+    Files.writeString(tempDir.resolve("build.ninja.gz"), "build foo: phony\n");
+
+    assertThrows(IOException.class, () -> NinjaFile.parse(tempDir.resolve("build.ninja.gz")));
+  }
+
+  @Test
+  void testParseSubninjaDetectsDuplicatePool() throws IOException {
+    Files.writeString(tempDir.resolve("sub.ninja"), "pool link_pool\n  depth = 2\n");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        subninja sub.ninja
+        pool link_pool
+          depth = 1
+        """);
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class, () -> NinjaFile.parse(tempDir.resolve("build.ninja")));
+    assertEquals("Duplicate pool: link_pool", e.getMessage());
+  }
+
+  /** Returns at most a few bytes per read, like a pipe that a slow generator writes to. */
+  private static final class TricklingInputStream extends InputStream {
+    private final byte[] data;
+    private int pos;
+
+    TricklingInputStream(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      return pos < data.length ? data[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (pos == data.length) {
+        return -1;
+      }
+      int n = Math.min(Math.min(len, 97), data.length - pos);
+      System.arraycopy(data, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+  }
+
+  private static void writeCompressed(Path path, String content) throws IOException {
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(path))) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+  }
 }
@@ -0,0 +1,176 @@
+// Copyright 2023 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.philwo.kunoichi.ninja;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.philwo.kunoichi.datamodel.Action;
+import de.philwo.kunoichi.ninja.NinjaFile.LoadStatistics;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class NinjaSnapshotTest {
+
+  private Path tempDir;
+  private Path snapshot;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    this.tempDir = Files.createTempDirectory("kunoichi");
+    this.snapshot = tempDir.resolve(".kunoichi_snapshot");
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+        cflags = -O2
+        rule cc
+          command = clang $cflags -c $in -o $out
+          description = CC $out
+        pool link_pool
+          depth = 1
+        build main.o: cc main.c | config.h || gen
+        subninja %s
+        subninja %s
+        default main.o
+        """
+            .formatted(tempDir.resolve("a.ninja"), tempDir.resolve("b.ninja")));
+    Files.writeString(
+        tempDir.resolve("a.ninja"),
+        """
+        build a.o: cc a.c
+          cflags = -O0
+        default a.o
+        """);
+    Files.writeString(tempDir.resolve("b.ninja"), "build b.o: cc b.c\n");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    Files.walk(this.tempDir)
+        .sorted(Comparator.reverseOrder())
+        .forEach(
+            path -> {
+              try {
+                Files.delete(path);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+  }
+
+  private NinjaFile parse() throws IOException {
+    return NinjaFile.parse(tempDir.resolve("build.ninja"), snapshot);
+  }
+
+  /** Makes sure that a rewrite is detected even if the file system has a coarse mtime. */
+  private static void touch(Path path) throws IOException {
+    FileTime mtime = Files.getLastModifiedTime(path);
+    Files.setLastModifiedTime(path, FileTime.fromMillis(mtime.toMillis() + 10_000));
+  }
+
+  private static void assertScopes(int parsed, int restored, NinjaFile ninjaFile) {
+    LoadStatistics stats = ninjaFile.loadStatistics();
+    assertEquals(parsed, stats.parsedScopes());
+    assertEquals(restored, stats.restoredScopes());
+  }
+
+  private static void assertSameModel(NinjaFile expected, NinjaFile actual) {
+    assertEquals(expected.actions().size(), actual.actions().size());
+    for (int i = 0; i < expected.actions().size(); i++) {
+      Action expectedAction = expected.actions().get(i);
+      Action actualAction = actual.actions().get(i);
+      assertEquals(expectedAction.outputs().toList(), actualAction.outputs().toList());
+      assertEquals(expectedAction.inputs().toList(), actualAction.inputs().toList());
+      assertEquals(expectedAction.orderOnlyInputs(), actualAction.orderOnlyInputs());
+      assertEquals(expectedAction.command(), actualAction.command());
+      assertEquals(expectedAction.mnemonic(), actualAction.mnemonic());
+    }
+    assertEquals(expected.defaultTargets().items(), actual.defaultTargets().items());
+    assertEquals(1, actual.pools().get("link_pool").depth());
+  }
+
+  @Test
+  void testUnchangedManifestIsRestored() throws IOException {
+    NinjaFile parsed = parse();
+    assertScopes(3, 0, parsed);
+
+    NinjaFile restored = parse();
+    assertScopes(0, 3, restored);
+    assertSameModel(parsed, restored);
+    assertEquals(
+        List.of(
+            "clang -O2 -c main.c -o main.o", "clang -O0 -c a.c -o a.o", "clang -O2 -c b.c -o b.o"),
+        restored.actions().stream().map(Action::command).toList());
+  }
+
+  @Test
+  void testChangedSubninjaIsParsedAgain() throws IOException {
+    parse();
+    Path a = tempDir.resolve("a.ninja");
+    Files.writeString(a, "build a.o: cc a.c\n  cflags = -O3\ndefault a.o\n");
+    touch(a);
+
+    NinjaFile ninjaFile = parse();
+    assertScopes(1, 2, ninjaFile);
+    assertEquals("clang -O3 -c a.c -o a.o", ninjaFile.actions().get(1).command());
+    assertScopes(0, 3, parse());
+  }
+
+  @Test
+  void testChangedParentScopeInvalidatesSubninjas() throws IOException {
+    parse();
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        Files.readString(tempDir.resolve("build.ninja")).replace("-O2", "-Os"));
+    touch(tempDir.resolve("build.ninja"));
+
+    NinjaFile ninjaFile = parse();
+    // Changing a variable of the parent affects both subninjas, so they must be parsed again.
+    assertScopes(3, 0, ninjaFile);
+    assertEquals("clang -Os -c b.c -o b.o", ninjaFile.actions().get(2).command());
+  }
+
+  @Test
+  void testCorruptSnapshotIsIgnored() throws IOException {
+    NinjaFile parsed = parse();
+    byte[] bytes = Files.readAllBytes(snapshot);
+    Files.write(snapshot, Arrays.copyOf(bytes, bytes.length / 2));
+
+    NinjaFile ninjaFile = parse();
+    assertScopes(3, 0, ninjaFile);
+    assertSameModel(parsed, ninjaFile);
+  }
+
+  @Test
+  void testRestoredSubninjaOnlySeesEarlierVariables() throws IOException {
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        Files.readString(tempDir.resolve("build.ninja")) + "ext = .o\n");
+    Files.writeString(tempDir.resolve("b.ninja"), "build b$ext: cc b.c\n");
+
+    NinjaFile parsed = parse();
+    assertEquals(List.of(Path.of("b")), parsed.actions().get(2).outputs().toList());
+    NinjaFile restored = parse();
+    assertScopes(0, 3, restored);
+    assertSameModel(parsed, restored);
+  }
+}
@@ -66,4 +66,30 @@ public class NinjaTargetParserTest {
     assertEquals(List.of(Path.of("in1")), target.inputs().toList());
     assertEquals("out1.pdb", target.env().get("pdb"));
   }
+
+  @Test
+  void parseBuildTargetDeduplicatesManyPaths() throws IOException {
+    // Enough paths to outgrow the parser's and evaluator's scratch buffers.
+    StringBuilder inputs = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      inputs.append(" in").append(i % 40);
+    }
+    Files.writeString(
+        tempDir.resolve("build.ninja"),
+        """
+            rule compile
+              command = cc $in -o $out
+            build out1 out2 out1: compile%s | in0 extra || in1 order
+            build out3: compile in2
+            """
+            .formatted(inputs));
+    NinjaFile ninjaFile = NinjaFile.parse(tempDir.resolve("build.ninja"));
+    Action target = ninjaFile.actions().get(0);
+    assertEquals(List.of(Path.of("out1"), Path.of("out2")), target.explicitOutputs());
+    assertEquals(40, target.explicitInputs().size());
+    assertEquals(Path.of("in39"), target.explicitInputs().get(39));
+    assertEquals(List.of(Path.of("extra")), target.implicitInputs());
+    assertEquals(List.of(Path.of("order")), target.orderOnlyInputs());
+    assertEquals(List.of(Path.of("in2")), ninjaFile.actions().get(1).inputs().toList());
+  }
 }